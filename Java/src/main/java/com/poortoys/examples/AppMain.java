@@ -14,13 +14,35 @@ import com.poortoys.examples.dao.*;
 import com.poortoys.examples.simulation.*;
 
 public class AppMain {
+    // Confirm bookings against the in-memory seat inventory and persist them asynchronously
+    private static final boolean USE_WRITE_BEHIND_INVENTORY = false;
+    // Benchmark the JPA booking path against the book_tickets stored procedure instead of a single run
+    private static final boolean COMPARE_NATIVE_BOOKING_PATH = false;
+    // Send reads that tolerate staleness to the "ticketingsystem-replica" persistence unit
+    private static final boolean USE_READ_REPLICA = false;
+    // Benchmark one commit per booking against group-committed batches instead of a single run
+    private static final boolean COMPARE_GROUP_COMMIT = false;
+    // Let users book any free tickets of a category (SKIP LOCKED) instead of exact serials
+    private static final boolean USE_BEST_AVAILABLE = false;
+    // Queue bookings in front of the connection pool instead of booking on the simulation's threads
+    private static final boolean USE_ASYNC_BOOKING_SERVICE = false;
 	
     public static void main(String[] args) {
         EntityManagerFactory emf = null; // Factory for creating EntityManager instances
         EntityManager em = null; // EntityManager for interacting with the database
+        WriteBehindBookingWriter writeBehindWriter = null; // Persists in-memory bookings, if enabled
+        HoldExpirySweeper holdSweeper = null; // Releases seat holds that were not confirmed in time
+        AsyncBookingService asyncBookingService = null; // Bounded queue in front of the BookingService
+        CategoryAvailabilityCounters categoryCounters = null; // Per-category ticket counts kept in step with bookings
+        SeatMapService seatMapService = null; // In-memory seat map served to polling clients
+        EntityManagerFactory replicaEmf = null; // Factory of the read replica, if enabled
+        ReplicaRouter replicaRouter = null; // Routes reads between the primary and the replica
+        BookingBatcher bookingBatcher = null; // Commits concurrent bookings together, if compared
         
         try {
             System.out.println("Starting MySQL Ticketing System Simulation...");
+            // Workload from --workload=<properties file> and --key=value overrides, see WorkloadSpec
+            WorkloadSpec workload = WorkloadSpec.fromArgs(args);
             
             // Step 1: Initialize the EntityManagerFactory
             emf = Persistence.createEntityManagerFactory("ticketingsystem"); // Persistence unit name defined in persistence.xml
@@ -31,9 +53,15 @@ public class AppMain {
             System.out.println("EntityManager created successfully");
             
             // Step 3: Initialize DAOs for CRUD operations
+            if (USE_READ_REPLICA) {
+                replicaEmf = Persistence.createEntityManagerFactory(ReplicaRouter.REPLICA_PERSISTENCE_UNIT);
+            }
+            // Without a replica factory every read stays on the primary
+            replicaRouter = new ReplicaRouter(emf, replicaEmf);
+            replicaRouter.start(); // Measures the replica lag before the first routed read
             BookingDAO bookingDAO = new BookingDAO(em); // DAO for Booking entities
-            TicketDAO ticketDAO = new TicketDAO(em); // DAO for Ticket entities
-            UserDAO userDAO = new UserDAO(em); // DAO for User entities
+            TicketDAO ticketDAO = new TicketDAO(em, replicaRouter); // DAO for Ticket entities
+            UserDAO userDAO = new UserDAO(em, replicaRouter); // DAO for User entities
             EventDAO eventDAO = new EventDAO(em); // DAO for Event entities
             BookingTicketDAO bookingTicketDAO = new BookingTicketDAO(em); // DAO for Booking-Ticket relationships
             System.out.println("DAOs initialized successfully");
@@ -61,7 +89,43 @@ public class AppMain {
             }
 
             // Step 6: Initialize the BookingService for handling booking logic
-            BookingService bookingService = new BookingService(em);
+            // Built from the factory so each booking gets its own EntityManager and runs in parallel
+            BookingService bookingService = new BookingService(emf);
+            // Claim all tickets of a booking with one guarded UPDATE instead of a locking SELECT per serial
+            bookingService.setClaimStrategy(TicketClaimStrategy.SET_BASED_UPDATE);
+            SeatInventory seatInventory = null; // Authoritative seat availability in memory, if enabled
+            if (USE_WRITE_BEHIND_INVENTORY) {
+                seatInventory = new SeatInventory();
+                for (int eventId : workload.getEventIds()) {
+                    seatInventory.loadEvent(emf, eventId); // Rebuild the seat bitsets from the tickets table
+                }
+                seatInventory.loadUsers(emf); // Bookings are validated against these users without a query
+                writeBehindWriter = new WriteBehindBookingWriter(emf, seatInventory);
+                bookingService.enableWriteBehind(seatInventory, writeBehindWriter);
+            }
+            // Release expired seat holds, including ones left over from earlier runs
+            holdSweeper = new HoldExpirySweeper(emf);
+            holdSweeper.setSeatInventory(seatInventory); // Expired holds free their in-memory seats too
+            holdSweeper.start();
+            // Keep available/reserved/sold counts per category up to date instead of GROUP BY over tickets
+            categoryCounters = new CategoryAvailabilityCounters(emf);
+            categoryCounters.start(); // Seeds missing categories and loads the in-memory counts
+            bookingService.setCategoryCounters(categoryCounters);
+            holdSweeper.setCategoryCounters(categoryCounters);
+            if (writeBehindWriter != null) {
+                writeBehindWriter.setCategoryCounters(categoryCounters);
+            }
+            // Turn away best-available requests for sold-out categories before they open a transaction
+            SoldOutRegistry soldOutRegistry = new SoldOutRegistry();
+            categoryCounters.setSoldOutRegistry(soldOutRegistry); // Marks and reopens categories on commit
+            bookingService.setSoldOutRegistry(soldOutRegistry);
+            // Resolve requested serials to ticket IDs in memory and claim them by primary key
+            SerialNumberIndex serialNumberIndex = new SerialNumberIndex();
+            for (int eventId : workload.getEventIds()) {
+                serialNumberIndex.loadEvent(emf, eventId);
+            }
+            bookingService.setSerialNumberIndex(serialNumberIndex);
+            bookingService.setReplicaRouter(replicaRouter); // Availability lists may come from the replica
             System.out.println("BookingService initialized successfully");
 
             // Step 7: Create a BookingSimulation instance
@@ -71,12 +135,39 @@ public class AppMain {
                 eventDAO, // DAO for events
                 ticketDAO // DAO for tickets
             );
+            simulation.setBestAvailableAllocation(USE_BEST_AVAILABLE);
+            if (USE_ASYNC_BOOKING_SERVICE) {
+                // Users wait up to 30 s for room before being rejected
+                asyncBookingService = new AsyncBookingService(bookingService, emf, 30_000);
+                simulation.setAsyncBookingService(asyncBookingService);
+            }
+            // Serve the seat map from memory, refreshed from the tickets table in the background
+            seatMapService = new SeatMapService(emf);
+            for (int eventId : workload.getEventIds()) {
+                seatMapService.loadEvent(eventId);
+            }
+            seatMapService.start();
+            simulation.setSeatMapService(seatMapService);
             System.out.println("BookingSimulation created successfully");
 
             // Step 8: Run the simulation for a specified event ID
-            System.out.println("\nStarting simulation for Event ID: 3");
-            simulation.runSimulation(1); // Simulate bookings for Event ID 3
-            
+            simulation.setWorkload(workload);
+            System.out.println("\nStarting simulation for Event IDs: " + workload.getEventIds());
+            if (COMPARE_NATIVE_BOOKING_PATH) {
+                // Needs SQL/SQLScriptsNativeBookingProcedure.sql applied to the database
+                simulation.compareClaimStrategies(workload.getEventIds().get(0), TicketClaimStrategy.SET_BASED_UPDATE,
+                    TicketClaimStrategy.NATIVE_PROCEDURE);
+            } else if (COMPARE_GROUP_COMMIT) {
+                bookingBatcher = new BookingBatcher(emf, bookingService);
+                simulation.compareGroupCommit(workload.getEventIds().get(0), bookingBatcher);
+            } else {
+                simulation.runSimulation(); // Simulate bookings for the workload's events
+            }
+            // Show how often the catalog lookups were answered from the second-level cache
+            new CacheStatisticsReporter(emf).printReport();
+            System.out.println("Serial number index: " + bookingService.getSerialNumberIndex());
+            System.out.println("Read routing: " + replicaRouter);
+
             // Prompt user to keep the console open after simulation
             System.out.println("\nSimulation completed. Press Enter to exit...");
             System.in.read();
@@ -95,6 +186,32 @@ public class AppMain {
             }
         } finally {
             // Step 9: Clean up resources to avoid memory leaks
+            if (asyncBookingService != null) {
+                asyncBookingService.close();
+            }
+            if (bookingBatcher != null) {
+                bookingBatcher.close();
+            }
+            if (holdSweeper != null) {
+                holdSweeper.close();
+            }
+            if (writeBehindWriter != null) {
+                writeBehindWriter.close(); // Write every booking still queued before closing the factory
+                System.out.println("Write-behind writer drained: " + writeBehindWriter.getPersistedBookings() +
+                    " bookings persisted, " + writeBehindWriter.getFailedBookings() + " failed");
+            }
+            if (categoryCounters != null) {
+                categoryCounters.close();
+            }
+            if (seatMapService != null) {
+                seatMapService.close();
+            }
+            if (replicaRouter != null) {
+                replicaRouter.close();
+            }
+            if (replicaEmf != null && replicaEmf.isOpen()) {
+                replicaEmf.close();
+            }
             if (em != null && em.isOpen()) {
                 try {
                     // Rollback active transactions if any
@@ -7,9 +7,14 @@ import com.poortoys.examples.entities.User;
 import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
 import java.util.List;
+import java.util.stream.Stream;
 
 public class BookingDAO {
 
+    // A user's bookings in one status, newest first; its plan is checked by IndexAdvisor
+    public static final String FIND_BY_USER_AND_STATUS_QUERY =
+        "SELECT b FROM Booking b WHERE b.user = :user AND b.bookingStatus = :status ORDER BY b.bookingId DESC";
+
     private EntityManager em;
 
     public BookingDAO(EntityManager em) {
@@ -39,6 +44,24 @@ public class BookingDAO {
         return query.getResultList();
     }
 
+    // Finds the next page of bookings after lastBookingId, in booking id order (keyset pagination)
+    public List<Booking> findPageAfter(int lastBookingId, int pageSize) {
+        TypedQuery<Booking> query = em.createQuery(
+                "SELECT b FROM Booking b WHERE b.bookingId > :lastBookingId ORDER BY b.bookingId", Booking.class);
+        query.setParameter("lastBookingId", lastBookingId);
+        query.setMaxResults(pageSize);
+        return query.getResultList();
+    }
+
+    // Streams all bookings page by page in constant memory; clears this DAO's EntityManager between pages
+    public Stream<Booking> streamAll(int pageSize) {
+        return KeysetPager.stream(em, this::findPageAfter, Booking::getBookingId, pageSize);
+    }
+
+    public Stream<Booking> streamAll() {
+        return streamAll(KeysetPager.DEFAULT_PAGE_SIZE);
+    }
+
     // Updates an existing booking
     public Booking update(Booking booking) {
         return em.merge(booking);
@@ -47,8 +70,7 @@ public class BookingDAO {
     public Booking findConfirmedBookingByUser(User user) {
         try {
             TypedQuery<Booking> query = em.createQuery(
-                "SELECT b FROM Booking b WHERE b.user = :user AND b.bookingStatus = :status " +
-                "ORDER BY b.bookingId DESC", // Get the most recent booking
+                FIND_BY_USER_AND_STATUS_QUERY, // Newest first, so the first result is the most recent booking
                 Booking.class);
             query.setParameter("user", user);
             query.setParameter("status", BookingStatus.CONFIRMED);
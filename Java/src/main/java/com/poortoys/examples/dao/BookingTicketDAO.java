@@ -11,6 +11,10 @@ import java.util.List;
  */
 public class BookingTicketDAO {
 
+    // Tickets of one booking; its plan is checked by IndexAdvisor
+    public static final String FIND_BY_BOOKING_ID_QUERY =
+        "SELECT bt FROM BookingTicket bt WHERE bt.booking.bookingId = :bookingId";
+
     private final EntityManager em;
 
     /**
@@ -34,8 +38,7 @@ public class BookingTicketDAO {
      * @return List of BookingTicket entities associated with the booking ID
      */
     public List<BookingTicket> findByBookingId(int bookingId) {
-        TypedQuery<BookingTicket> query = em.createQuery(
-            "SELECT bt FROM BookingTicket bt WHERE bt.booking.bookingId = :bookingId", BookingTicket.class);
+        TypedQuery<BookingTicket> query = em.createQuery(FIND_BY_BOOKING_ID_QUERY, BookingTicket.class);
         query.setParameter("bookingId", bookingId);
         return query.getResultList();
     }
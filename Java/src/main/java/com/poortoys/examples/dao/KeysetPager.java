@@ -0,0 +1,111 @@
+package com.poortoys.examples.dao;
+
+import javax.persistence.EntityManager;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Turns a keyset (seek) page query into a lazily fetched Stream.
+ *
+ * Each page is read with "WHERE id > :lastId ORDER BY id" and a row limit, so every page
+ * is an index range scan on the primary key that starts where the previous one ended,
+ * however deep into the table it is. OFFSET paging would read and throw away all rows
+ * before the page instead.
+ *
+ * Before the next page is fetched the EntityManager is cleared, so only one page of
+ * entities is held at a time. The streams are therefore meant for read-only passes such
+ * as reports and migrations: entities from earlier pages are detached, and unflushed
+ * changes in the EntityManager are discarded.
+ */
+public final class KeysetPager {
+
+    public static final int DEFAULT_PAGE_SIZE = 1_000; // Rows fetched per round trip
+
+    /**
+     * Loads up to pageSize rows whose id is greater than lastId, ordered by id.
+     */
+    @FunctionalInterface
+    public interface PageQuery<T> {
+        List<T> findPageAfter(int lastId, int pageSize);
+    }
+
+    private KeysetPager() {
+    }
+
+    /**
+     * @param em the EntityManager the page query runs on; cleared between pages
+     * @param pageQuery keyset page query ordered by the primary key
+     * @param idOf reads the primary key of a row, used as the start of the next page
+     * @param pageSize rows fetched per page
+     * @return stream over all rows in id order, fetched page by page as it is consumed
+     */
+    public static <T> Stream<T> stream(EntityManager em, PageQuery<T> pageQuery, ToIntFunction<T> idOf,
+                                       int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        Iterator<T> pages = new PageIterator<>(em, pageQuery, idOf, pageSize);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pages,
+            Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Walks the pages, fetching the next one only when the current one is used up.
+     */
+    private static final class PageIterator<T> implements Iterator<T> {
+        private final EntityManager em;
+        private final PageQuery<T> pageQuery;
+        private final ToIntFunction<T> idOf;
+        private final int pageSize;
+
+        private List<T> page = Collections.emptyList();
+        private int position = 0;
+        private int lastId = Integer.MIN_VALUE; // Ids are positive, so the first page starts at the beginning
+        private boolean lastPage = false;
+
+        PageIterator(EntityManager em, PageQuery<T> pageQuery, ToIntFunction<T> idOf, int pageSize) {
+            this.em = em;
+            this.pageQuery = pageQuery;
+            this.idOf = idOf;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (position < page.size()) {
+                return true;
+            }
+            if (lastPage) {
+                return false;
+            }
+            // Step 1: Detach the page that was handed out so it can be garbage collected
+            if (!page.isEmpty()) {
+                em.clear();
+            }
+            // Step 2: Seek past the last id seen
+            page = pageQuery.findPageAfter(lastId, pageSize);
+            position = 0;
+            lastPage = page.size() < pageSize; // A short page means the end of the table was reached
+            if (!page.isEmpty()) {
+                lastId = idOf.applyAsInt(page.get(page.size() - 1));
+            }
+            return !page.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.get(position++);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.poortoys.examples.dao;
+
+import com.poortoys.examples.entities.ReplicationHeartbeat;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.FlushModeType;
+
+import org.hibernate.Session;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Routes reads between the primary database and a read replica.
+ *
+ * Writes, locking reads and reads with StalenessPolicy.PRIMARY always run on the primary.
+ * A read with a bounded staleness runs on the replica while the replica's lag is within
+ * the bound, and on the primary otherwise, so each query decides how stale it may be.
+ *
+ * The lag is measured with a heartbeat: every heartbeatIntervalMs the router writes the
+ * current time into the replication_heartbeat row on the primary and reads the row back
+ * on the replica. The replica then holds every change committed before that beat, so its
+ * data is at most (now - beat) old. A replica that stops applying changes, does not
+ * replicate the heartbeat row or cannot be reached shows no recent beat, and its reads
+ * go to the primary.
+ *
+ * To try it locally, point the "ticketingsystem-replica" persistence unit at a second
+ * MySQL instance replicating the first. Pointing it at the primary itself gives a
+ * replica with no lag; pointing it at an unreplicated copy sends every read to the primary.
+ */
+public class ReplicaRouter implements AutoCloseable {
+
+    // Persistence unit of the read replica in persistence.xml
+    public static final String REPLICA_PERSISTENCE_UNIT = "ticketingsystem-replica";
+    // Configuration defaults
+    private static final long DEFAULT_HEARTBEAT_INTERVAL_MS = 500; // Time between heartbeats
+    private static final long NO_BEAT = 0; // No heartbeat seen on the replica yet
+    private static final Object REPLICA_FAILED = new Object(); // Marks a replica read that threw
+
+    private final EntityManagerFactory primary;
+    private final EntityManagerFactory replica; // Null routes every read to the primary
+    private final long heartbeatIntervalMs;
+    private final ScheduledExecutorService scheduler;
+    private volatile long replicaBeatMillis = NO_BEAT; // Newest beat read back on the replica
+
+    // Metrics for routed reads
+    private final AtomicInteger primaryReads = new AtomicInteger(0);
+    private final AtomicInteger replicaReads = new AtomicInteger(0);
+    private final AtomicInteger laggingReplicaReads = new AtomicInteger(0); // Allowed on the replica, sent to the primary
+    private final AtomicInteger replicaFailures = new AtomicInteger(0); // Replica reads that failed and ran again on the primary
+
+    public ReplicaRouter(EntityManagerFactory primary, EntityManagerFactory replica) {
+        this(primary, replica, DEFAULT_HEARTBEAT_INTERVAL_MS);
+    }
+
+    /**
+     * @param primary factory of the primary database
+     * @param replica factory of the read replica, or null if there is none
+     * @param heartbeatIntervalMs time between heartbeats, and so the smallest lag the router can measure
+     */
+    public ReplicaRouter(EntityManagerFactory primary, EntityManagerFactory replica, long heartbeatIntervalMs) {
+        this.primary = primary;
+        this.replica = replica;
+        this.heartbeatIntervalMs = heartbeatIntervalMs;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replica-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Measures the replica lag once and then keeps measuring it in the background.
+     * Until then every read goes to the primary.
+     */
+    public void start() {
+        if (replica == null) {
+            return;
+        }
+        heartbeat();
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                heartbeat();
+            } catch (RuntimeException e) {
+                // Keep the schedule alive; the beat ages and reads move to the primary
+                System.err.println("Replication heartbeat failed: " + e.getMessage());
+            }
+        }, heartbeatIntervalMs, heartbeatIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes a beat on the primary and reads back the newest beat the replica has applied.
+     * Runs on the heartbeat schedule after start(); callers may run it to measure right away.
+     */
+    public void heartbeat() {
+        // Step 1: Write the beat on the primary
+        long now = System.currentTimeMillis();
+        EntityManager em = primary.createEntityManager();
+        EntityTransaction tx = em.getTransaction();
+        try {
+            tx.begin();
+            ReplicationHeartbeat beat = em.find(ReplicationHeartbeat.class, ReplicationHeartbeat.HEARTBEAT_ID);
+            if (beat == null) {
+                em.persist(new ReplicationHeartbeat(ReplicationHeartbeat.HEARTBEAT_ID, now));
+            } else {
+                beat.setBeatMillis(now);
+            }
+            tx.commit();
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            em.close();
+        }
+
+        // Step 2: Read it back on the replica
+        EntityManager replicaEm = openReplicaEntityManager();
+        try {
+            ReplicationHeartbeat applied = replicaEm.find(ReplicationHeartbeat.class, ReplicationHeartbeat.HEARTBEAT_ID);
+            replicaBeatMillis = applied != null ? applied.getBeatMillis() : NO_BEAT;
+        } catch (RuntimeException e) {
+            replicaBeatMillis = NO_BEAT;
+            throw e;
+        } finally {
+            replicaEm.close();
+        }
+    }
+
+    /**
+     * @return how old the replica's data may be in milliseconds, or Long.MAX_VALUE if unknown
+     */
+    public long getReplicaLagMs() {
+        long beat = replicaBeatMillis;
+        if (replica == null || beat == NO_BEAT) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, System.currentTimeMillis() - beat);
+    }
+
+    /**
+     * Runs a read on the replica if the policy accepts the replica's current lag, and on
+     * the given primary EntityManager otherwise. Entities read on the replica are detached
+     * when this method returns. If the replica read fails, it runs again on the primary.
+     * @param policy staleness the read accepts
+     * @param primaryEm EntityManager of the caller on the primary database
+     * @param query the read to run
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T read(StalenessPolicy policy, EntityManager primaryEm, Function<EntityManager, T> query) {
+        if (routesToReplica(policy)) {
+            Object result = readOnReplica(query);
+            if (result != REPLICA_FAILED) {
+                return (T) result;
+            }
+        }
+        primaryReads.incrementAndGet();
+        return query.apply(primaryEm);
+    }
+
+    /**
+     * Same as read(policy, primaryEm, query), opening a short-lived primary EntityManager if needed.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T read(StalenessPolicy policy, Function<EntityManager, T> query) {
+        if (routesToReplica(policy)) {
+            Object result = readOnReplica(query);
+            if (result != REPLICA_FAILED) {
+                return (T) result;
+            }
+        }
+        EntityManager em = primary.createEntityManager();
+        try {
+            primaryReads.incrementAndGet();
+            return query.apply(em);
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * @return the result of the read on the replica, or REPLICA_FAILED if it threw
+     */
+    private Object readOnReplica(Function<EntityManager, ?> query) {
+        EntityManager replicaEm = null;
+        try {
+            replicaEm = openReplicaEntityManager();
+            Object result = query.apply(replicaEm);
+            replicaReads.incrementAndGet();
+            return result;
+        } catch (RuntimeException e) {
+            replicaFailures.incrementAndGet();
+            replicaBeatMillis = NO_BEAT; // Primary only until the next heartbeat reaches the replica
+            System.err.println("Replica read failed, reading from the primary: " + e.getMessage());
+            return REPLICA_FAILED;
+        } finally {
+            if (replicaEm != null && replicaEm.isOpen()) {
+                replicaEm.close();
+            }
+        }
+    }
+
+    private boolean routesToReplica(StalenessPolicy policy) {
+        if (replica == null || policy == StalenessPolicy.PRIMARY) {
+            return false;
+        }
+        if (!policy.allowsReplica(getReplicaLagMs())) {
+            laggingReplicaReads.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Opens a replica EntityManager that never flushes and loads entities read-only,
+     * so no snapshots are kept for dirty checking.
+     */
+    private EntityManager openReplicaEntityManager() {
+        EntityManager em = replica.createEntityManager();
+        em.setFlushMode(FlushModeType.COMMIT);
+        em.unwrap(Session.class).setDefaultReadOnly(true);
+        return em;
+    }
+
+    public EntityManagerFactory getPrimary() {
+        return primary;
+    }
+
+    public EntityManagerFactory getReplica() {
+        return replica;
+    }
+
+    /**
+     * Stops the heartbeat. The factories stay open; they belong to the caller.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(heartbeatIntervalMs + 5000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getPrimaryReads() {
+        return primaryReads.get();
+    }
+
+    public int getReplicaReads() {
+        return replicaReads.get();
+    }
+
+    public int getLaggingReplicaReads() {
+        return laggingReplicaReads.get();
+    }
+
+    public int getReplicaFailures() {
+        return replicaFailures.get();
+    }
+
+    @Override
+    public String toString() {
+        long lag = getReplicaLagMs();
+        return String.format("%d reads on the replica, %d on the primary (%d while the replica lagged), " +
+            "%d replica failures, replica lag %s", getReplicaReads(), getPrimaryReads(), getLaggingReplicaReads(),
+            getReplicaFailures(), lag == Long.MAX_VALUE ? "unknown" : lag + " ms");
+    }
+}
@@ -0,0 +1,46 @@
+package com.poortoys.examples.dao;
+
+/**
+ * How stale the data of one read may be, which decides whether ReplicaRouter may send
+ * it to the read replica. Locking reads, reads followed by writes and reads that must
+ * see the caller's own writes use PRIMARY.
+ */
+public final class StalenessPolicy {
+
+    // Always read from the primary
+    public static final StalenessPolicy PRIMARY = new StalenessPolicy(-1);
+
+    private final long maxStalenessMs;
+
+    private StalenessPolicy(long maxStalenessMs) {
+        this.maxStalenessMs = maxStalenessMs;
+    }
+
+    /**
+     * @param maxStalenessMs largest replication lag the read accepts, in milliseconds
+     * @return policy that reads from the replica while its lag is within maxStalenessMs
+     */
+    public static StalenessPolicy boundedStaleness(long maxStalenessMs) {
+        if (maxStalenessMs < 0) {
+            throw new IllegalArgumentException("Max staleness must not be negative: " + maxStalenessMs);
+        }
+        return new StalenessPolicy(maxStalenessMs);
+    }
+
+    /**
+     * @param replicaLagMs current replication lag of the replica
+     * @return true if this read may be served by the replica
+     */
+    public boolean allowsReplica(long replicaLagMs) {
+        return maxStalenessMs >= 0 && replicaLagMs <= maxStalenessMs;
+    }
+
+    public long getMaxStalenessMs() {
+        return maxStalenessMs;
+    }
+
+    @Override
+    public String toString() {
+        return maxStalenessMs < 0 ? "PRIMARY" : "boundedStaleness(" + maxStalenessMs + " ms)";
+    }
+}
@@ -5,10 +5,18 @@ import com.poortoys.examples.entities.TicketCategory;
 
 import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
+
+import org.hibernate.annotations.QueryHints;
+
 import java.util.List;
 
 public class TicketCategoryDAO {
 
+    // Query cache region for category lists (see ehcache.xml); invalidated whenever ticket_category changes
+    private static final String CATEGORY_LIST_REGION = "ticket-category-lists";
+    // Categories of one event; its plan is checked by IndexAdvisor
+    public static final String FIND_BY_EVENT_QUERY = "SELECT tc FROM TicketCategory tc WHERE tc.event.eventId = :eventId";
+
     private EntityManager em;
 
     public TicketCategoryDAO(EntityManager em) {
@@ -19,9 +27,10 @@ public class TicketCategoryDAO {
      * Finds all TicketCategories associated with a particular event.
      */
     public List<TicketCategory> findByEventId(Integer eventId) {
-        TypedQuery<TicketCategory> query = em.createQuery(
-            "SELECT tc FROM TicketCategory tc WHERE tc.event.eventId = :eventId", TicketCategory.class);
+        TypedQuery<TicketCategory> query = em.createQuery(FIND_BY_EVENT_QUERY, TicketCategory.class);
         query.setParameter("eventId", eventId);
+        query.setHint(QueryHints.CACHEABLE, true);
+        query.setHint(QueryHints.CACHE_REGION, CATEGORY_LIST_REGION);
         return query.getResultList();
     }
 
@@ -30,6 +39,8 @@ public class TicketCategoryDAO {
      */
     public List<TicketCategory> findAll() {
         TypedQuery<TicketCategory> query = em.createQuery("SELECT tc FROM TicketCategory tc", TicketCategory.class);
+        query.setHint(QueryHints.CACHEABLE, true);
+        query.setHint(QueryHints.CACHE_REGION, CATEGORY_LIST_REGION);
         return query.getResultList();
     }
 
@@ -13,20 +13,47 @@ import javax.persistence.TypedQuery;
 //import org.bson.types.ObjectId;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 public class TicketDAO {
 
+    // Per-event ticket counts for reports may lag the bookings by a few seconds
+    public static final StalenessPolicy CATEGORY_REPORT_STALENESS = StalenessPolicy.boundedStaleness(5_000);
+    // All tickets of one event; its plan is checked by IndexAdvisor
+    public static final String FIND_BY_EVENT_QUERY = "SELECT t FROM Ticket t WHERE t.event.eventId = :eventId";
+    // One ticket by its serial number; its plan is checked by IndexAdvisor
+    public static final String FIND_BY_SERIAL_NUMBER_QUERY = "SELECT t FROM Ticket t WHERE t.serialNumber = :serialNumber";
+
     private EntityManager em;
+    // Sends reads that tolerate staleness to the read replica, if set
+    private ReplicaRouter replicaRouter;
 
     public TicketDAO(EntityManager em) {
         this.em = em;
     }
 
+    public TicketDAO(EntityManager em, ReplicaRouter replicaRouter) {
+        this.em = em;
+        this.replicaRouter = replicaRouter;
+    }
+
+    public void setReplicaRouter(ReplicaRouter replicaRouter) {
+        this.replicaRouter = replicaRouter;
+    }
+
+    // Run a read on the replica if the router allows it under the policy, else on this DAO's EntityManager
+    private <T> T read(StalenessPolicy policy, Function<EntityManager, T> query) {
+        return replicaRouter != null ? replicaRouter.read(policy, em, query) : query.apply(em);
+    }
+
     // Find all tickets for a specific event
     public List<Ticket> findByEventId(int eventId) {
-        TypedQuery<Ticket> query = em.createQuery("SELECT t FROM Ticket t WHERE t.event.eventId = :eventId", Ticket.class);
+        TypedQuery<Ticket> query = em.createQuery(FIND_BY_EVENT_QUERY, Ticket.class);
         query.setParameter("eventId", eventId);
         return query.getResultList();
     }
@@ -41,8 +68,7 @@ public class TicketDAO {
     
     //finds and locks a ticket by its serial number using PESSIMISTIC_WRITE lock
     public Ticket findBySerialNumber(String serialNumber) {
-        TypedQuery<Ticket> query = em.createQuery(
-            "SELECT t FROM Ticket t WHERE t.serialNumber = :serialNumber", Ticket.class);
+        TypedQuery<Ticket> query = em.createQuery(FIND_BY_SERIAL_NUMBER_QUERY, Ticket.class);
         query.setParameter("serialNumber", serialNumber);
         query.setLockMode(LockModeType.PESSIMISTIC_WRITE);
         List<Ticket> results = query.getResultList();
@@ -55,11 +81,66 @@ public class TicketDAO {
         return query.getResultList();
     }
 
+    // Find the next page of tickets after lastTicketId, in ticket id order (keyset pagination)
+    public List<Ticket> findPageAfter(int lastTicketId, int pageSize) {
+        TypedQuery<Ticket> query = em.createQuery(
+            "SELECT t FROM Ticket t WHERE t.ticketId > :lastTicketId ORDER BY t.ticketId", Ticket.class);
+        query.setParameter("lastTicketId", lastTicketId);
+        query.setMaxResults(pageSize);
+        return query.getResultList();
+    }
+
+    // Find the next page of an event's tickets after lastTicketId; served by the event_id index,
+    // whose entries InnoDB keeps sorted by ticket id
+    public List<Ticket> findByEventIdPageAfter(int eventId, int lastTicketId, int pageSize) {
+        TypedQuery<Ticket> query = em.createQuery(
+            "SELECT t FROM Ticket t WHERE t.event.eventId = :eventId AND t.ticketId > :lastTicketId " +
+            "ORDER BY t.ticketId", Ticket.class);
+        query.setParameter("eventId", eventId);
+        query.setParameter("lastTicketId", lastTicketId);
+        query.setMaxResults(pageSize);
+        return query.getResultList();
+    }
+
+    // Stream all tickets page by page in constant memory; clears this DAO's EntityManager between pages
+    public Stream<Ticket> streamAll(int pageSize) {
+        return KeysetPager.stream(em, this::findPageAfter, Ticket::getTicketId, pageSize);
+    }
+
+    public Stream<Ticket> streamAll() {
+        return streamAll(KeysetPager.DEFAULT_PAGE_SIZE);
+    }
+
+    // Stream an event's tickets page by page in constant memory; clears this DAO's EntityManager between pages
+    public Stream<Ticket> streamByEventId(int eventId, int pageSize) {
+        return KeysetPager.stream(em,
+            (lastTicketId, size) -> findByEventIdPageAfter(eventId, lastTicketId, size),
+            Ticket::getTicketId, pageSize);
+    }
+
+    public Stream<Ticket> streamByEventId(int eventId) {
+        return streamByEventId(eventId, KeysetPager.DEFAULT_PAGE_SIZE);
+    }
+
     // Persist a new ticket into the database
     public void create(Ticket ticket) {
         em.persist(ticket);
     }
 
+    // Find the serial numbers of all tickets of an event without loading or locking the tickets
+    public Set<String> findSerialNumbersByEventId(int eventId) {
+        TypedQuery<String> query = em.createQuery(
+            "SELECT t.serialNumber FROM Ticket t WHERE t.event.eventId = :eventId", String.class);
+        query.setParameter("eventId", eventId);
+        return new HashSet<>(query.getResultList());
+    }
+
+    // Send pending inserts to the database as JDBC batches and detach them from the persistence context
+    public void flushAndClear() {
+        em.flush();
+        em.clear();
+    }
+
     // Update an existing ticket in the database
     public Ticket update(Ticket ticket) {
         return em.merge(ticket);
@@ -72,8 +153,12 @@ public class TicketDAO {
 
     // Count the total number of tickets
     public Long count() {
-        TypedQuery<Long> query = em.createQuery("SELECT COUNT(t) FROM Ticket t", Long.class);
-        return query.getSingleResult();
+        return count(StalenessPolicy.PRIMARY);
+    }
+
+    public Long count(StalenessPolicy policy) {
+        return read(policy, readEm -> readEm.createQuery("SELECT COUNT(t) FROM Ticket t", Long.class)
+            .getSingleResult());
     }
     
     public List<Ticket> findAvailableTicketsWithLock(Integer eventId, TicketDAO status, int limit) {
@@ -97,12 +182,16 @@ public class TicketDAO {
     
 
     public Map<String, Integer> getTotalTicketsByCategory(int eventId) {
+        return getTotalTicketsByCategory(eventId, CATEGORY_REPORT_STALENESS);
+    }
+
+    public Map<String, Integer> getTotalTicketsByCategory(int eventId, StalenessPolicy policy) {
         Map<String, Integer> totalTicketsByCategory = new HashMap<>();
-        TypedQuery<Object[]> query = em.createQuery(
-            "SELECT t.ticketCategory.categoryName, COUNT(t) FROM Ticket t WHERE t.event.eventId = :eventId GROUP BY t.ticketCategory.categoryName",
-            Object[].class);
-        query.setParameter("eventId", eventId);
-        List<Object[]> results = query.getResultList();
+        List<Object[]> results = read(policy, readEm -> readEm.createQuery(
+            "SELECT t.ticketCategory.description, COUNT(t) FROM Ticket t WHERE t.event.eventId = :eventId GROUP BY t.ticketCategory.description",
+            Object[].class)
+            .setParameter("eventId", eventId)
+            .getResultList());
         for (Object[] result : results) {
             String categoryName = (String) result[0];
             Long count = (Long) result[1];
@@ -116,13 +205,17 @@ public class TicketDAO {
     
     
     public Map<String, Integer> getTicketsBookedByCategory(int eventId) {
+        return getTicketsBookedByCategory(eventId, CATEGORY_REPORT_STALENESS);
+    }
+
+    public Map<String, Integer> getTicketsBookedByCategory(int eventId, StalenessPolicy policy) {
         Map<String, Integer> ticketsBookedByCategory = new HashMap<>();
-        TypedQuery<Object[]> query = em.createQuery(
-            "SELECT t.ticketCategory.categoryName, COUNT(t) FROM Ticket t WHERE t.event.eventId = :eventId AND t.status = :status GROUP BY t.ticketCategory.categoryName",
-            Object[].class);
-        query.setParameter("eventId", eventId);
-        query.setParameter("status", TicketStatus.SOLD); // Adjust as per your TicketStatus enum
-        List<Object[]> results = query.getResultList();
+        List<Object[]> results = read(policy, readEm -> readEm.createQuery(
+            "SELECT t.ticketCategory.description, COUNT(t) FROM Ticket t WHERE t.event.eventId = :eventId AND t.status = :status GROUP BY t.ticketCategory.description",
+            Object[].class)
+            .setParameter("eventId", eventId)
+            .setParameter("status", TicketStatus.SOLD) // Adjust as per your TicketStatus enum
+            .getResultList());
         for (Object[] result : results) {
             String categoryName = (String) result[0];
             Long count = (Long) result[1];
@@ -6,23 +6,45 @@ import com.poortoys.examples.entities.User;
 import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
 import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 public class UserDAO {
 
+    // New users only need to show up in user lists within a few seconds
+    public static final StalenessPolicy USER_LIST_STALENESS = StalenessPolicy.boundedStaleness(10_000);
+    // A user by email, and by username; their plans are checked by IndexAdvisor
+    public static final String FIND_BY_EMAIL_QUERY = "SELECT u FROM User u WHERE u.email = :email";
+    public static final String FIND_BY_USERNAME_QUERY = "SELECT u FROM User u WHERE u.userName = :username";
+
     private EntityManager em;
+    // Sends reads that tolerate staleness to the read replica, if set
+    private ReplicaRouter replicaRouter;
 
     public UserDAO(EntityManager em) {
         this.em = em;
     }
 
+    public UserDAO(EntityManager em, ReplicaRouter replicaRouter) {
+        this.em = em;
+        this.replicaRouter = replicaRouter;
+    }
+
+    public void setReplicaRouter(ReplicaRouter replicaRouter) {
+        this.replicaRouter = replicaRouter;
+    }
+
+    private <T> T read(StalenessPolicy policy, Function<EntityManager, T> query) {
+        return replicaRouter != null ? replicaRouter.read(policy, em, query) : query.apply(em);
+    }
+
     /**
      * Finds a User by their email.
      * @param email Email of the user.
      * @return User object if found, else null.
      */
     public User findByEmail(String email) {
-        TypedQuery<User> query = em.createQuery(
-            "SELECT u FROM User u WHERE u.email = :email", User.class);
+        TypedQuery<User> query = em.createQuery(FIND_BY_EMAIL_QUERY, User.class);
         query.setParameter("email", email);
         List<User> results = query.getResultList();
         return results.isEmpty() ? null : results.get(0);
@@ -36,13 +58,46 @@ public class UserDAO {
      * Retrieves all Users from the database.
      */
     public List<User> findAll() {
-        TypedQuery<User> query = em.createQuery("SELECT u FROM User u", User.class);
+        return findAll(USER_LIST_STALENESS);
+    }
+
+    /**
+     * Retrieves all Users, from the read replica if the policy allows it.
+     * Users read on the replica are detached.
+     * @param policy Staleness the caller accepts.
+     */
+    public List<User> findAll(StalenessPolicy policy) {
+        return read(policy, readEm -> readEm.createQuery("SELECT u FROM User u", User.class).getResultList());
+    }
+
+    /**
+     * Retrieves the next page of Users after a user id, in user id order (keyset pagination).
+     * @param lastUserId Id of the last user of the previous page, or 0 for the first page.
+     * @param pageSize Maximum number of users to return.
+     */
+    public List<User> findPageAfter(int lastUserId, int pageSize) {
+        TypedQuery<User> query = em.createQuery(
+            "SELECT u FROM User u WHERE u.userId > :lastUserId ORDER BY u.userId", User.class);
+        query.setParameter("lastUserId", lastUserId);
+        query.setMaxResults(pageSize);
         return query.getResultList();
     }
+
+    /**
+     * Streams all Users page by page, holding one page in memory at a time.
+     * The EntityManager of this DAO is cleared between pages.
+     * @param pageSize Number of users fetched per query.
+     */
+    public Stream<User> streamAll(int pageSize) {
+        return KeysetPager.stream(em, this::findPageAfter, User::getUserId, pageSize);
+    }
+
+    public Stream<User> streamAll() {
+        return streamAll(KeysetPager.DEFAULT_PAGE_SIZE);
+    }
     
     public User findByUsername(String username) {
-        TypedQuery<User> query = em.createQuery(
-            "SELECT u FROM User u WHERE u.userName = :username", User.class);
+        TypedQuery<User> query = em.createQuery(FIND_BY_USERNAME_QUERY, User.class);
         query.setParameter("username", username);
         List<User> results = query.getResultList();
         return results.isEmpty() ? null : results.get(0);
@@ -75,11 +130,20 @@ public class UserDAO {
     }
 
     /**
-     * Counts the total number of Users.
+     * Counts the total number of Users on the primary.
+     * Reports that accept a stale count pass USER_LIST_STALENESS to count(policy).
      * @return Total count of users.
      */
     public Long count() {
-        TypedQuery<Long> query = em.createQuery("SELECT COUNT(u) FROM User u", Long.class);
-        return query.getSingleResult();
+        return count(StalenessPolicy.PRIMARY);
+    }
+
+    /**
+     * Counts the Users, on the read replica if the policy allows it.
+     * @param policy Staleness the caller accepts.
+     * @return Total count of users.
+     */
+    public Long count(StalenessPolicy policy) {
+        return read(policy, readEm -> readEm.createQuery("SELECT COUNT(u) FROM User u", Long.class).getSingleResult());
     }
 }
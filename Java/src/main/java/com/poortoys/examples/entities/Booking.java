@@ -2,6 +2,9 @@ package com.poortoys.examples.entities;
 
 import javax.persistence.*;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Date;
@@ -12,12 +15,19 @@ import java.util.List;
  * Represents a booking made by a user for tickets.
  */
 @Entity
-@Table(name = "bookings")
+@Table(name = "bookings", indexes = {
+        @Index(name = "idx_bookings_user_status", columnList = "user_id, booking_status") // A user's bookings by status
+})
 public class Booking {
 
-    // Primary key of the bookings table, auto-generated
+    // Primary key of the bookings table, allocated in blocks of 50 from bookings_seq so inserts can be batched
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "booking_id_generator")
+    @GenericGenerator(name = "booking_id_generator", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+            @Parameter(name = "sequence_name", value = "bookings_seq"),
+            @Parameter(name = "increment_size", value = "50"),
+            @Parameter(name = "optimizer", value = "pooled-lo")
+    })
     @Column(name = "booking_id")
     private int bookingId;
 
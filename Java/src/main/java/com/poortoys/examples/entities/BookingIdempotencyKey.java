@@ -0,0 +1,90 @@
+package com.poortoys.examples.entities;
+
+import javax.persistence.*;
+
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
+import java.util.Date;
+
+/**
+ * Records the client request id a booking was created for.
+ * The (user, key) pair is unique, so a retried request finds the original booking
+ * instead of booking again, and two racing retries cannot both commit a booking.
+ */
+@Entity
+@Table(name = "booking_idempotency_keys", uniqueConstraints = {
+        @UniqueConstraint(name = "uk_booking_idempotency_user_key", columnNames = {"user_id", "idempotency_key"})
+})
+public class BookingIdempotencyKey {
+
+    // Primary key of the booking_idempotency_keys table, allocated like the booking ids so it batches with them
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "booking_idempotency_key_id_generator")
+    @GenericGenerator(name = "booking_idempotency_key_id_generator", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+            @Parameter(name = "sequence_name", value = "booking_idempotency_keys_seq"),
+            @Parameter(name = "increment_size", value = "50"),
+            @Parameter(name = "optimizer", value = "pooled-lo")
+    })
+    @Column(name = "booking_idempotency_key_id")
+    private int bookingIdempotencyKeyId;
+
+    // User who sent the request; keys only need to be unique per user
+    @Column(name = "user_id", nullable = false)
+    private int userId;
+
+    // Client-chosen request id, reused by the client on every retry of the same request
+    @Column(name = "idempotency_key", nullable = false, length = 64)
+    private String idempotencyKey;
+
+    // Booking created for the request
+    @OneToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "booking_id", nullable = false)
+    private Booking booking;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "created_at", nullable = false)
+    private Date createdAt;
+
+    // Default constructor required by JPA
+    public BookingIdempotencyKey() {
+    }
+
+    public BookingIdempotencyKey(int userId, String idempotencyKey, Booking booking, Date createdAt) {
+        this.userId = userId;
+        this.idempotencyKey = idempotencyKey;
+        this.booking = booking;
+        this.createdAt = createdAt;
+    }
+
+    // Getters and setters
+
+    public int getBookingIdempotencyKeyId() {
+        return bookingIdempotencyKeyId;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public Booking getBooking() {
+        return booking;
+    }
+
+    public Date getCreatedAt() {
+        return createdAt;
+    }
+
+    @Override
+    public String toString() {
+        return "BookingIdempotencyKey{" +
+                "userId=" + userId +
+                ", idempotencyKey='" + idempotencyKey + '\'' +
+                ", createdAt=" + createdAt +
+                '}';
+    }
+}
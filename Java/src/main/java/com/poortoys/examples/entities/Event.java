@@ -3,11 +3,17 @@ package com.poortoys.examples.entities;
 
 import javax.persistence.*;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
 import java.util.Date;
 
 /**
  * Represents an event where performers take place at a venue.
  */
+// Read on every ticket load and practically static during an on-sale
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
 @Entity
 @Table(name = "events")
 public class Event {
@@ -1,5 +1,6 @@
 package com.poortoys.examples.entities;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
@@ -8,7 +9,13 @@ import javax.persistence.Id;
 import javax.persistence.Table;
 import javax.persistence.UniqueConstraint;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
+
+// Genres are reference data, written once by the initializer
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_ONLY)
 @Entity //Specifies that the class is an entity and is mapped to a database table
 @Table(name = "genres",uniqueConstraints = {@UniqueConstraint(columnNames = {"genre_name"})}) //Maps the entity to the tickets table
 public class Genre {
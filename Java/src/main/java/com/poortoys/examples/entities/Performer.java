@@ -2,9 +2,15 @@ package com.poortoys.examples.entities;
 
 import javax.persistence.*;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
 import java.util.Date;
 
 
+// Loaded with every event; nothing updates performers after initialization
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_ONLY)
 @Entity //Specifies that the class is an entity and is mapped to a database table
 @Table(name = "performers")
 public class Performer {
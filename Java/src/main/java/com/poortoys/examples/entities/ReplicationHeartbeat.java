@@ -0,0 +1,52 @@
+package com.poortoys.examples.entities;
+
+import javax.persistence.*;
+
+/**
+ * Heartbeat row written on the primary database at a fixed rate. Reading it back on a
+ * read replica shows how far behind the primary the replica is: the replica lags by
+ * about the time since the beat it has applied last.
+ */
+@Entity
+@Table(name = "replication_heartbeat")
+public class ReplicationHeartbeat {
+
+    // The single heartbeat row
+    public static final int HEARTBEAT_ID = 1;
+
+    @Id
+    @Column(name = "heartbeat_id")
+    private int heartbeatId;
+
+    // Time of the beat in epoch milliseconds, taken from the writer's clock
+    @Column(name = "beat_millis", nullable = false)
+    private long beatMillis;
+
+    // Default constructor required by JPA
+    public ReplicationHeartbeat() {
+    }
+
+    public ReplicationHeartbeat(int heartbeatId, long beatMillis) {
+        this.heartbeatId = heartbeatId;
+        this.beatMillis = beatMillis;
+    }
+
+    // Getters and setters
+
+    public int getHeartbeatId() {
+        return heartbeatId;
+    }
+
+    public long getBeatMillis() {
+        return beatMillis;
+    }
+
+    public void setBeatMillis(long beatMillis) {
+        this.beatMillis = beatMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicationHeartbeat [heartbeatId=" + heartbeatId + ", beatMillis=" + beatMillis + "]";
+    }
+}
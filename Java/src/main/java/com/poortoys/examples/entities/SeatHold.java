@@ -0,0 +1,85 @@
+package com.poortoys.examples.entities;
+
+import javax.persistence.*;
+
+import java.util.Date;
+
+/**
+ * Represents a timed hold on tickets during checkout.
+ * The held tickets are RESERVED and carry the hold token; the hold remembers who
+ * will book them and when they are released again if checkout is not completed.
+ */
+@Entity
+@Table(name = "seat_holds", indexes = {
+        @Index(name = "idx_seat_holds_expires_at", columnList = "expires_at") // Lets the sweeper find expired holds without a full scan
+})
+public class SeatHold {
+
+    // Primary key of the seat_holds table, a random token handed to the client
+    @Id
+    @Column(name = "hold_token", length = 36)
+    private String holdToken;
+
+    // User who will own the booking once the hold is confirmed
+    @Column(name = "user_id", nullable = false)
+    private int userId;
+
+    @Column(name = "delivery_address_email", length = 100)
+    private String deliveryAddressEmail;
+
+    // Number of tickets held, checked again when the hold is confirmed
+    @Column(name = "ticket_count", nullable = false)
+    private int ticketCount;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "expires_at", nullable = false)
+    private Date expiresAt;
+
+    // Default constructor required by JPA
+    public SeatHold() {
+    }
+
+    public SeatHold(String holdToken, int userId, String deliveryAddressEmail, int ticketCount, Date expiresAt) {
+        this.holdToken = holdToken;
+        this.userId = userId;
+        this.deliveryAddressEmail = deliveryAddressEmail;
+        this.ticketCount = ticketCount;
+        this.expiresAt = expiresAt;
+    }
+
+    // Getters and setters
+
+    public String getHoldToken() {
+        return holdToken;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public String getDeliveryAddressEmail() {
+        return deliveryAddressEmail;
+    }
+
+    public int getTicketCount() {
+        return ticketCount;
+    }
+
+    public Date getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(Date expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    @Override
+    public String toString() {
+        return "SeatHold{" +
+                "holdToken='" + holdToken + '\'' +
+                ", userId=" + userId +
+                ", ticketCount=" + ticketCount +
+                ", expiresAt=" + expiresAt +
+                '}';
+    }
+}
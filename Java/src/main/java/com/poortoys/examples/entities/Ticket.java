@@ -2,18 +2,30 @@ package com.poortoys.examples.entities;
 
 import javax.persistence.*;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
 import java.math.BigDecimal;
 import java.util.Date;
 
 //Represents an individual ticket for an event
 
 @Entity
-@Table(name = "tickets")
+@Table(name = "tickets", indexes = {
+		@Index(name = "idx_tickets_hold_token", columnList = "hold_token"), // Finds the tickets of a hold on confirm and release
+		@Index(name = "idx_tickets_event_status_serial", columnList = "event_id, status, serial_number"), // Covers available serials and counts
+		@Index(name = "idx_tickets_event_category_status", columnList = "event_id, ticket_category_id, status") // Best-available picks per category
+})
 public class Ticket {
 	
-	//Primary key of the tickets table, auto-generated
+	//Primary key of the tickets table, allocated in blocks of 50 from tickets_seq so inserts can be batched
 	@Id
-	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "ticket_id_generator")
+	@GenericGenerator(name = "ticket_id_generator", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+		@Parameter(name = "sequence_name", value = "tickets_seq"),
+		@Parameter(name = "increment_size", value = "50"),
+		@Parameter(name = "optimizer", value = "pooled-lo")
+	})
 	@Column(name = "ticket_id")
 	private int ticketId;
 	
@@ -57,6 +69,10 @@ public class Ticket {
 	@Column(name = "purchase_date")
 	private Date purchaseDate;
 	
+	//Token of the SeatHold that reserved this ticket, null unless the ticket is RESERVED
+	@Column(name = "hold_token", length = 36)
+	private String holdToken;
+	
 	//Default constructor
 	public Ticket() {
 		// TODO Auto-generated constructor stub
@@ -147,6 +163,14 @@ public class Ticket {
 		this.purchaseDate = purchaseDate;
 	}
 
+	public String getHoldToken() {
+		return holdToken;
+	}
+
+	public void setHoldToken(String holdToken) {
+		this.holdToken = holdToken;
+	}
+
 	@Override
 	public String toString() {
 		return "Ticket [ticketId=" + ticketId + 
@@ -2,11 +2,19 @@ package com.poortoys.examples.entities;
 
 import javax.persistence.*;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
 import java.math.*;
 import java.util.Date;
 
+// Nonstrict rather than read-only, so an admin can still correct a price or sale window
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
 @Entity
-@Table(name = "ticket_category")
+@Table(name = "ticket_category", indexes = {
+		@Index(name = "idx_ticket_category_event_dates", columnList = "event_id, start_date, end_date") // Categories of an event and their sale windows
+})
 public class TicketCategory {
 	
 	//Category of tickets for an event
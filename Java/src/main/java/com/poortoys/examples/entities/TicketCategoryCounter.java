@@ -0,0 +1,109 @@
+package com.poortoys.examples.entities;
+
+import javax.persistence.*;
+
+/**
+ * One shard of the available / reserved / sold counters of a ticket category.
+ * Every category has a fixed number of shard rows; a ticket status change updates one
+ * of them in the booking transaction, so concurrent bookings of the same category do
+ * not all queue on a single row. A category's counts are the sum over its shards.
+ */
+@Entity
+@Table(name = "ticket_category_counters", uniqueConstraints = {
+        @UniqueConstraint(name = "uk_ticket_category_counters_shard", columnNames = {"ticket_category_id", "shard"})
+}, indexes = {
+        @Index(name = "idx_ticket_category_counters_event", columnList = "event_id") // Sums an event's categories without a full scan
+})
+public class TicketCategoryCounter {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "ticket_category_counter_id")
+    private int ticketCategoryCounterId;
+
+    @Column(name = "event_id", nullable = false)
+    private int eventId;
+
+    @Column(name = "ticket_category_id", nullable = false)
+    private int ticketCategoryId;
+
+    // Shard number, 0 to shard count - 1
+    @Column(name = "shard", nullable = false)
+    private int shard;
+
+    // Per-shard deltas; a single shard may go negative, only the sum over shards is meaningful
+    @Column(name = "available", nullable = false)
+    private long available;
+
+    @Column(name = "reserved", nullable = false)
+    private long reserved;
+
+    @Column(name = "sold", nullable = false)
+    private long sold;
+
+    // Default constructor required by JPA
+    public TicketCategoryCounter() {
+    }
+
+    public TicketCategoryCounter(int eventId, int ticketCategoryId, int shard, long available, long reserved, long sold) {
+        this.eventId = eventId;
+        this.ticketCategoryId = ticketCategoryId;
+        this.shard = shard;
+        this.available = available;
+        this.reserved = reserved;
+        this.sold = sold;
+    }
+
+    // Getters and setters
+
+    public int getTicketCategoryCounterId() {
+        return ticketCategoryCounterId;
+    }
+
+    public int getEventId() {
+        return eventId;
+    }
+
+    public int getTicketCategoryId() {
+        return ticketCategoryId;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public long getAvailable() {
+        return available;
+    }
+
+    public void setAvailable(long available) {
+        this.available = available;
+    }
+
+    public long getReserved() {
+        return reserved;
+    }
+
+    public void setReserved(long reserved) {
+        this.reserved = reserved;
+    }
+
+    public long getSold() {
+        return sold;
+    }
+
+    public void setSold(long sold) {
+        this.sold = sold;
+    }
+
+    @Override
+    public String toString() {
+        return "TicketCategoryCounter{" +
+                "ticketCategoryId=" + ticketCategoryId +
+                ", shard=" + shard +
+                ", available=" + available +
+                ", reserved=" + reserved +
+                ", sold=" + sold +
+                '}';
+    }
+}
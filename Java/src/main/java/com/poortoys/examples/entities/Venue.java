@@ -1,10 +1,16 @@
 package com.poortoys.examples.entities;
 import javax.persistence.*;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
 
 /**
  * Represents a venue where events take place.
  */
+// Read-only cache: venue rows are inserted once and never changed
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_ONLY)
 @Entity
 @Table(name = "venues")
 public class Venue {
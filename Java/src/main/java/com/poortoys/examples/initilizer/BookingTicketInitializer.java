@@ -4,11 +4,16 @@ import com.poortoys.examples.dao.BookingTicketDAO;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.poortoys.examples.dao.BookingDAO;
 import com.poortoys.examples.dao.UserDAO;
 import com.poortoys.examples.dao.TicketDAO;
 import com.poortoys.examples.entities.Booking;
+import com.poortoys.examples.entities.BookingStatus;
 import com.poortoys.examples.entities.BookingTicket;
 import com.poortoys.examples.entities.Ticket;
 import com.poortoys.examples.entities.User;
@@ -35,28 +40,23 @@ public class BookingTicketInitializer implements Initializer {
     public void initialize() {
         System.out.println("\n=== Starting BookingTicket Initialization ===");
         
-        // Debug: Print all users
+        // Debug: Count users, tickets and bookings instead of printing every row,
+        // so the check stays cheap and in constant memory on large tables
         System.out.println("\nVerifying Users:");
-        List<User> allUsers = userDAO.findAll();
-        for (User user : allUsers) {
-            System.out.println("Found User: " + user.getUserName());
-        }
+        System.out.println("Found Users: " + userDAO.count());
 
-        // Debug: Print all tickets
         System.out.println("\nVerifying Tickets:");
-        List<Ticket> allTickets = ticketDAO.findAll();
-        for (Ticket ticket : allTickets) {
-            System.out.println("Found Ticket: " + ticket.getSerialNumber());
-        }
+        System.out.println("Found Tickets: " + ticketDAO.count());
 
-        // Debug: Print all bookings
+        // Debug: Count bookings per status, streamed page by page
         System.out.println("\nVerifying Bookings:");
-        List<Booking> allBookings = bookingDAO.findAll();
-        for (Booking booking : allBookings) {
-            System.out.println("Found Booking: ID=" + booking.getBookingId() + 
-                             ", User=" + booking.getUser().getUserName() + 
-                             ", Status=" + booking.getBookingStatus());
+        Map<BookingStatus, Long> bookingsByStatus;
+        try (Stream<Booking> bookings = bookingDAO.streamAll()) {
+            bookingsByStatus = bookings.collect(
+                Collectors.groupingBy(Booking::getBookingStatus, TreeMap::new, Collectors.counting()));
         }
+        bookingsByStatus.forEach((status, count) ->
+            System.out.println("Found Bookings: Status=" + status + ", Count=" + count));
 
         // Now try to create the associations
         try {
@@ -9,13 +9,19 @@ import com.poortoys.examples.entities.TicketCategory;
 import com.poortoys.examples.entities.TicketStatus;
 
 import java.util.List;
+import java.util.Set;
 
 /**
  * Initializes the database with ticket data for each event and ticket category.
  * Prevents duplicates by checking for existing tickets based on serial numbers.
+ * Tickets are flushed in groups matching hibernate.jdbc.batch_size so the inserts
+ * are sent as JDBC batches.
  */
 public class TicketInitializer implements Initializer {
 
+    // Tickets persisted between flushes, matches hibernate.jdbc.batch_size in persistence.xml
+    private static final int BATCH_SIZE = 50;
+
     // DAO instances for database interaction
     private final TicketDAO ticketDAO;
     private final EventDAO eventDAO;
@@ -41,10 +47,16 @@ public class TicketInitializer implements Initializer {
     @Override
     public void initialize() {
         System.out.println("Initializing tickets...");
+        long start = System.nanoTime();
+        int inserted = 0;
+        int pending = 0; // Tickets persisted since the last flush
 
         // Loop through each event
         for (Event event : eventDAO.findAll()) {
 
+            // Load the existing serial numbers once instead of querying (and locking) per ticket
+            Set<String> existingSerials = ticketDAO.findSerialNumbersByEventId(event.getEventId());
+
             // Retrieve categories for the current event by event ID
             List<TicketCategory> categories = ticketCategoryDAO.findByEventId(event.getEventId());
 
@@ -64,7 +76,7 @@ public class TicketInitializer implements Initializer {
                         String serialNumber = generateSerialNumber(event, category, seatNumber++);
 
                         //check if the ticket with this serial number already exists
-                        if (ticketDAO.findBySerialNumber(serialNumber) == null) {
+                        if (!existingSerials.contains(serialNumber)) {
                             // If not, create and save a new Ticket object
                             Ticket ticket = new Ticket(
                                     serialNumber,
@@ -76,15 +88,23 @@ public class TicketInitializer implements Initializer {
                                     TicketStatus.AVAILABLE
                             );
                             ticketDAO.create(ticket);  // Persist ticket to the database
-                            System.out.println("Added ticket: " + serialNumber);
-                        } else {
-                            System.out.println("Ticket with serial number " + serialNumber + " already exists, skipping.");
+                            inserted++;
+                            if (++pending == BATCH_SIZE) {
+                                ticketDAO.flushAndClear(); // One JDBC batch, and keep the persistence context small
+                                pending = 0;
+                            }
                         }
                     }
                 }
+                System.out.println("Added tickets for event " + event.getEventName() + ", category " +
+                        category.getDescription());
             }
         }
-        System.out.println("Tickets initialization completed.");
+        ticketDAO.flushAndClear();
+
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        System.out.printf("Tickets initialization completed: %d tickets inserted in %.2f s (%.0f inserts/s)%n",
+                inserted, seconds, seconds > 0 ? inserted / seconds : 0);
     }
 
     /**
@@ -0,0 +1,203 @@
+/**
+ * AsyncBookingService offers non-blocking booking calls on top of BookingService.
+ * Bookings run on a fixed set of worker threads, one per connection UnitOfWork lets
+ * bookings hold at once, fed by a bounded queue. At most (workers + queue capacity)
+ * bookings are admitted at a time; beyond that a call either waits up to the admission
+ * timeout for room (deferral) or is rejected immediately, so an overloaded system fails
+ * fast instead of letting queueing latency grow without bound.
+ */
+
+package com.poortoys.examples.simulation;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import javax.persistence.EntityManagerFactory;
+import com.poortoys.examples.entities.Booking;
+
+public class AsyncBookingService implements AutoCloseable {
+    // Configuration defaults
+    private static final String POOL_SIZE_PROPERTY = "hibernate.c3p0.max_size"; // Connection pool size in persistence.xml
+    private static final int DEFAULT_POOL_SIZE = 10; // Used when the pool size is not configured
+
+    private final BookingService bookingService;
+    private final ThreadPoolExecutor executor;
+    private final Semaphore admissions; // One permit per booking that may be running or queued
+    private final long admissionTimeoutMillis;
+
+    // Metrics for backpressure
+    private final AtomicInteger submitted = new AtomicInteger(0);
+    private final AtomicInteger rejected = new AtomicInteger(0);
+    private final AtomicInteger completed = new AtomicInteger(0);
+    private final AtomicInteger peakQueueDepth = new AtomicInteger(0);
+
+    /**
+     * Creates an async service with one worker per connection a unit of work may hold, and a
+     * queue of the same size; more workers would only wait for UnitOfWork's permits.
+     * @param bookingService service that executes the bookings
+     * @param emf factory whose connection pool size sizes the workers and the queue
+     * @param admissionTimeoutMillis how long a call waits for room when saturated; 0 rejects immediately
+     */
+    public AsyncBookingService(BookingService bookingService, EntityManagerFactory emf, long admissionTimeoutMillis) {
+        this(bookingService, UnitOfWork.connectionPermits(emf), UnitOfWork.connectionPermits(emf),
+            admissionTimeoutMillis);
+    }
+
+    /**
+     * @param bookingService service that executes the bookings
+     * @param workerThreads number of bookings running at once
+     * @param queueCapacity number of admitted bookings waiting for a worker
+     * @param admissionTimeoutMillis how long a call waits for room when saturated; 0 rejects immediately
+     */
+    public AsyncBookingService(BookingService bookingService, int workerThreads, int queueCapacity,
+                               long admissionTimeoutMillis) {
+        this.bookingService = bookingService;
+        this.admissionTimeoutMillis = admissionTimeoutMillis;
+        this.admissions = new Semaphore(workerThreads + queueCapacity);
+        AtomicInteger threadNumber = new AtomicInteger(0);
+        // The semaphore is the real bound; the queue has room for every permit because a worker
+        // releases its permit a moment before it takes the next task
+        this.executor = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(workerThreads + queueCapacity), runnable -> {
+                Thread thread = new Thread(runnable, "booking-async-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * Reads the maximum connection pool size configured for the persistence unit.
+     */
+    static int connectionPoolSize(EntityManagerFactory emf) {
+        Object value = emf.getProperties().get(POOL_SIZE_PROPERTY);
+        return value != null ? Integer.parseInt(value.toString().trim()) : DEFAULT_POOL_SIZE;
+    }
+
+    /**
+     * Books exact tickets asynchronously.
+     * @param userId ID of the user making the booking
+     * @param ticketSerials List of ticket serial numbers to book
+     * @param email Email address for booking confirmation
+     * @return future completed with the booking; completed exceptionally with a
+     *         BookingRejectedException if the service is saturated, or with the booking failure
+     */
+    public CompletableFuture<Booking> createBookingAsync(int userId, List<String> ticketSerials, String email) {
+        return submit(() -> bookingService.createBooking(userId, ticketSerials, email));
+    }
+
+    /**
+     * Books any free tickets of a category asynchronously.
+     * @see BookingService#bookAnyAvailable(int, int, int, int, String)
+     */
+    public CompletableFuture<Booking> bookAnyAvailableAsync(int userId, int eventId, int ticketCategoryId,
+                                                            int quantity, String email) {
+        return submit(() -> bookingService.bookAnyAvailable(userId, eventId, ticketCategoryId, quantity, email));
+    }
+
+    /**
+     * Admits a booking if there is room, waiting up to the admission timeout.
+     */
+    private CompletableFuture<Booking> submit(Supplier<Booking> booking) {
+        CompletableFuture<Booking> result = new CompletableFuture<>();
+        if (!acquireAdmission()) {
+            rejected.incrementAndGet();
+            result.completeExceptionally(new BookingRejectedException(
+                "Booking rejected: " + getInFlight() + " bookings in flight, queue depth " + getQueueDepth()));
+            return result;
+        }
+
+        submitted.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(booking.get());
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    completed.incrementAndGet();
+                    admissions.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            // Only happens after close(); the permit was never handed to a task
+            admissions.release();
+            submitted.decrementAndGet();
+            rejected.incrementAndGet();
+            result.completeExceptionally(new BookingRejectedException("Booking rejected: " + e.getMessage()));
+            return result;
+        }
+        peakQueueDepth.accumulateAndGet(executor.getQueue().size(), Math::max);
+        return result;
+    }
+
+    private boolean acquireAdmission() {
+        if (admissionTimeoutMillis <= 0) {
+            return admissions.tryAcquire();
+        }
+        try {
+            return admissions.tryAcquire(admissionTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Restore the interrupted status
+            return false;
+        }
+    }
+
+    /**
+     * Stops accepting bookings and waits for the admitted ones to finish.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return bookings admitted and waiting for a worker
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getPeakQueueDepth() {
+        return peakQueueDepth.get();
+    }
+
+    /**
+     * @return bookings admitted and not completed yet, running or queued
+     */
+    public int getInFlight() {
+        return submitted.get() - completed.get();
+    }
+
+    public int getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public int getRejectedCount() {
+        return rejected.get();
+    }
+
+    public int getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * Raised when a booking is not admitted because the service is saturated.
+     */
+    public static class BookingRejectedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public BookingRejectedException(String message) {
+            super(message);
+        }
+    }
+}
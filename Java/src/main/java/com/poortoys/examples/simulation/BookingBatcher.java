@@ -0,0 +1,486 @@
+/**
+ * BookingBatcher is a group-commit front-end for BookingService.
+ * Incoming booking requests are collected for a few milliseconds (or until the batch is full)
+ * and executed together in one transaction, so the whole batch pays for a single
+ * begin/flush/commit and a single redo-log fsync.
+ *
+ * Each request keeps its own outcome: conflicting requests are filtered out before
+ * anything is written, and every caller's CompletableFuture is completed individually.
+ * A request fails if its user does not exist, if one of its tickets is no longer
+ * available, or if an earlier request in the same batch won one of its tickets once
+ * the batch commits. If the batch transaction itself fails, its undecided requests fall
+ * back to one BookingService.createBooking call each, in batch order, on a separate
+ * fallback thread so the batch thread keeps committing; a request that lost a ticket
+ * to an earlier one is only tried if that request failed too.
+ *
+ * Requests the batch cannot serve go straight to the BookingService: tickets of events
+ * served from its seat inventory, and requests carrying a client request id, whose
+ * replay check belongs to the service. Category counters, and with them the sold-out
+ * registry, are updated in the batch transaction.
+ */
+
+package com.poortoys.examples.simulation;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.TemporalType;
+import com.poortoys.examples.entities.*;
+
+public class BookingBatcher implements AutoCloseable {
+    // Configuration defaults
+    private static final int DEFAULT_MAX_BATCH_SIZE = 50; // Requests committed together
+    private static final long DEFAULT_MAX_DELAY_MS = 5; // Maximum time a request waits for its batch
+
+    private final EntityManagerFactory emf;
+    private final BookingService fallbackService; // Used when a whole batch fails
+    private final int maxBatchSize;
+    private final long maxDelayMs;
+    private final BlockingQueue<BookingRequest> queue = new LinkedBlockingQueue<>();
+    private final Thread batchThread;
+    private final ExecutorService fallbackExecutor; // Books the requests of failed batches, one batch at a time
+    private final Object lifecycleLock = new Object(); // Makes submit's running check and add atomic with close()
+    private volatile boolean running = true;
+
+    // Metrics for batching efficiency
+    private final AtomicInteger batches = new AtomicInteger(0);
+    private final AtomicInteger committedBatches = new AtomicInteger(0);
+    private final AtomicInteger fallbackBatches = new AtomicInteger(0);
+    private final AtomicInteger fallbackCommits = new AtomicInteger(0); // Single bookings committed after a batch failed
+    private final AtomicInteger directBookings = new AtomicInteger(0); // Requests handed straight to the service
+    private final AtomicLong batchedRequests = new AtomicLong(0);
+    private final AtomicInteger successfulBookings = new AtomicInteger(0);
+    private final AtomicInteger rejectedBookings = new AtomicInteger(0);
+
+    public BookingBatcher(EntityManagerFactory emf, BookingService fallbackService) {
+        this(emf, fallbackService, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY_MS);
+    }
+
+    /**
+     * @param emf factory used to open one EntityManager per batch
+     * @param fallbackService service used to book requests one by one if a batch fails
+     * @param maxBatchSize maximum number of requests per transaction
+     * @param maxDelayMs maximum time to wait for a batch to fill
+     */
+    public BookingBatcher(EntityManagerFactory emf, BookingService fallbackService, int maxBatchSize, long maxDelayMs) {
+        this.emf = emf;
+        this.fallbackService = fallbackService;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMs = maxDelayMs;
+        this.fallbackExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "booking-batcher-fallback");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.batchThread = new Thread(this::batchLoop, "booking-batcher");
+        this.batchThread.setDaemon(true);
+        this.batchThread.start();
+    }
+
+    /**
+     * Submits a booking request to the next batch.
+     * @param userId ID of the user making the booking
+     * @param ticketSerials List of ticket serial numbers to book
+     * @param email Email address for booking confirmation
+     * @return future completed with the booking, or exceptionally if this request failed
+     */
+    public CompletableFuture<Booking> submit(int userId, List<String> ticketSerials, String email) {
+        return submit(userId, ticketSerials, email, null);
+    }
+
+    /**
+     * Submits a booking request to the next batch, or books it on the calling thread
+     * through the BookingService if it carries a client request id or its tickets are
+     * served from the seat inventory.
+     * @param idempotencyKey client request id, or null
+     * @return future completed with the booking, or exceptionally if this request failed
+     */
+    public CompletableFuture<Booking> submit(int userId, List<String> ticketSerials, String email,
+                                             String idempotencyKey) {
+        CompletableFuture<Booking> result = new CompletableFuture<>();
+        if (idempotencyKey != null || fallbackService.servesFromSeatInventory(ticketSerials)) {
+            directBookings.incrementAndGet();
+            try {
+                result.complete(fallbackService.createBooking(userId, ticketSerials, email, idempotencyKey));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+            return result;
+        }
+        synchronized (lifecycleLock) {
+            if (!running) {
+                result.completeExceptionally(new IllegalStateException("Booking batcher is closed"));
+                return result;
+            }
+            queue.add(new BookingRequest(userId, new ArrayList<>(ticketSerials), email, result));
+        }
+        return result;
+    }
+
+    /**
+     * Background loop: waits for the first request, then gathers more until the batch
+     * is full or maxDelayMs has passed.
+     */
+    private void batchLoop() {
+        List<BookingRequest> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                BookingRequest first = queue.poll(maxDelayMs, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    BookingRequest next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                executeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Restore the interrupted status
+                return;
+            } catch (RuntimeException e) {
+                // Never leave a caller waiting, whatever went wrong
+                for (BookingRequest request : batch) {
+                    request.result.completeExceptionally(e);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Executes one batch in a single transaction, completing each request's future.
+     */
+    private void executeBatch(List<BookingRequest> batch) {
+        batches.incrementAndGet();
+        batchedRequests.addAndGet(batch.size());
+
+        List<BookingRequest> accepted = new ArrayList<>(batch.size());
+        List<BookingRequest> outbid = new ArrayList<>(); // Lost a ticket to an accepted request; decided after commit
+        Set<String> claimedSerials = new HashSet<>(); // Serials of the accepted requests
+        List<Booking> bookings = new ArrayList<>(batch.size());
+        EntityManager em = emf.createEntityManager();
+        EntityTransaction tx = em.getTransaction();
+        try {
+            tx.begin();
+
+            // Step 1: Lock every requested ticket that is still available, in one statement
+            Map<String, ClaimedTicket> availableBySerial = lockAvailableTickets(em, batch);
+
+            // Step 2: Load all users in one statement; the bookings keep them, initialized, after the batch
+            Map<Integer, User> usersById = findUsers(em, batch);
+
+            // Step 3: Filter conflicts; earlier requests win tickets requested twice in the batch
+            List<Integer> claimedTicketIds = new ArrayList<>();
+            for (BookingRequest request : batch) {
+                String rejection = checkRequest(request, usersById, availableBySerial);
+                if (rejection != null) {
+                    reject(request, rejection);
+                    continue;
+                }
+                if (!Collections.disjoint(request.ticketSerials, claimedSerials)) {
+                    outbid.add(request); // Still bookable if the batch fails and so does the request it lost to
+                    continue;
+                }
+                for (String serial : request.ticketSerials) {
+                    request.tickets.add(availableBySerial.get(serial));
+                    claimedTicketIds.add(availableBySerial.get(serial).getTicketId());
+                }
+                claimedSerials.addAll(request.ticketSerials);
+                accepted.add(request);
+            }
+
+            if (accepted.isEmpty()) {
+                tx.rollback(); // Nothing was outbid either: every outbid request lost to an accepted one
+                return;
+            }
+
+            // Step 4: Mark all accepted tickets as sold; they are locked by this transaction
+            em.createQuery(
+                "UPDATE Ticket t SET t.status = :sold, t.purchaseDate = :now, t.version = t.version + 1 " +
+                "WHERE t.ticketId IN :ids")
+                .setParameter("sold", TicketStatus.SOLD)
+                .setParameter("now", new Date(), TemporalType.TIMESTAMP)
+                .setParameter("ids", claimedTicketIds)
+                .executeUpdate();
+            CategoryAvailabilityCounters counters = fallbackService.getCategoryCounters();
+            if (counters != null) {
+                List<ClaimedTicket> claimed = new ArrayList<>(claimedTicketIds.size());
+                for (BookingRequest request : accepted) {
+                    claimed.addAll(request.tickets);
+                }
+                counters.recordTransition(em, claimed, TicketStatus.AVAILABLE, TicketStatus.SOLD);
+            }
+
+            // Step 5: Insert every booking and its booking_ticket rows
+            Date now = new Date();
+            for (BookingRequest request : accepted) {
+                Booking booking = BookingService.newConfirmedBooking(
+                    usersById.get(request.userId), request.tickets, request.email, now);
+                em.persist(booking);
+                for (ClaimedTicket ticket : request.tickets) {
+                    em.persist(new BookingTicket(booking, em.getReference(Ticket.class, ticket.getTicketId())));
+                }
+                bookings.add(booking);
+            }
+
+            em.flush();
+            tx.commit(); // One commit for the whole batch
+            committedBatches.incrementAndGet();
+        } catch (RuntimeException e) {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            System.err.println("Booking batch of " + batch.size() + " failed, falling back to single bookings: " +
+                e.getMessage());
+            fallbackBatches.incrementAndGet();
+            List<BookingRequest> pending = pendingRequests(batch); // Accepted and outbid, in batch order
+            fallbackExecutor.execute(() -> bookIndividually(pending));
+            return;
+        } finally {
+            em.close();
+        }
+
+        for (int i = 0; i < accepted.size(); i++) {
+            successfulBookings.incrementAndGet();
+            accepted.get(i).result.complete(bookings.get(i));
+        }
+        for (BookingRequest request : outbid) {
+            reject(request, "Ticket not available: " + firstClaimed(request, claimedSerials));
+        }
+    }
+
+    private void reject(BookingRequest request, String rejection) {
+        rejectedBookings.incrementAndGet();
+        request.result.completeExceptionally(new RuntimeException("Booking failed: " + rejection));
+    }
+
+    /**
+     * @return the first of the request's serials that is in the claimed set, or null if none is
+     */
+    private static String firstClaimed(BookingRequest request, Set<String> claimedSerials) {
+        for (String serial : request.ticketSerials) {
+            if (claimedSerials.contains(serial)) {
+                return serial;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Locks the still-available tickets among all serials requested by the batch.
+     * @return claim data for each available ticket, keyed by serial number
+     */
+    private Map<String, ClaimedTicket> lockAvailableTickets(EntityManager em, List<BookingRequest> batch) {
+        Set<String> serials = new LinkedHashSet<>();
+        for (BookingRequest request : batch) {
+            serials.addAll(request.ticketSerials);
+        }
+
+        // Lock the ticket rows only; joining the shared category rows would lock those too
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = em.createNativeQuery(
+            "SELECT t.ticket_id, t.serial_number, t.ticket_category_id FROM tickets t " +
+            "WHERE t.serial_number IN (:serials) AND t.status = :status FOR UPDATE")
+            .setParameter("serials", serials)
+            .setParameter("status", TicketStatus.AVAILABLE.getDbValue())
+            .getResultList();
+
+        // Price the locked tickets with a plain read of their categories
+        Map<Integer, BigDecimal> priceByCategory = new HashMap<>();
+        for (Object[] row : rows) {
+            priceByCategory.put(((Number) row[2]).intValue(), null);
+        }
+        if (!priceByCategory.isEmpty()) {
+            for (Object[] price : em.createQuery(
+                    "SELECT tc.ticketCategoryId, tc.price FROM TicketCategory tc WHERE tc.ticketCategoryId IN :ids",
+                    Object[].class)
+                    .setParameter("ids", priceByCategory.keySet())
+                    .getResultList()) {
+                priceByCategory.put((Integer) price[0], (BigDecimal) price[1]);
+            }
+        }
+
+        Map<String, ClaimedTicket> availableBySerial = new HashMap<>();
+        for (Object[] row : rows) {
+            int categoryId = ((Number) row[2]).intValue();
+            availableBySerial.put((String) row[1], new ClaimedTicket(
+                ((Number) row[0]).intValue(), categoryId, priceByCategory.get(categoryId)));
+        }
+        return availableBySerial;
+    }
+
+    /**
+     * @return the batch's users that exist, by user ID
+     */
+    private Map<Integer, User> findUsers(EntityManager em, List<BookingRequest> batch) {
+        Set<Integer> userIds = new HashSet<>();
+        for (BookingRequest request : batch) {
+            userIds.add(request.userId);
+        }
+        Map<Integer, User> usersById = new HashMap<>();
+        for (User user : em.createQuery("SELECT u FROM User u WHERE u.userId IN :ids", User.class)
+                .setParameter("ids", userIds)
+                .getResultList()) {
+            usersById.put(user.getUserId(), user);
+        }
+        return usersById;
+    }
+
+    /**
+     * @return why the request cannot be booked, or null if it can
+     */
+    private String checkRequest(BookingRequest request, Map<Integer, User> usersById,
+                                Map<String, ClaimedTicket> availableBySerial) {
+        if (!usersById.containsKey(request.userId)) {
+            return "User not found: " + request.userId;
+        }
+        if (request.ticketSerials.isEmpty()) {
+            return "No tickets requested";
+        }
+        Set<String> seen = new HashSet<>();
+        for (String serial : request.ticketSerials) {
+            if (!seen.add(serial)) {
+                return "Duplicate ticket serial in request: " + serial;
+            }
+            if (!availableBySerial.containsKey(serial)) {
+                return "Ticket not available: " + serial;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the requests of the batch whose futures are not completed yet
+     */
+    private List<BookingRequest> pendingRequests(List<BookingRequest> batch) {
+        List<BookingRequest> pending = new ArrayList<>();
+        for (BookingRequest request : batch) {
+            if (!request.result.isDone()) {
+                pending.add(request);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Books requests one transaction each after their batch failed, in batch order. A request
+     * wanting a ticket an earlier one just booked is rejected without a transaction.
+     */
+    private void bookIndividually(List<BookingRequest> requests) {
+        Set<String> bookedSerials = new HashSet<>();
+        for (BookingRequest request : requests) {
+            String taken = firstClaimed(request, bookedSerials);
+            if (taken != null) {
+                reject(request, "Ticket not available: " + taken);
+                continue;
+            }
+            try {
+                Booking booking = fallbackService.createBooking(request.userId, request.ticketSerials, request.email);
+                bookedSerials.addAll(request.ticketSerials);
+                successfulBookings.incrementAndGet();
+                fallbackCommits.incrementAndGet();
+                request.result.complete(booking);
+            } catch (RuntimeException e) {
+                rejectedBookings.incrementAndGet();
+                request.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting requests and waits until every queued request has been executed,
+     * including the fallback bookings of failed batches.
+     */
+    @Override
+    public void close() {
+        synchronized (lifecycleLock) {
+            running = false; // The loop exits once the queue is empty; submit refuses from now on
+        }
+        try {
+            batchThread.join();
+            fallbackExecutor.shutdown(); // The batch thread has handed over its last failed batch
+            fallbackExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getBatches() {
+        return batches.get();
+    }
+
+    public int getCommittedBatches() {
+        return committedBatches.get();
+    }
+
+    public int getFallbackBatches() {
+        return fallbackBatches.get();
+    }
+
+    /**
+     * @return transactions committed by the batcher: whole batches plus single bookings after a failed batch
+     */
+    public int getCommits() {
+        return committedBatches.get() + fallbackCommits.get();
+    }
+
+    public int getDirectBookings() {
+        return directBookings.get();
+    }
+
+    public int getSuccessfulBookings() {
+        return successfulBookings.get();
+    }
+
+    public int getRejectedBookings() {
+        return rejectedBookings.get();
+    }
+
+    public double getAverageBatchSize() {
+        int total = batches.get();
+        return total > 0 ? (double) batchedRequests.get() / total : 0;
+    }
+
+    /**
+     * One caller's booking request and the future its outcome is delivered through.
+     */
+    private static final class BookingRequest {
+        private final int userId;
+        private final List<String> ticketSerials;
+        private final String email;
+        private final CompletableFuture<Booking> result;
+        private final List<ClaimedTicket> tickets = new ArrayList<>(); // Filled once the request is accepted
+
+        BookingRequest(int userId, List<String> ticketSerials, String email, CompletableFuture<Booking> result) {
+            this.userId = userId;
+            this.ticketSerials = ticketSerials;
+            this.email = email;
+            this.result = result;
+        }
+    }
+}
@@ -2,47 +2,357 @@
  * BookingService handles the core logic for creating bookings and managing tickets.
  * This service interacts with a MySQL database via JPA to ensure transactional integrity
  * and uses metrics to track performance and booking statistics.
+ *
+ * Two modes are supported:
+ * - Shared mode: built from a single EntityManager; bookings are serialized because
+ *   an EntityManager is not thread-safe.
+ * - Per-transaction mode: built from the EntityManagerFactory; every booking opens its own
+ *   short-lived EntityManager, so bookings for different seats commit in parallel and are
+ *   only limited by row locks and the connection pool.
  */
 
 package com.poortoys.examples.simulation;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import javax.persistence.*;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.SessionFactory;
+import org.hibernate.StaleStateException;
+import org.hibernate.StatelessSession;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import com.poortoys.examples.dao.ReplicaRouter;
+import com.poortoys.examples.dao.StalenessPolicy;
 import com.poortoys.examples.entities.*;
+import com.poortoys.examples.simulation.TransientFailureClassifier.FailureType;
 
 public class BookingService {
-    // EntityManager for database operations
+    // Recently created bookings kept per idempotency key so hot retries skip the database
+    private static final int IDEMPOTENCY_CACHE_SIZE = 10_000;
+    // Attempts per booking are counted exactly up to this value; more attempts share the last bucket
+    private static final int MAX_TRACKED_ATTEMPTS = 10;
+    // Rows per round trip when streaming availability from drivers other than MySQL's
+    private static final int STREAM_FETCH_SIZE = 1_000;
+    // Stored procedure used by NATIVE_PROCEDURE and its result codes
+    private static final String BOOKING_PROCEDURE = "book_tickets";
+    private static final int PROCEDURE_BOOKED = 0;
+    private static final int PROCEDURE_USER_NOT_FOUND = 1;
+    private static final int PROCEDURE_TICKET_CONFLICT = 2;
+    private static final int PROCEDURE_DUPLICATE_SERIALS = 3;
+
+    // Hot queries, shared with IndexAdvisor so their plans are checked as written here
+    static final String AVAILABLE_SERIALS_QUERY =
+        "SELECT t.serialNumber FROM Ticket t WHERE t.event.eventId = :eventId AND t.status = :status";
+    static final String AVAILABLE_COUNT_QUERY =
+        "SELECT COUNT(t) FROM Ticket t WHERE t.event.eventId = :eventId AND t.status = :status";
+    static final String CLAIM_SERIALS_UPDATE =
+        "UPDATE Ticket t SET t.status = :sold, t.purchaseDate = :now, t.version = t.version + 1 " +
+        "WHERE t.serialNumber IN :serials AND t.status = :available";
+    static final String CLAIM_IDS_UPDATE =
+        "UPDATE Ticket t SET t.status = :sold, t.purchaseDate = :now, t.version = t.version + 1 " +
+        "WHERE t.ticketId IN :ids AND t.status = :available";
+    static final String CLAIM_ANY_AVAILABLE_SQL =
+        "SELECT ticket_id FROM tickets " +
+        "WHERE event_id = ? AND ticket_category_id = ? AND status = ? " +
+        "ORDER BY ticket_id LIMIT ? FOR UPDATE SKIP LOCKED";
+
+    // Shared EntityManager for database operations (null in per-transaction mode)
     private final EntityManager em;
+    // Factory used to open one EntityManager per operation (null in shared mode)
+    private final EntityManagerFactory emf;
+    // Runs each transaction and keeps its persistence context from growing across bookings
+    private final UnitOfWork unitOfWork;
 
     // Metrics for tracking performance and outcomes
     private final AtomicInteger successfulBookings = new AtomicInteger(0); // Successful booking count
     private final AtomicInteger failedBookings = new AtomicInteger(0); // Failed booking count
     private final AtomicInteger totalTicketsBooked = new AtomicInteger(0); // Total tickets booked
-    private long totalQueryTime = 0; // Accumulated query time
-    private int totalQueries = 0; // Total queries executed
+    private final AtomicLong totalQueryTime = new AtomicLong(0); // Accumulated query time
+    private final AtomicInteger totalQueries = new AtomicInteger(0); // Total queries executed
+    private final AtomicInteger createdHolds = new AtomicInteger(0); // Seat holds created
+    private final AtomicInteger confirmedHolds = new AtomicInteger(0); // Seat holds turned into bookings
+    private final AtomicInteger idempotentReplays = new AtomicInteger(0); // Retries answered with the original booking
+    private final AtomicIntegerArray attemptsPerBooking = new AtomicIntegerArray(MAX_TRACKED_ATTEMPTS + 1); // Index = attempts
+    private final Map<FailureType, AtomicInteger> transientFailures = new EnumMap<>(FailureType.class); // Per transient type
+    private final AtomicInteger transientRetries = new AtomicInteger(0); // Attempts re-run after a transient failure
+
+    // How tickets are claimed inside the booking transaction
+    private volatile TicketClaimStrategy claimStrategy = TicketClaimStrategy.PESSIMISTIC_PER_SERIAL;
+    // Retry budget for optimistic bookings that hit a version conflict
+    private volatile RetryPolicy optimisticRetryPolicy = new RetryPolicy(5, 5, 200);
+    // Retry budget for deadlocks, lock wait timeouts and serialization failures
+    private volatile RetryPolicy transientRetryPolicy = new RetryPolicy(4, 10, 500);
+    // Optimistic contention statistics keyed by event ID
+    private final ConcurrentHashMap<Integer, EventContentionStats> contentionStats = new ConcurrentHashMap<>();
+    // Authoritative in-memory inventory and its writer (null unless write-behind is enabled)
+    private volatile SeatInventory seatInventory;
+    private volatile WriteBehindBookingWriter writeBehindWriter;
+    // Per-category counters updated with every ticket status change, or null if not maintained
+    private volatile CategoryAvailabilityCounters categoryCounters;
+    // Categories known to be sold out, checked before a best-available booking opens a transaction, or null
+    private volatile SoldOutRegistry soldOutRegistry;
+    // Resolves serials to ticket IDs in memory so claims update rows by primary key (optional)
+    private volatile SerialNumberIndex serialNumberIndex;
+    // Sends availability reads to the read replica while it is fresh enough (optional)
+    private volatile ReplicaRouter replicaRouter;
+    // Claims re-check availability, so a stale list only costs a conflict
+    private volatile StalenessPolicy availabilityStaleness = StalenessPolicy.boundedStaleness(1_000);
+    // How long held tickets stay RESERVED before the sweeper releases them
+    private volatile long holdDurationMillis = TimeUnit.MINUTES.toMillis(10);
+    // LRU of bookings by "userId:idempotencyKey"; older keys are found in booking_idempotency_keys
+    private final Map<String, IdempotentBooking> recentIdempotentBookings = Collections.synchronizedMap(
+        new LinkedHashMap<String, IdempotentBooking>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, IdempotentBooking> eldest) {
+                return size() > IDEMPOTENCY_CACHE_SIZE;
+            }
+        });
+    // Keyed requests being booked right now, so a concurrent retry waits for the first attempt
+    private final ConcurrentHashMap<String, CompletableFuture<Booking>> idempotentRequestsInFlight =
+        new ConcurrentHashMap<>();
 
     /**
-     * Constructor to initialize BookingService with an EntityManager.
+     * Constructor to initialize BookingService with a shared EntityManager.
+     * All bookings are serialized on this EntityManager, which is cleared after every
+     * booking transaction; entities other code loaded through it become detached.
      * @param em EntityManager for JPA database operations
      */
     public BookingService(EntityManager em) {
         this.em = em;
+        this.emf = null;
+        this.unitOfWork = new UnitOfWork(em);
+        initTransientFailureCounters();
+        verifyDatabaseConnection(); // Verify database connection on initialization
+    }
+
+    /**
+     * Constructor to initialize BookingService in per-transaction mode.
+     * Each booking opens and closes its own EntityManager, so no method-level lock is needed.
+     * @param emf EntityManagerFactory used to create short-lived EntityManagers
+     */
+    public BookingService(EntityManagerFactory emf) {
+        this.em = null;
+        this.emf = emf;
+        this.unitOfWork = new UnitOfWork(emf);
+        initTransientFailureCounters();
         verifyDatabaseConnection(); // Verify database connection on initialization
     }
 
+    private void initTransientFailureCounters() {
+        for (FailureType type : FailureType.values()) {
+            if (type.isTransient()) {
+                transientFailures.put(type, new AtomicInteger(0));
+            }
+        }
+    }
+
     /**
      * Verifies database connectivity by executing a simple query.
      */
     private void verifyDatabaseConnection() {
+        EntityManager entityManager = openEntityManager();
         try {
-            em.createNativeQuery("SELECT 1").getSingleResult();
+            entityManager.createNativeQuery("SELECT 1").getSingleResult();
             System.out.println("Database connection verified in BookingService.");
         } catch (Exception e) {
             throw new RuntimeException("Failed to verify database connection", e);
+        } finally {
+            closeEntityManager(entityManager);
+        }
+    }
+
+    /**
+     * @return true when every booking uses its own EntityManager
+     */
+    public boolean isPerTransactionMode() {
+        return emf != null;
+    }
+
+    /**
+     * Selects how tickets are claimed by subsequent bookings.
+     * @param claimStrategy strategy to use
+     */
+    public void setClaimStrategy(TicketClaimStrategy claimStrategy) {
+        this.claimStrategy = claimStrategy;
+    }
+
+    public TicketClaimStrategy getClaimStrategy() {
+        return claimStrategy;
+    }
+
+    /**
+     * Sets the retry budget and backoff used by OPTIMISTIC_VERSIONED bookings.
+     * @param optimisticRetryPolicy retry policy to use
+     */
+    public void setOptimisticRetryPolicy(RetryPolicy optimisticRetryPolicy) {
+        this.optimisticRetryPolicy = optimisticRetryPolicy;
+    }
+
+    public RetryPolicy getOptimisticRetryPolicy() {
+        return optimisticRetryPolicy;
+    }
+
+    /**
+     * Sets the retry budget and backoff used when a booking hits a deadlock, a lock wait
+     * timeout or a serialization failure. Other failures are never retried.
+     * @param transientRetryPolicy retry policy to use
+     */
+    public void setTransientRetryPolicy(RetryPolicy transientRetryPolicy) {
+        this.transientRetryPolicy = transientRetryPolicy;
+    }
+
+    public RetryPolicy getTransientRetryPolicy() {
+        return transientRetryPolicy;
+    }
+
+    /**
+     * Makes the in-memory inventory authoritative for the events it has loaded.
+     * Bookings for those events are confirmed with compare-and-set claims and returned
+     * right away; the writer persists them in batches afterwards. Bookings for other
+     * events still use the database path.
+     * @param inventory seat inventory with the events and users already loaded
+     * @param writer writer that persists the confirmed bookings
+     */
+    public void enableWriteBehind(SeatInventory inventory, WriteBehindBookingWriter writer) {
+        this.writeBehindWriter = writer;
+        this.seatInventory = inventory;
+    }
+
+    /**
+     * Maintains per-category availability counters in every booking, hold and release
+     * transaction of this service. The counters should be started before bookings begin.
+     * @param categoryCounters counters to update, or null to stop maintaining them
+     */
+    public void setCategoryCounters(CategoryAvailabilityCounters categoryCounters) {
+        this.categoryCounters = categoryCounters;
+    }
+
+    public CategoryAvailabilityCounters getCategoryCounters() {
+        return categoryCounters;
+    }
+
+    /**
+     * Rejects best-available bookings for categories the registry marks sold out before
+     * they reach the database, and marks categories in which a claim found no free row.
+     * For exact marks, also pass the registry to CategoryAvailabilityCounters.
+     * @param soldOutRegistry registry to consult, or null to always ask the database
+     */
+    public void setSoldOutRegistry(SoldOutRegistry soldOutRegistry) {
+        this.soldOutRegistry = soldOutRegistry;
+    }
+
+    public SoldOutRegistry getSoldOutRegistry() {
+        return soldOutRegistry;
+    }
+
+    /**
+     * Lets the SET_BASED_UPDATE strategy claim serials found in the index by ticket ID,
+     * which reads the primary key instead of probing the serial number index per ticket.
+     * Serials missing from the index are claimed by serial number as before.
+     * @param serialNumberIndex index of the events being booked, or null to always claim by serial
+     */
+    public void setSerialNumberIndex(SerialNumberIndex serialNumberIndex) {
+        this.serialNumberIndex = serialNumberIndex;
+    }
+
+    public SerialNumberIndex getSerialNumberIndex() {
+        return serialNumberIndex;
+    }
+
+    /**
+     * Routes getAvailableTicketSerials and getAvailableTicketCategoryIds through a replica
+     * router. Claims, holds and countAvailableTickets, which the simulation results are
+     * checked against, keep reading the primary.
+     * @param replicaRouter router to use, or null to read everything from the primary
+     */
+    public void setReplicaRouter(ReplicaRouter replicaRouter) {
+        this.replicaRouter = replicaRouter;
+    }
+
+    public ReplicaRouter getReplicaRouter() {
+        return replicaRouter;
+    }
+
+    /**
+     * Sets how stale the availability reads routed to the replica may be (default 1 s).
+     */
+    public void setAvailabilityStaleness(StalenessPolicy availabilityStaleness) {
+        this.availabilityStaleness = availabilityStaleness;
+    }
+
+    /**
+     * Runs an availability read on the replica if the router allows it, else on the given EntityManager.
+     */
+    private <T> T readAvailability(EntityManager em, Function<EntityManager, T> query) {
+        ReplicaRouter router = replicaRouter;
+        return router != null ? router.read(availabilityStaleness, em, query) : query.apply(em);
+    }
+
+    /**
+     * Sets how long tickets held by holdTickets stay reserved.
+     * @param holdDurationMillis hold duration in milliseconds
+     */
+    public void setHoldDurationMillis(long holdDurationMillis) {
+        this.holdDurationMillis = holdDurationMillis;
+    }
+
+    public long getHoldDurationMillis() {
+        return holdDurationMillis;
+    }
+
+    /**
+     * Returns optimistic booking statistics (attempts, conflicts, retries) per event ID.
+     * @return read-only view of the statistics
+     */
+    public Map<Integer, EventContentionStats> getContentionStats() {
+        return Collections.unmodifiableMap(contentionStats);
+    }
+
+    private EventContentionStats contentionStatsFor(int eventId) {
+        return contentionStats.computeIfAbsent(eventId, id -> new EventContentionStats());
+    }
+
+    /**
+     * Returns the EntityManager to use for one operation: the shared one in shared mode,
+     * or a new one in per-transaction mode.
+     */
+    private EntityManager openEntityManager() {
+        return emf != null ? emf.createEntityManager() : em;
+    }
+
+    /**
+     * Closes an EntityManager obtained from openEntityManager(); the shared one is left open.
+     */
+    private void closeEntityManager(EntityManager entityManager) {
+        if (emf != null && entityManager.isOpen()) {
+            entityManager.close();
         }
     }
 
@@ -53,113 +363,1171 @@ public class BookingService {
      */
     public List<String> getAvailableTicketSerials(int eventId) {
         long startTime = System.nanoTime();
+        EntityManager em = openEntityManager();
         try {
-            return em.createQuery(
-                "SELECT t.serialNumber FROM Ticket t " +
-                "WHERE t.event.eventId = :eventId AND t.status = :status", 
-                String.class)
+            return readAvailability(em, readEm -> readEm.createQuery(AVAILABLE_SERIALS_QUERY, String.class)
                 .setParameter("eventId", eventId)
                 .setParameter("status", TicketStatus.AVAILABLE)
-                .getResultList();
+                .getResultList());
         } catch (Exception e) {
             System.err.println("Error getting available tickets: " + e.getMessage());
             return new ArrayList<>();
         } finally {
+            closeEntityManager(em);
+            recordQueryTime(startTime);
+        }
+    }
+
+    /**
+     * Streams the serial numbers of available tickets for an event to an action, one row
+     * at a time. The read runs on a StatelessSession with a forward-only cursor, so no
+     * entity enters a persistence context and only one fetch of rows is held in memory,
+     * unlike getAvailableTicketSerials which materializes the whole list. On MySQL the
+     * driver streams the rows one by one; its connection is busy until the scroll ends.
+     * @param eventId ID of the event
+     * @param action called once per available serial, on the calling thread
+     * @return number of serials streamed
+     */
+    public int forEachAvailableTicketSerial(int eventId, Consumer<String> action) {
+        long startTime = System.nanoTime();
+        int count = 0;
+        StatelessSession session = sessionFactory().openStatelessSession();
+        try (ScrollableResults rows = session.createQuery(AVAILABLE_SERIALS_QUERY, String.class)
+                .setParameter("eventId", eventId)
+                .setParameter("status", TicketStatus.AVAILABLE)
+                .setFetchSize(streamFetchSize())
+                .setReadOnly(true)
+                .scroll(ScrollMode.FORWARD_ONLY)) {
+            while (rows.next()) {
+                action.accept((String) rows.get(0));
+                count++;
+            }
+            return count;
+        } finally {
+            session.close();
             recordQueryTime(startTime);
         }
     }
 
+    /**
+     * Picks up to sampleSize available serials of an event uniformly at random, in random
+     * order. The serials are streamed through a reservoir, so only the sample is held in
+     * memory however many tickets are available.
+     * @param eventId ID of the event
+     * @param sampleSize maximum number of serials to return
+     * @param random source of randomness for the sample and its order
+     * @return the sampled serials; all available serials if there are at most sampleSize
+     */
+    public List<String> sampleAvailableTicketSerials(int eventId, int sampleSize, Random random) {
+        List<String> sample = new ArrayList<>(sampleSize);
+        int[] seen = new int[1];
+        forEachAvailableTicketSerial(eventId, serial -> {
+            seen[0]++;
+            if (sample.size() < sampleSize) {
+                sample.add(serial);
+            } else {
+                int slot = random.nextInt(seen[0]); // Keep this serial with probability sampleSize / seen
+                if (slot < sampleSize) {
+                    sample.set(slot, serial);
+                }
+            }
+        });
+        Collections.shuffle(sample, random); // The first serials would otherwise keep their query order
+        return sample;
+    }
+
+    /**
+     * Counts the available tickets of an event without reading their serials.
+     * @param eventId ID of the event
+     * @return number of available tickets, or 0 if the query fails
+     */
+    public long countAvailableTickets(int eventId) {
+        long startTime = System.nanoTime();
+        EntityManager em = openEntityManager();
+        try {
+            return em.createQuery(AVAILABLE_COUNT_QUERY, Long.class)
+                .setParameter("eventId", eventId)
+                .setParameter("status", TicketStatus.AVAILABLE)
+                .getSingleResult();
+        } catch (Exception e) {
+            System.err.println("Error counting available tickets: " + e.getMessage());
+            return 0;
+        } finally {
+            closeEntityManager(em);
+            recordQueryTime(startTime);
+        }
+    }
+
+    /**
+     * Connector/J only streams a result set for a fetch size of Integer.MIN_VALUE; any
+     * other value buffers every row unless cursor fetch is enabled for all statements.
+     */
+    private int streamFetchSize() {
+        Dialect dialect = sessionFactory().unwrap(SessionFactoryImplementor.class).getJdbcServices().getDialect();
+        return dialect instanceof MySQLDialect ? Integer.MIN_VALUE : STREAM_FETCH_SIZE;
+    }
+
+    /**
+     * Returns the Hibernate SessionFactory behind this service, in either mode.
+     */
+    private SessionFactory sessionFactory() {
+        return (emf != null ? emf : em.getEntityManagerFactory()).unwrap(SessionFactory.class);
+    }
+
     /**
      * Creates a booking for a user, locking tickets to ensure consistency.
+     * In shared mode bookings are serialized; in per-transaction mode they run in parallel.
      * @param userId ID of the user making the booking
      * @param ticketSerials List of ticket serial numbers to book
      * @param email Email address for booking confirmation
      * @return Booking object if successful, or throws an exception on failure
      */
-    public synchronized Booking createBooking(int userId, List<String> ticketSerials, String email) {
-        EntityTransaction tx = em.getTransaction();
-        long startTime = System.nanoTime();
-        totalTicketsBooked.addAndGet(ticketSerials.size());
+    public Booking createBooking(int userId, List<String> ticketSerials, String email) {
+        SeatInventory inventory = seatInventory;
+        if (inventory != null && inventory.containsAll(ticketSerials)) {
+            return createBookingInMemory(inventory, userId, email, null, null,
+                () -> inventory.claim(ticketSerials), recordedOutcome(ticketSerials.size()));
+        }
+        return createBookingInDatabase(userId, ticketSerials, email, null, recordedOutcome(ticketSerials.size()));
+    }
+
+    /**
+     * @return true if createBooking books these serials against the in-memory seat inventory
+     */
+    boolean servesFromSeatInventory(List<String> ticketSerials) {
+        SeatInventory inventory = seatInventory;
+        return inventory != null && inventory.containsAll(ticketSerials);
+    }
+
+    /**
+     * Creates a booking at most once per client request id. A retry of a request that
+     * already succeeded, e.g. after a client-side timeout, returns the original booking
+     * without claiming tickets again. Recent keys are answered from an in-memory LRU,
+     * older ones from the booking_idempotency_keys table, whose unique (user, key)
+     * constraint also stops two racing retries from both committing a booking; a retry
+     * racing the first attempt in this process waits for it instead. A key reused with
+     * different tickets is rejected.
+     * @param userId ID of the user making the booking
+     * @param ticketSerials List of ticket serial numbers to book
+     * @param email Email address for booking confirmation
+     * @param idempotencyKey client request id, identical on every retry of the same request
+     * @return the booking created for this request, by this call or an earlier one
+     */
+    public Booking createBooking(int userId, List<String> ticketSerials, String email, String idempotencyKey) {
+        if (idempotencyKey == null) {
+            return createBooking(userId, ticketSerials, email);
+        }
+        Set<String> requested = new HashSet<>(ticketSerials);
+        String cacheKey = userId + ":" + idempotencyKey;
+        while (true) {
+            IdempotentBooking original = findIdempotentBooking(userId, idempotencyKey);
+            if (original != null) {
+                return replay(original, requested, idempotencyKey);
+            }
+
+            CompletableFuture<Booking> attempt = new CompletableFuture<>();
+            CompletableFuture<Booking> running = idempotentRequestsInFlight.putIfAbsent(cacheKey, attempt);
+            if (running != null) {
+                // Wait for the first attempt; look the key up again whether it succeeded or not
+                try {
+                    running.join();
+                } catch (CompletionException e) {
+                    // The first attempt failed, so this retry books the request itself
+                }
+                continue;
+            }
+
+            // Recorded here rather than by the booking path: a lost race is not a failure if the winner booked it
+            BookingOutcome outcome = new BookingOutcome(ticketSerials.size(), false);
+            try {
+                Booking booking = createKeyedBooking(userId, ticketSerials, email, idempotencyKey, requested, outcome);
+                attempt.complete(booking);
+                outcome.record(true);
+                return booking;
+            } catch (RuntimeException e) {
+                attempt.completeExceptionally(e);
+                // A retry in another process may have committed first; answer with its booking
+                IdempotentBooking winner = findIdempotentBooking(userId, idempotencyKey);
+                if (winner == null) {
+                    outcome.record(false);
+                    throw e;
+                }
+                outcome.recordReplayed(); // Neither a failure nor a second booking
+                return replay(winner, requested, idempotencyKey);
+            } finally {
+                idempotentRequestsInFlight.remove(cacheKey, attempt);
+            }
+        }
+    }
+
+    /**
+     * Books a keyed request in the seat inventory or the database, recording the key with
+     * the booking and caching it for retries.
+     */
+    private Booking createKeyedBooking(int userId, List<String> ticketSerials, String email, String idempotencyKey,
+                                       Set<String> requested, BookingOutcome outcome) {
+        SeatInventory inventory = seatInventory;
+        if (inventory != null && inventory.containsAll(ticketSerials)) {
+            // Caches the booking itself, and drops it again if the write fails
+            return createBookingInMemory(inventory, userId, email, idempotencyKey, requested,
+                () -> inventory.claim(ticketSerials), outcome);
+        }
+        Booking booking = createBookingInDatabase(userId, ticketSerials, email, idempotencyKey, outcome);
+        recentIdempotentBookings.put(userId + ":" + idempotencyKey, new IdempotentBooking(booking, requested));
+        return booking;
+    }
 
+    /**
+     * Answers a retry with the booking of the original request, provided it asks for the same tickets.
+     */
+    private Booking replay(IdempotentBooking original, Set<String> requested, String idempotencyKey) {
+        if (!original.ticketSerials.equals(requested)) {
+            throw new IllegalArgumentException("Idempotency key " + idempotencyKey +
+                " was already used for tickets " + original.ticketSerials + ", not " + requested);
+        }
+        idempotentReplays.incrementAndGet();
+        return original.booking;
+    }
+
+    /**
+     * Looks up the booking created for a client request id, first in the LRU, then in the table.
+     * A booking read from the table comes with its user and ticket serials loaded.
+     * @return the original booking, or null if the request has not been booked yet
+     */
+    private IdempotentBooking findIdempotentBooking(int userId, String idempotencyKey) {
+        String cacheKey = userId + ":" + idempotencyKey;
+        IdempotentBooking cached = recentIdempotentBookings.get(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
+        IdempotentBooking stored = runInTransaction(em -> {
+            List<Booking> bookings = em.createQuery(
+                "SELECT b FROM BookingIdempotencyKey k JOIN k.booking b JOIN FETCH b.user " +
+                "WHERE k.userId = :userId AND k.idempotencyKey = :key",
+                Booking.class)
+                .setParameter("userId", userId)
+                .setParameter("key", idempotencyKey)
+                .getResultList();
+            if (bookings.isEmpty()) {
+                return null;
+            }
+            List<String> serials = em.createQuery(
+                "SELECT bt.ticket.serialNumber FROM BookingTicket bt WHERE bt.booking.bookingId = :bookingId",
+                String.class)
+                .setParameter("bookingId", bookings.get(0).getBookingId())
+                .getResultList();
+            return new IdempotentBooking(bookings.get(0), new HashSet<>(serials));
+        });
+        if (stored != null) {
+            recentIdempotentBookings.put(cacheKey, stored);
+        }
+        return stored;
+    }
+
+    /**
+     * Books exact serials through the database with the configured claim strategy.
+     * @param idempotencyKey client request id recorded with the booking, or null
+     * @param outcome metrics of this booking call
+     */
+    private Booking createBookingInDatabase(int userId, List<String> ticketSerials, String email, String idempotencyKey,
+                                            BookingOutcome outcome) {
+        if (claimStrategy == TicketClaimStrategy.OPTIMISTIC_VERSIONED) {
+            return createBookingOptimistic(userId, ticketSerials, email, idempotencyKey, outcome);
+        }
+        if (claimStrategy == TicketClaimStrategy.NATIVE_PROCEDURE) {
+            return executeBooking(outcome, () -> runInTransaction(
+                em -> callBookingProcedure(em, userId, ticketSerials, email, idempotencyKey)));
+        }
+        return executeBooking(userId, email, outcome, idempotencyKey,
+            em -> claimStrategy == TicketClaimStrategy.SET_BASED_UPDATE
+                ? claimTicketsSetBased(em, ticketSerials)
+                : claimTicketsPerSerial(em, ticketSerials));
+    }
+
+    /**
+     * Books any available tickets of a category ("best available") instead of exact serials.
+     * Free rows are locked with FOR UPDATE SKIP LOCKED, so concurrent buyers of the same
+     * category each grab different tickets instead of queueing on the same rows.
+     * The booking is all-or-nothing: if fewer than quantity tickets are free it fails.
+     * @param userId ID of the user making the booking
+     * @param eventId ID of the event
+     * @param ticketCategoryId ID of the ticket category to book from
+     * @param quantity Number of tickets to book
+     * @param email Email address for booking confirmation
+     * @return Booking object if successful, or throws an exception on failure
+     */
+    public Booking bookAnyAvailable(int userId, int eventId, int ticketCategoryId, int quantity, String email) {
+        if (quantity <= 0) {
+            throw new IllegalArgumentException("Quantity must be positive: " + quantity);
+        }
+        SoldOutRegistry registry = soldOutRegistry;
+        if (registry != null && registry.rejects(ticketCategoryId)) {
+            failedBookings.incrementAndGet();
+            throw new TicketConflictException("Sold out: no tickets left in category " + ticketCategoryId +
+                " of event " + eventId);
+        }
+        SeatInventory inventory = seatInventory;
+        if (inventory != null && inventory.containsCategory(ticketCategoryId)) {
+            return createBookingInMemory(inventory, userId, email, null, null,
+                () -> inventory.claimAny(ticketCategoryId, quantity), recordedOutcome(quantity));
+        }
+        return executeBooking(userId, email, recordedOutcome(quantity), null,
+            em -> claimAnyAvailable(em, eventId, ticketCategoryId, quantity));
+    }
+
+    /**
+     * Holds tickets for a user during checkout: the tickets are marked RESERVED with one
+     * guarded UPDATE and a SeatHold with an expiry time is stored. No row lock is kept
+     * once this returns, so checkout can take seconds or minutes. Call confirmHold to
+     * book the tickets; holds that are not confirmed in time are released by the
+     * HoldExpirySweeper. Tickets served from the seat inventory are taken there first,
+     * so in-memory bookings cannot claim held seats, and given back if the hold fails.
+     * @param userId ID of the user holding the tickets
+     * @param ticketSerials List of ticket serial numbers to hold
+     * @param email Email address for booking confirmation
+     * @return token identifying the hold
+     */
+    public String holdTickets(int userId, List<String> ticketSerials, String email) {
+        Set<String> serials = new LinkedHashSet<>(ticketSerials);
+        if (serials.isEmpty() || serials.size() != ticketSerials.size()) {
+            throw new IllegalArgumentException("Ticket serials must be non-empty and unique: " + ticketSerials);
+        }
+
+        long startTime = System.nanoTime();
+        String holdToken = UUID.randomUUID().toString();
+        Date expiresAt = new Date(System.currentTimeMillis() + holdDurationMillis);
+        SeatInventory inventory = seatInventory;
+        List<ClaimedTicket> claimedInMemory = null; // Seats taken in the inventory, released if the hold fails
         try {
-            tx.begin();
+            if (inventory != null && inventory.containsAll(ticketSerials)) {
+                claimedInMemory = inventory.claim(ticketSerials);
+                if (claimedInMemory == null) {
+                    throw new TicketConflictException("Ticket conflict: tickets are no longer available");
+                }
+            }
+            runInTransaction(em -> {
+                // Step 1: Validate user existence
+                if (em.find(User.class, userId) == null) {
+                    throw new RuntimeException("User not found: " + userId);
+                }
+
+                // Step 2: Reserve the tickets that are still available
+                int updated = em.createQuery(
+                    "UPDATE Ticket t SET t.status = :reserved, t.holdToken = :token, t.version = t.version + 1 " +
+                    "WHERE t.serialNumber IN :serials AND t.status = :available")
+                    .setParameter("reserved", TicketStatus.RESERVED)
+                    .setParameter("token", holdToken)
+                    .setParameter("serials", serials)
+                    .setParameter("available", TicketStatus.AVAILABLE)
+                    .executeUpdate();
+                if (updated != serials.size()) {
+                    throw new TicketConflictException("Ticket conflict: only " + updated + " of " +
+                        serials.size() + " tickets were still available");
+                }
+                CategoryAvailabilityCounters counters = categoryCounters;
+                if (counters != null) {
+                    counters.recordTransition(em, countHeldTicketsByCategory(em, Collections.singletonList(holdToken),
+                        false), TicketStatus.AVAILABLE, TicketStatus.RESERVED);
+                }
 
-            // Step 1: Validate user existence
-            User user = em.find(User.class, userId);
+                // Step 3: Record the hold and its expiry
+                em.persist(new SeatHold(holdToken, userId, email, serials.size(), expiresAt));
+                return null;
+            });
+            createdHolds.incrementAndGet();
+            return holdToken;
+        } catch (RuntimeException e) {
+            if (claimedInMemory != null) {
+                inventory.release(claimedInMemory);
+            }
+            throw new RuntimeException("Hold failed: " + e.getMessage(), e);
+        } finally {
+            recordQueryTime(startTime);
+        }
+    }
+
+    /**
+     * Books the tickets of an unexpired hold. The held tickets are turned SOLD in the same
+     * transaction that creates the booking, and the hold is removed.
+     * @param holdToken token returned by holdTickets
+     * @return Booking object if successful, or throws an exception if the hold is unknown or expired
+     */
+    public Booking confirmHold(String holdToken) {
+        SeatHold hold = runInTransaction(em -> em.find(SeatHold.class, holdToken));
+        if (hold == null) {
+            failedBookings.incrementAndGet();
+            throw new RuntimeException("Booking failed: Hold not found or already released: " + holdToken);
+        }
+        Booking booking = executeBooking(recordedOutcome(hold.getTicketCount()), () -> attemptBooking(hold.getUserId(),
+            hold.getDeliveryAddressEmail(), null, em -> claimHeldTickets(em, hold), TicketStatus.RESERVED));
+        confirmedHolds.incrementAndGet();
+        return booking;
+    }
+
+    /**
+     * Releases a hold before it expires, e.g. when the user abandons checkout.
+     * @param holdToken token returned by holdTickets
+     * @return number of tickets made available again
+     */
+    public int releaseHold(String holdToken) {
+        List<Integer> released = runInTransaction(
+            em -> releaseHolds(em, Collections.singletonList(holdToken), categoryCounters));
+        SeatInventory inventory = seatInventory;
+        if (inventory != null) {
+            inventory.releaseTicketIds(released); // Only once the release is committed
+        }
+        return released.size();
+    }
+
+    /**
+     * Makes the RESERVED tickets of the given holds available again and deletes the holds.
+     * Tickets already confirmed by a concurrent confirmHold are left untouched. Callers
+     * serving the tickets from a seat inventory release the returned IDs there after commit.
+     * @param counters category counters to update, or null
+     * @return IDs of the released tickets
+     */
+    static List<Integer> releaseHolds(EntityManager em, List<String> holdTokens, CategoryAvailabilityCounters counters) {
+        // Lock the reserved tickets first, so the returned and counted ones are exactly the released ones
+        List<Object[]> held = findHeldTickets(em, holdTokens, true);
+        if (counters != null) {
+            counters.recordTransition(em, countByCategory(held), TicketStatus.RESERVED, TicketStatus.AVAILABLE);
+        }
+        em.createQuery(
+            "UPDATE Ticket t SET t.status = :available, t.holdToken = NULL, t.version = t.version + 1 " +
+            "WHERE t.holdToken IN :tokens AND t.status = :reserved")
+            .setParameter("available", TicketStatus.AVAILABLE)
+            .setParameter("tokens", holdTokens)
+            .setParameter("reserved", TicketStatus.RESERVED)
+            .executeUpdate();
+        em.createQuery("DELETE FROM SeatHold h WHERE h.holdToken IN :tokens")
+            .setParameter("tokens", holdTokens)
+            .executeUpdate();
+        List<Integer> releasedIds = new ArrayList<>(held.size());
+        for (Object[] row : held) {
+            releasedIds.add(((Number) row[0]).intValue());
+        }
+        return releasedIds;
+    }
+
+    /**
+     * Counts the RESERVED tickets of the given holds per category.
+     * @param lock true to lock the tickets, when the caller has not updated them yet
+     * @return number of tickets by category id
+     */
+    private static Map<Integer, Integer> countHeldTicketsByCategory(EntityManager em, List<String> holdTokens,
+                                                                   boolean lock) {
+        return countByCategory(findHeldTickets(em, holdTokens, lock));
+    }
+
+    /**
+     * @return ticket ID and category ID of every RESERVED ticket of the given holds
+     */
+    private static List<Object[]> findHeldTickets(EntityManager em, List<String> holdTokens, boolean lock) {
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = em.createNativeQuery(
+            "SELECT t.ticket_id, t.ticket_category_id FROM tickets t " +
+            "WHERE t.hold_token IN (:tokens) AND t.status = :status" + (lock ? " FOR UPDATE" : ""))
+            .setParameter("tokens", holdTokens)
+            .setParameter("status", TicketStatus.RESERVED.getDbValue())
+            .getResultList();
+        return rows;
+    }
+
+    private static Map<Integer, Integer> countByCategory(List<Object[]> heldTickets) {
+        Map<Integer, Integer> countByCategory = new HashMap<>();
+        for (Object[] row : heldTickets) {
+            countByCategory.merge(((Number) row[1]).intValue(), 1, Integer::sum);
+        }
+        return countByCategory;
+    }
+
+    /**
+     * Confirms a booking against the in-memory seat inventory and hands it to the
+     * write-behind writer. The user and the seats are checked in memory, so no database
+     * work happens on the caller's thread and the returned booking has no ID yet. A
+     * booking the writer later fails to write has its seats released and is counted in
+     * the writer's failed bookings; a keyed one is also dropped from the idempotency
+     * cache, so a retry books it again.
+     * @param idempotencyKey client request id the writer records with the booking, or null
+     * @param outcome metrics of this booking call
+     */
+    private Booking createBookingInMemory(SeatInventory inventory, int userId, String email,
+                                          String idempotencyKey, Set<String> requested,
+                                          Supplier<List<ClaimedTicket>> claim, BookingOutcome outcome) {
+        try {
+            // Step 1: Validate the user against the users loaded with the inventory
+            User user = inventory.getUser(userId);
             if (user == null) {
                 throw new RuntimeException("User not found: " + userId);
             }
 
-            // Step 2: Lock tickets and calculate total price
-            List<Ticket> tickets = new ArrayList<>();
-            BigDecimal totalPrice = BigDecimal.ZERO;
-
-            for (String serial : ticketSerials) {
-                Ticket ticket = em.createQuery(
-                    "SELECT t FROM Ticket t " +
-                    "LEFT JOIN FETCH t.ticketCategory tc " +
-                    "WHERE t.serialNumber = :serial AND t.status = :status",
-                    Ticket.class)
-                    .setParameter("serial", serial)
-                    .setParameter("status", TicketStatus.AVAILABLE)
-                    .setLockMode(LockModeType.PESSIMISTIC_WRITE) // Lock ticket for updates
-                    .setHint("javax.persistence.lock.timeout", 5000) // Lock timeout
-                    .getSingleResult();
-
-                if (ticket.getTicketCategory() == null) {
-                    throw new RuntimeException("Ticket has no category: " + serial);
+            // Step 2: Claim the seats in memory
+            List<ClaimedTicket> claimed = claim.get();
+            if (claimed == null) {
+                throw new TicketConflictException("tickets not available");
+            }
+            Date confirmedAt = new Date();
+            Booking booking = newConfirmedBooking(user, claimed, email, confirmedAt);
+
+            // Step 3: Cache a keyed booking before it is queued, so a failed write can always drop it
+            IdempotentBooking cached = null;
+            String cacheKey = userId + ":" + idempotencyKey;
+            if (idempotencyKey != null) {
+                cached = new IdempotentBooking(booking, requested);
+                recentIdempotentBookings.put(cacheKey, cached);
+            }
+
+            // Step 4: Queue the booking; a closed writer must not keep the seats
+            CompletableFuture<Booking> written;
+            try {
+                written = writeBehindWriter.enqueue(userId, email, claimed, idempotencyKey, confirmedAt);
+            } catch (RuntimeException e) {
+                inventory.release(claimed);
+                if (cached != null) {
+                    recentIdempotentBookings.remove(cacheKey, cached);
+                }
+                throw e;
+            }
+            if (cached != null) {
+                IdempotentBooking entry = cached;
+                written.whenComplete((persisted, failure) -> {
+                    if (failure != null) {
+                        recentIdempotentBookings.remove(cacheKey, entry); // The writer already released the seats
+                    }
+                });
+            }
+            return outcome.succeeded(booking);
+        } catch (RuntimeException e) {
+            throw outcome.failed(e);
+        }
+    }
+
+    /**
+     * Runs a booking, retrying transient database failures within the transient retry
+     * budget, and records its outcome in the service metrics.
+     */
+    private Booking executeBooking(int userId, String email, BookingOutcome outcome, String idempotencyKey,
+                                   TicketClaim claim) {
+        return executeBooking(outcome, () -> attemptBooking(userId, email, idempotencyKey, claim));
+    }
+
+    /**
+     * Runs booking attempts until one succeeds, a failure is permanent or the transient
+     * retry budget is spent, and records the outcome in the service metrics.
+     */
+    private Booking executeBooking(BookingOutcome outcome, Supplier<Booking> attempt) {
+        for (; ; outcome.attempts++) {
+            try {
+                return outcome.succeeded(attempt.get());
+            } catch (RuntimeException e) {
+                if (!retryAfterTransientFailure(e, outcome.attempts)) {
+                    throw outcome.failed(e);
                 }
+            }
+        }
+    }
+
+    /**
+     * Counts a transient failure and waits out the backoff if another attempt is allowed.
+     * @return true if the booking should be attempted again, false if the failure is
+     *         permanent or the transient retry budget is spent
+     */
+    private boolean retryAfterTransientFailure(RuntimeException e, int attempt) {
+        FailureType type = TransientFailureClassifier.classify(e);
+        if (!type.isTransient()) {
+            return false;
+        }
+        transientFailures.get(type).incrementAndGet();
+        RetryPolicy policy = transientRetryPolicy;
+        if (!policy.canRetry(attempt)) {
+            return false;
+        }
+        transientRetries.incrementAndGet();
+        policy.backoff(attempt);
+        return true;
+    }
+
+    /**
+     * Wraps the final failure of a booking, naming the transient cause if retries ran out,
+     * so callers can tell contention apart from unavailable tickets.
+     */
+    private static RuntimeException bookingFailure(RuntimeException e, int attempts) {
+        FailureType type = TransientFailureClassifier.classify(e);
+        if (type.isTransient()) {
+            return new RuntimeException("Booking failed: " + type + " after " + attempts + " attempts: " +
+                e.getMessage(), e);
+        }
+        return new RuntimeException("Booking failed: " + e.getMessage(), e);
+    }
+
+    private void recordAttempts(int attempts) {
+        attemptsPerBooking.incrementAndGet(Math.min(attempts, MAX_TRACKED_ATTEMPTS));
+    }
 
-                totalPrice = totalPrice.add(ticket.getTicketCategory().getPrice());
-                ticket.setStatus(TicketStatus.SOLD);
-                ticket.setPurchaseDate(new Date());
-                tickets.add(ticket);
-                em.merge(ticket); // Update ticket status in the database
-            }
-
-            // Step 3: Create and persist the booking
-            Booking booking = new Booking();
-            booking.setUser(user);
-            booking.setDeliveryAddressEmail(email);
-            booking.setBookingTime(new Date());
-            booking.setTotalPrice(totalPrice);
-            booking.setDiscount(BigDecimal.ZERO);
-            booking.setFinalPrice(totalPrice);
-            booking.setBookingStatus(BookingStatus.CONFIRMED);
-
-            em.persist(booking);
-
-            // Step 4: Associate tickets with the booking
-            for (Ticket ticket : tickets) {
-                BookingTicket bookingTicket = new BookingTicket();
-                bookingTicket.setBooking(booking);
-                bookingTicket.setTicket(ticket);
-                em.persist(bookingTicket);
-            }
-
-            em.flush(); // Persist all changes
-            tx.commit(); // Commit the transaction
-            
-            successfulBookings.incrementAndGet();
+    /**
+     * @return outcome of a booking call that records itself as soon as it succeeds or fails
+     */
+    private BookingOutcome recordedOutcome(int ticketCount) {
+        return new BookingOutcome(ticketCount, true);
+    }
+
+    /**
+     * Metrics of one booking call: tickets, attempts and query time, counted as one
+     * success or failure. Recorded exactly once, either when the booking path finishes or,
+     * for keyed bookings, by the caller once a lost race has been resolved against the winner.
+     */
+    private final class BookingOutcome {
+        private final long startTime = System.nanoTime();
+        private final int ticketCount;
+        private final boolean recordOnCompletion; // False when the caller records the final outcome
+        private int attempts = 1; // Attempts made so far, advanced by the booking path
+
+        BookingOutcome(int ticketCount, boolean recordOnCompletion) {
+            this.ticketCount = ticketCount;
+            this.recordOnCompletion = recordOnCompletion;
+        }
+
+        Booking succeeded(Booking booking) {
+            if (recordOnCompletion) {
+                record(true);
+            }
             return booking;
+        }
 
-        } catch (Exception e) {
-            if (tx.isActive()) {
-                tx.rollback(); // Rollback transaction on failure
+        RuntimeException failed(RuntimeException e) {
+            if (recordOnCompletion) {
+                record(false);
             }
-            failedBookings.incrementAndGet();
-            throw new RuntimeException("Booking failed: " + e.getMessage(), e);
+            return bookingFailure(e, attempts);
+        }
+
+        void record(boolean booked) {
+            totalTicketsBooked.addAndGet(ticketCount);
+            (booked ? successfulBookings : failedBookings).incrementAndGet();
+            recordAttempts(attempts);
+            recordQueryTime(startTime);
+        }
+
+        /**
+         * Records a call that lost its race to the booking of an earlier attempt with the same key:
+         * the work it did is timed, but the booking is counted by the winner.
+         */
+        void recordReplayed() {
+            recordAttempts(attempts);
+            recordQueryTime(startTime);
+        }
+    }
+
+    /**
+     * Books tickets optimistically: tickets are read without locks and updated with a
+     * version check. A concurrent change surfaces as an OptimisticLockException, after
+     * which the whole transaction is retried with jittered backoff until the retry
+     * budget is spent. Attempts, conflicts and retries are recorded per event.
+     */
+    private Booking createBookingOptimistic(int userId, List<String> ticketSerials, String email, String idempotencyKey,
+                                            BookingOutcome outcome) {
+        RetryPolicy policy = optimisticRetryPolicy;
+        int[] eventId = new int[1]; // Filled in by the claim once the tickets are read
+
+        for (; ; outcome.attempts++) {
+            try {
+                Booking booking = attemptBooking(userId, email, idempotencyKey,
+                    em -> claimTicketsOptimistic(em, ticketSerials, eventId));
+                contentionStatsFor(eventId[0]).recordSuccess();
+                return outcome.succeeded(booking);
+            } catch (RuntimeException e) {
+                if (!isOptimisticConflict(e)) {
+                    if (retryAfterTransientFailure(e, outcome.attempts)) {
+                        continue; // Deadlocks can still occur when the version-checked UPDATEs flush
+                    }
+                    throw outcome.failed(e);
+                }
+                EventContentionStats stats = contentionStatsFor(eventId[0]);
+                stats.recordConflict();
+                if (!policy.canRetry(outcome.attempts)) {
+                    stats.recordExhausted();
+                    throw outcome.failed(new RuntimeException("Optimistic retry budget of " +
+                        policy.getMaxAttempts() + " attempts exhausted", e));
+                }
+                stats.recordRetry();
+                policy.backoff(outcome.attempts);
+            }
+        }
+    }
+
+    /**
+     * Runs one booking attempt as a unit of work: on a short-lived EntityManager in
+     * per-transaction mode, or serialized on the shared EntityManager otherwise.
+     */
+    private Booking attemptBooking(int userId, String email, String idempotencyKey, TicketClaim claim) {
+        return attemptBooking(userId, email, idempotencyKey, claim, TicketStatus.AVAILABLE);
+    }
+
+    /**
+     * @param claimedFrom status the claimed tickets have before the booking
+     */
+    private Booking attemptBooking(int userId, String email, String idempotencyKey, TicketClaim claim,
+                                   TicketStatus claimedFrom) {
+        return runInTransaction(em -> bookTickets(em, userId, email, idempotencyKey, claim, claimedFrom));
+    }
+
+    /**
+     * Books tickets inside an open transaction; the caller commits or rolls back.
+     * @param idempotencyKey client request id recorded in the same transaction, or null
+     * @param claimedFrom status the claimed tickets have before the booking
+     */
+    private Booking bookTickets(EntityManager em, int userId, String email, String idempotencyKey,
+                                TicketClaim claim, TicketStatus claimedFrom) {
+        // Step 1: Validate user existence
+        User user = em.find(User.class, userId);
+        if (user == null) {
+            throw new RuntimeException("User not found: " + userId);
+        }
+
+        // Step 2: Claim tickets and count them as sold in their categories
+        List<ClaimedTicket> claimed = claim.claim(em);
+        CategoryAvailabilityCounters counters = categoryCounters;
+        if (counters != null) {
+            counters.recordTransition(em, claimed, claimedFrom, TicketStatus.SOLD);
+        }
+
+        // Step 3: Create the booking and associate the claimed tickets
+        Booking booking = persistBooking(em, user, claimed, email);
+
+        // Step 4: Record the request id; a duplicate fails the flush and rolls the booking back
+        if (idempotencyKey != null) {
+            em.persist(new BookingIdempotencyKey(userId, idempotencyKey, booking, new Date()));
+        }
+
+        em.flush(); // Persist all changes
+        return booking;
+    }
+
+    /**
+     * Books exact serials with a single CALL of the book_tickets stored procedure
+     * (SQL/SQLScriptsNativeBookingProcedure.sql). The user check, the guarded UPDATE, the
+     * pricing and the booking and booking_ticket inserts run in one round trip; a second
+     * one loads the new booking with its user. Ids come from the same pooled generators
+     * the JPA path uses, so both paths can book the same event side by side.
+     * @param idempotencyKey client request id recorded in the same transaction, or null
+     * @return the new booking, with its user loaded
+     */
+    private Booking callBookingProcedure(EntityManager em, int userId, List<String> ticketSerials, String email,
+                                         String idempotencyKey) {
+        // Step 1: Allocate the booking and booking_ticket ids, normally without touching the database
+        SharedSessionContractImplementor session = em.unwrap(SharedSessionContractImplementor.class);
+        int bookingId = nextId(session, Booking.class);
+        StringBuilder tickets = new StringBuilder("[");
+        for (String serial : ticketSerials) {
+            if (tickets.length() > 1) {
+                tickets.append(',');
+            }
+            tickets.append("{\"serial\":\"").append(serial.replace("\\", "\\\\").replace("\"", "\\\""))
+                .append("\",\"id\":").append(nextId(session, BookingTicket.class)).append('}');
+        }
+        tickets.append(']');
+
+        // Step 2: Validate, claim, price and insert in one round trip
+        StoredProcedureQuery call = em.createStoredProcedureQuery(BOOKING_PROCEDURE)
+            .registerStoredProcedureParameter(1, Integer.class, ParameterMode.IN)    // p_user_id
+            .registerStoredProcedureParameter(2, String.class, ParameterMode.IN)     // p_email
+            .registerStoredProcedureParameter(3, Integer.class, ParameterMode.IN)    // p_booking_id
+            .registerStoredProcedureParameter(4, String.class, ParameterMode.IN)     // p_tickets
+            .registerStoredProcedureParameter(5, BigDecimal.class, ParameterMode.OUT) // p_total_price
+            .registerStoredProcedureParameter(6, Integer.class, ParameterMode.OUT)   // p_result
+            .setParameter(1, userId)
+            .setParameter(2, email)
+            .setParameter(3, bookingId)
+            .setParameter(4, tickets.toString());
+        // Only a successful call returns a result set: the booked tickets per category
+        List<?> bookedByCategory = call.execute() ? call.getResultList() : Collections.emptyList();
+
+        // Step 3: Map the outcome; the caller's rollback undoes a partial claim
+        int result = ((Number) call.getOutputParameterValue(6)).intValue();
+        switch (result) {
+            case PROCEDURE_BOOKED:
+                break;
+            case PROCEDURE_USER_NOT_FOUND:
+                throw new RuntimeException("User not found: " + userId);
+            case PROCEDURE_TICKET_CONFLICT:
+                throw new TicketConflictException("Ticket conflict: not all of " + ticketSerials + " were still available");
+            case PROCEDURE_DUPLICATE_SERIALS:
+                throw new RuntimeException("Duplicate ticket serials in request: " + ticketSerials);
+            default:
+                throw new IllegalStateException(BOOKING_PROCEDURE + " returned unknown result " + result);
+        }
+
+        // Step 4: Mirror the category counters the procedure updated
+        CategoryAvailabilityCounters counters = categoryCounters;
+        if (counters != null) {
+            Map<Integer, Integer> countByCategory = new HashMap<>();
+            for (Object row : bookedByCategory) {
+                Object[] columns = (Object[]) row;
+                countByCategory.put(((Number) columns[0]).intValue(), ((Number) columns[1]).intValue());
+            }
+            counters.mirrorOnCommit(em, countByCategory, TicketStatus.AVAILABLE, TicketStatus.SOLD);
+        }
+
+        // Step 5: Load the inserted booking with its user, so callers and the idempotency LRU
+        // get a populated entity rather than an uninitialized proxy
+        Booking booking = em.createQuery(
+            "SELECT b FROM Booking b JOIN FETCH b.user WHERE b.bookingId = :bookingId", Booking.class)
+            .setParameter("bookingId", bookingId)
+            .getSingleResult();
+
+        // Step 6: Record the request id; a duplicate fails the flush and rolls the booking back
+        if (idempotencyKey != null) {
+            em.persist(new BookingIdempotencyKey(userId, idempotencyKey, booking, new Date()));
+            em.flush();
+        }
+        return booking;
+    }
+
+    /**
+     * Draws the next id from an entity's identifier generator. With the pooled-lo
+     * optimizer only one call in 50 reads the sequence table.
+     */
+    private static int nextId(SharedSessionContractImplementor session, Class<?> entityClass) {
+        IdentifierGenerator generator = session.getFactory().getMetamodel()
+            .entityPersister(entityClass).getIdentifierGenerator();
+        return ((Number) generator.generate(session, null)).intValue();
+    }
+
+    /**
+     * Runs work in its own transaction, on a short-lived EntityManager in per-transaction
+     * mode or serialized on the shared EntityManager otherwise. In shared mode the
+     * persistence context is cleared afterwards, so entities never outlive their booking.
+     */
+    private <T> T runInTransaction(Function<EntityManager, T> work) {
+        return unitOfWork.execute(work);
+    }
+
+    /**
+     * Claims tickets one serial at a time: each ticket is read with a pessimistic lock
+     * and then marked as sold. Serials are locked in sorted order, so two bookings
+     * wanting the same tickets queue behind each other instead of deadlocking.
+     * @return the claimed tickets in serial order
+     */
+    private List<ClaimedTicket> claimTicketsPerSerial(EntityManager em, List<String> ticketSerials) {
+        List<String> lockOrder = new ArrayList<>(ticketSerials);
+        Collections.sort(lockOrder); // Deterministic lock order across transactions
+        List<ClaimedTicket> claimed = new ArrayList<>();
+        for (String serial : lockOrder) {
+            Ticket ticket = em.createQuery(
+                "SELECT t FROM Ticket t " +
+                "LEFT JOIN FETCH t.ticketCategory tc " +
+                "WHERE t.serialNumber = :serial AND t.status = :status",
+                Ticket.class)
+                .setParameter("serial", serial)
+                .setParameter("status", TicketStatus.AVAILABLE)
+                .setLockMode(LockModeType.PESSIMISTIC_WRITE) // Lock ticket for updates
+                .setHint("javax.persistence.lock.timeout", 5000) // Lock timeout
+                .getSingleResult();
+
+            if (ticket.getTicketCategory() == null) {
+                throw new RuntimeException("Ticket has no category: " + serial);
+            }
+
+            ticket.setStatus(TicketStatus.SOLD);
+            ticket.setPurchaseDate(new Date());
+            em.merge(ticket); // Update ticket status in the database
+            claimed.add(new ClaimedTicket(ticket.getTicketId(),
+                ticket.getTicketCategory().getTicketCategoryId(), ticket.getTicketCategory().getPrice()));
+        }
+        return claimed;
+    }
+
+    /**
+     * Reads the tickets without locks and marks them as sold. The flush issues
+     * version-checked UPDATEs, so a ticket changed by another transaction since it was
+     * read raises an OptimisticLockException instead of being overwritten.
+     * @param eventId receives the event of the tickets for contention statistics
+     * @return the claimed tickets
+     */
+    private List<ClaimedTicket> claimTicketsOptimistic(EntityManager em, List<String> ticketSerials, int[] eventId) {
+        Set<String> serials = new LinkedHashSet<>(ticketSerials);
+        List<Object[]> rows = em.createQuery(
+            "SELECT t, t.event.eventId FROM Ticket t " +
+            "JOIN FETCH t.ticketCategory " +
+            "WHERE t.serialNumber IN :serials AND t.status = :status",
+            Object[].class)
+            .setParameter("serials", serials)
+            .setParameter("status", TicketStatus.AVAILABLE)
+            .getResultList();
+
+        if (!rows.isEmpty()) {
+            eventId[0] = (Integer) rows.get(0)[1];
+            contentionStatsFor(eventId[0]).recordAttempt();
+        }
+        if (rows.size() != ticketSerials.size()) {
+            throw new TicketConflictException("Tickets not available: only " + rows.size() + " of " +
+                ticketSerials.size() + " tickets are available");
+        }
+
+        Date now = new Date();
+        List<ClaimedTicket> claimed = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            Ticket ticket = (Ticket) row[0];
+            ticket.setStatus(TicketStatus.SOLD);
+            ticket.setPurchaseDate(now);
+            claimed.add(new ClaimedTicket(ticket.getTicketId(),
+                ticket.getTicketCategory().getTicketCategoryId(), ticket.getTicketCategory().getPrice()));
+        }
+
+        em.flush(); // Version-checked UPDATEs; conflicts surface here
+        return claimed;
+    }
+
+    /**
+     * Turns the RESERVED tickets of a hold into SOLD ones and deletes the hold. The UPDATE
+     * only matches tickets that still carry the hold token, so a hold the sweeper released
+     * first is rejected instead of double-selling its tickets.
+     * @return the claimed tickets
+     */
+    private List<ClaimedTicket> claimHeldTickets(EntityManager em, SeatHold hold) {
+        Date now = new Date();
+        if (!hold.getExpiresAt().after(now)) {
+            throw new RuntimeException("Hold expired: " + hold.getHoldToken());
+        }
+
+        // Read the held tickets before the token is cleared
+        List<Object[]> rows = em.createQuery(
+            "SELECT t.ticketId, tc.ticketCategoryId, tc.price FROM Ticket t " +
+            "JOIN t.ticketCategory tc WHERE t.holdToken = :token AND t.status = :reserved",
+            Object[].class)
+            .setParameter("token", hold.getHoldToken())
+            .setParameter("reserved", TicketStatus.RESERVED)
+            .getResultList();
+
+        int updated = em.createQuery(
+            "UPDATE Ticket t SET t.status = :sold, t.purchaseDate = :now, t.holdToken = NULL, " +
+            "t.version = t.version + 1 WHERE t.holdToken = :token AND t.status = :reserved")
+            .setParameter("sold", TicketStatus.SOLD)
+            .setParameter("now", now, TemporalType.TIMESTAMP)
+            .setParameter("token", hold.getHoldToken())
+            .setParameter("reserved", TicketStatus.RESERVED)
+            .executeUpdate();
+        if (updated != hold.getTicketCount() || rows.size() != updated) {
+            throw new RuntimeException("Hold expired or released: " + hold.getHoldToken());
+        }
+
+        em.createQuery("DELETE FROM SeatHold h WHERE h.holdToken = :token")
+            .setParameter("token", hold.getHoldToken())
+            .executeUpdate();
+        return toClaimedTickets(rows, updated);
+    }
+
+    /**
+     * @return true if the failure, or any of its causes, is an optimistic version conflict
+     */
+    private static boolean isOptimisticConflict(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof OptimisticLockException || cause instanceof StaleStateException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Claims all tickets with a single guarded UPDATE that only flips rows still available.
+     * If fewer rows than requested were updated, another buyer got some of them first
+     * and the whole booking is rejected. Prices are then read with one query.
+     * @return the claimed tickets
+     */
+    private List<ClaimedTicket> claimTicketsSetBased(EntityManager em, List<String> ticketSerials) {
+        Set<String> serials = new LinkedHashSet<>(ticketSerials);
+        if (serials.size() != ticketSerials.size()) {
+            throw new RuntimeException("Duplicate ticket serials in request: " + ticketSerials);
+        }
+        SerialNumberIndex index = serialNumberIndex;
+        int[] indexedIds = index != null ? index.getTicketIds(ticketSerials) : null;
+        if (indexedIds != null) {
+            return claimTicketIdsSetBased(em, indexedIds);
+        }
+
+        int updated = em.createQuery(CLAIM_SERIALS_UPDATE)
+            .setParameter("sold", TicketStatus.SOLD)
+            .setParameter("now", new Date(), TemporalType.TIMESTAMP)
+            .setParameter("serials", serials)
+            .setParameter("available", TicketStatus.AVAILABLE)
+            .executeUpdate();
+
+        if (updated != serials.size()) {
+            throw new TicketConflictException("Ticket conflict: only " + updated + " of " +
+                serials.size() + " tickets were still available");
+        }
+
+        return toClaimedTickets(em.createQuery(
+            "SELECT t.ticketId, tc.ticketCategoryId, tc.price FROM Ticket t " +
+            "JOIN t.ticketCategory tc WHERE t.serialNumber IN :serials",
+            Object[].class)
+            .setParameter("serials", serials)
+            .getResultList(), serials.size());
+    }
+
+    /**
+     * Same guarded UPDATE as claimTicketsSetBased, for serials already resolved to ticket IDs.
+     * @return the claimed tickets
+     */
+    private List<ClaimedTicket> claimTicketIdsSetBased(EntityManager em, int[] ids) {
+        List<Integer> ticketIds = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            ticketIds.add(id);
+        }
+
+        int updated = em.createQuery(CLAIM_IDS_UPDATE)
+            .setParameter("sold", TicketStatus.SOLD)
+            .setParameter("now", new Date(), TemporalType.TIMESTAMP)
+            .setParameter("ids", ticketIds)
+            .setParameter("available", TicketStatus.AVAILABLE)
+            .executeUpdate();
+
+        if (updated != ticketIds.size()) {
+            throw new TicketConflictException("Ticket conflict: only " + updated + " of " +
+                ticketIds.size() + " tickets were still available");
+        }
+
+        return toClaimedTickets(em.createQuery(
+            "SELECT t.ticketId, tc.ticketCategoryId, tc.price FROM Ticket t " +
+            "JOIN t.ticketCategory tc WHERE t.ticketId IN :ids",
+            Object[].class)
+            .setParameter("ids", ticketIds)
+            .getResultList(), ticketIds.size());
+    }
+
+    /**
+     * Locks up to quantity free tickets of a category, skipping rows other transactions
+     * already hold, and marks them as sold.
+     * @return the claimed tickets
+     */
+    private List<ClaimedTicket> claimAnyAvailable(EntityManager em, int eventId, int ticketCategoryId, int quantity) {
+        @SuppressWarnings("unchecked")
+        List<Number> ids = em.createNativeQuery(CLAIM_ANY_AVAILABLE_SQL)
+            .setParameter(1, eventId)
+            .setParameter(2, ticketCategoryId)
+            .setParameter(3, TicketStatus.AVAILABLE.getDbValue())
+            .setParameter(4, quantity)
+            .getResultList();
+
+        if (ids.size() < quantity) {
+            SoldOutRegistry registry = soldOutRegistry;
+            if (ids.isEmpty() && registry != null) {
+                registry.markProbablySoldOut(eventId, ticketCategoryId);
+            }
+            throw new TicketConflictException("Not enough available tickets: requested " + quantity +
+                ", found " + ids.size() + " for category " + ticketCategoryId);
+        }
+
+        List<Integer> ticketIds = new ArrayList<>(ids.size());
+        for (Number id : ids) {
+            ticketIds.add(id.intValue());
+        }
+
+        // The rows are locked by this transaction, so every one of them is updated
+        em.createQuery(
+            "UPDATE Ticket t SET t.status = :sold, t.purchaseDate = :now, t.version = t.version + 1 " +
+            "WHERE t.ticketId IN :ids")
+            .setParameter("sold", TicketStatus.SOLD)
+            .setParameter("now", new Date(), TemporalType.TIMESTAMP)
+            .setParameter("ids", ticketIds)
+            .executeUpdate();
+
+        return toClaimedTickets(em.createQuery(
+            "SELECT t.ticketId, tc.ticketCategoryId, tc.price FROM Ticket t " +
+            "JOIN t.ticketCategory tc WHERE t.ticketId IN :ids",
+            Object[].class)
+            .setParameter("ids", ticketIds)
+            .getResultList(), ticketIds.size());
+    }
+
+    /**
+     * Converts (ticketId, ticketCategoryId, price) rows into claimed tickets.
+     * @param expected number of tickets that were claimed
+     */
+    private List<ClaimedTicket> toClaimedTickets(List<Object[]> rows, int expected) {
+        if (rows.size() != expected) {
+            throw new RuntimeException("Ticket has no category: expected " + expected + " priced tickets, found " + rows.size());
+        }
+
+        List<ClaimedTicket> claimed = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            claimed.add(new ClaimedTicket((Integer) row[0], (Integer) row[1], (BigDecimal) row[2]));
+        }
+        return claimed;
+    }
+
+    /**
+     * Persists a confirmed booking for the claimed tickets and links each ticket to it.
+     * Tickets are referenced by id only, so no extra SELECT is issued for them.
+     */
+    private Booking persistBooking(EntityManager em, User user, List<ClaimedTicket> claimed, String email) {
+        Booking booking = newConfirmedBooking(user, claimed, email, new Date());
+        em.persist(booking);
+
+        for (ClaimedTicket ticket : claimed) {
+            BookingTicket bookingTicket = new BookingTicket();
+            bookingTicket.setBooking(booking);
+            bookingTicket.setTicket(em.getReference(Ticket.class, ticket.getTicketId()));
+            em.persist(bookingTicket);
+        }
+        return booking;
+    }
+
+    /**
+     * Retrieves the categories of an event that still have available tickets.
+     * @param eventId ID of the event
+     * @return List of ticket category IDs
+     */
+    public List<Integer> getAvailableTicketCategoryIds(int eventId) {
+        long startTime = System.nanoTime();
+        EntityManager em = openEntityManager();
+        try {
+            return readAvailability(em, readEm -> readEm.createQuery(
+                "SELECT DISTINCT t.ticketCategory.ticketCategoryId FROM Ticket t " +
+                "WHERE t.event.eventId = :eventId AND t.status = :status",
+                Integer.class)
+                .setParameter("eventId", eventId)
+                .setParameter("status", TicketStatus.AVAILABLE)
+                .getResultList());
+        } catch (Exception e) {
+            System.err.println("Error getting available ticket categories: " + e.getMessage());
+            return new ArrayList<>();
         } finally {
+            closeEntityManager(em);
             recordQueryTime(startTime);
         }
     }
 
+    /**
+     * Builds an unsaved confirmed booking priced from the claimed tickets.
+     */
+    static Booking newConfirmedBooking(User user, List<ClaimedTicket> claimed, String email, Date bookingTime) {
+        BigDecimal totalPrice = BigDecimal.ZERO;
+        for (ClaimedTicket ticket : claimed) {
+            totalPrice = totalPrice.add(ticket.getPrice());
+        }
+
+        Booking booking = new Booking();
+        booking.setUser(user);
+        booking.setDeliveryAddressEmail(email);
+        booking.setBookingTime(bookingTime);
+        booking.setTotalPrice(totalPrice);
+        booking.setDiscount(BigDecimal.ZERO);
+        booking.setFinalPrice(totalPrice);
+        booking.setBookingStatus(BookingStatus.CONFIRMED);
+        return booking;
+    }
+
     /**
      * Locks tickets for booking with pessimistic locking to ensure availability.
      * @param serials List of ticket serial numbers
      * @return List of locked Ticket objects
      */
     public List<Ticket> lockTickets(List<String> serials) {
+        if (em == null) {
+            throw new IllegalStateException("lockTickets requires the shared EntityManager");
+        }
         return em.createQuery(
             "SELECT t FROM Ticket t WHERE t.serialNumber IN :serials AND t.status = :status",
             Ticket.class)
@@ -175,8 +1543,8 @@ public class BookingService {
      */
     private void recordQueryTime(long startTime) {
         long endTime = System.nanoTime();
-        totalQueryTime += (endTime - startTime);
-        totalQueries++;
+        totalQueryTime.addAndGet(endTime - startTime);
+        totalQueries.incrementAndGet();
     }
 
     // Getter methods for performance and booking metrics
@@ -189,10 +1557,100 @@ public class BookingService {
     }
 
     public double getAverageQueryTime() {
-        return totalQueries > 0 ? (double) totalQueryTime / totalQueries / 1_000_000 : 0; // Convert to milliseconds
+        int queries = totalQueries.get();
+        return queries > 0 ? (double) totalQueryTime.get() / queries / 1_000_000 : 0; // Convert to milliseconds
     }
 
     public int getTotalQueries() {
-        return totalQueries;
+        return totalQueries.get();
+    }
+
+    public int getCreatedHolds() {
+        return createdHolds.get();
+    }
+
+    public int getConfirmedHolds() {
+        return confirmedHolds.get();
+    }
+
+    public int getIdempotentReplays() {
+        return idempotentReplays.get();
+    }
+
+    /**
+     * Returns how many bookings needed each number of attempts: index n holds the bookings
+     * (successful or not) that took n attempts; the last index also counts anything beyond it.
+     */
+    public int[] getAttemptsHistogram() {
+        int[] histogram = new int[attemptsPerBooking.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = attemptsPerBooking.get(i);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return transient failures seen per type, including ones that were retried successfully
+     */
+    public Map<FailureType, Integer> getTransientFailures() {
+        Map<FailureType, Integer> counts = new EnumMap<>(FailureType.class);
+        transientFailures.forEach((type, count) -> counts.put(type, count.get()));
+        return counts;
+    }
+
+    /**
+     * @return persistence context sizes recorded at the end of each booking transaction
+     */
+    public UnitOfWork getUnitOfWork() {
+        return unitOfWork;
+    }
+
+    public int getTransientRetries() {
+        return transientRetries.get();
+    }
+
+    /**
+     * Claims the tickets of one booking inside an open transaction.
+     */
+    private interface TicketClaim {
+        List<ClaimedTicket> claim(EntityManager em);
+    }
+
+    /**
+     * Raised when tickets a booking or hold asked for are no longer available. Booking
+     * failures wrap it, so callers look for it with {@link #isCauseOf(Throwable)}.
+     */
+    public static class TicketConflictException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public TicketConflictException(String message) {
+            super(message);
+        }
+
+        /**
+         * @return true if the failure, or one of its causes, is a ticket conflict
+         */
+        public static boolean isCauseOf(Throwable failure) {
+            for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+                if (cause instanceof TicketConflictException) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Booking created for a client request id, with the ticket serials the request asked for.
+     * The booking's user is loaded, so the detached booking can be handed to every retry.
+     */
+    private static final class IdempotentBooking {
+        private final Booking booking;
+        private final Set<String> ticketSerials;
+
+        IdempotentBooking(Booking booking, Set<String> ticketSerials) {
+            this.booking = booking;
+            this.ticketSerials = ticketSerials;
+        }
     }
 }
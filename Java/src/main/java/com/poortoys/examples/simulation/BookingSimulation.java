@@ -6,7 +6,9 @@
 package com.poortoys.examples.simulation;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -16,29 +18,41 @@ import com.poortoys.examples.dao.UserDAO;
 import com.poortoys.examples.entities.User;
 import com.poortoys.examples.entities.Event;
 import com.poortoys.examples.entities.Booking;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
 
 public class BookingSimulation {
-    // Configuration constants
-    private static final int NUM_USERS = 5000; // Total number of simulated users
-    private static final int MAX_TICKETS_PER_USER = 1; // Maximum tickets a user can book
-    private static final int NUMBER_OF_CORES = Runtime.getRuntime().availableProcessors(); // Number of available CPU cores
-    private static final int THREAD_POOL_SIZE = NUMBER_OF_CORES * 2; // Thread pool size for managing tasks
-    private static final int SIMULATION_TIMEOUT_MINUTES = 3; // Simulation timeout in minutes
-
     // Simulation components
     private final BookingService bookingService; // Handles booking logic
     private final UserDAO userDAO; // DAO for retrieving user data
     private final EventDAO eventDAO; // DAO for retrieving event data
     private final TicketDAO ticketDAO; // DAO for ticket-related operations
-    private final ExecutorService executorService; // Thread pool for concurrent tasks
+    private ExecutorService executorService; // Runs the simulated users, created per run for the thread mode
 
     // Metrics for performance and booking results
     private long simulationStartTime; // Start time of the simulation
     private long simulationEndTime; // End time of the simulation
+    private long simulationDeadline; // System.nanoTime() at which the run's duration is used up
     private final AtomicInteger successfulBookings = new AtomicInteger(0); // Counter for successful bookings
     private final AtomicInteger failedBookings = new AtomicInteger(0); // Counter for failed bookings
-    private int initialTicketCount; // Initial count of available tickets for the event
-    private Event event; // The event being simulated
+    private final AtomicInteger usersNotStarted = new AtomicInteger(0); // Users skipped when the duration ran out
+    private final Map<Integer, Integer> initialTicketCounts = new LinkedHashMap<>(); // Available tickets per event at start
+    private boolean bestAvailableAllocation = false; // Book any free ticket of a category instead of exact serials
+    private AsyncBookingService asyncBookingService; // Submits bookings through a bounded queue, if set
+    private ThreadMode threadMode = ThreadMode.PLATFORM; // Platform thread pool or one virtual thread per user
+    private WorkloadSpec workload = new WorkloadSpec(); // Users, events, order sizes and pacing of a run
+    private SeatMapService seatMapService; // Serves the seat map users look at before booking, if set
+    private BookingBatcher bookingBatcher; // Group-commits exact-serial bookings, if set
+    private final AtomicInteger unfinishedBookings = new AtomicInteger(0); // Not done when the grace period ran out
+    private static final long COMPLETION_GRACE_SECONDS = 30; // Time bookings still queued or running at the deadline get to finish
+    private long completionDeadline; // System.nanoTime() after which unfinished bookings are given up on
+    // Intended starts of the open-loop bookings issued but not yet recorded, by user index
+    private final Map<Integer, Long> openLoopInFlight = new ConcurrentHashMap<>();
+
+    // Open-loop latency in microseconds, from the intended and from the actual start of each booking
+    private static final int LATENCY_SIGNIFICANT_DIGITS = 3; // Histogram resolution, 0.1% of the value
+    private Histogram responseTimes = new ConcurrentHistogram(LATENCY_SIGNIFICANT_DIGITS);
+    private Histogram serviceTimes = new ConcurrentHistogram(LATENCY_SIGNIFICANT_DIGITS);
 
     /**
      * Constructor to initialize the simulation with required components.
@@ -53,19 +67,99 @@ public class BookingSimulation {
         this.userDAO = userDAO;
         this.eventDAO = eventDAO;
         this.ticketDAO = ticketDAO;
-        this.executorService = Executors.newFixedThreadPool(THREAD_POOL_SIZE); // Initialize thread pool
     }
 
     /**
-     * Runs the booking simulation for a specific event.
+     * Switches between picking exact serials (default) and "best available" allocation,
+     * where each user books any free tickets of a random category via SKIP LOCKED.
+     * @param bestAvailableAllocation true to use best-available allocation
+     */
+    public void setBestAvailableAllocation(boolean bestAvailableAllocation) {
+        this.bestAvailableAllocation = bestAvailableAllocation;
+    }
+
+    /**
+     * Submits bookings through an AsyncBookingService instead of the simulation's own
+     * thread pool, so the bounded queue applies backpressure to the simulated users.
+     * @param asyncBookingService async service wrapping this simulation's BookingService
+     */
+    public void setAsyncBookingService(AsyncBookingService asyncBookingService) {
+        this.asyncBookingService = asyncBookingService;
+    }
+
+    /**
+     * Selects whether simulated users run on a fixed platform thread pool (default)
+     * or on one virtual thread each. VIRTUAL requires JDK 21 or later.
+     * @param threadMode thread mode to use
+     */
+    public void setThreadMode(ThreadMode threadMode) {
+        if (threadMode == ThreadMode.VIRTUAL && !VirtualThreads.isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require JDK 21 or later");
+        }
+        this.threadMode = threadMode;
+    }
+
+    /**
+     * Books exact serials through a BookingBatcher, which commits the bookings of
+     * concurrent users together, instead of one transaction per booking. Each user
+     * waits for the batch that carries its booking.
+     * @param bookingBatcher batcher wrapping this simulation's BookingService, or null
+     */
+    public void setBookingBatcher(BookingBatcher bookingBatcher) {
+        this.bookingBatcher = bookingBatcher;
+    }
+
+    /**
+     * Sets the number of simulated users (default 5000).
+     * @param concurrentUsers number of users
+     */
+    public void setConcurrentUsers(int concurrentUsers) {
+        workload.setUsers(concurrentUsers);
+    }
+
+    /**
+     * Sets the workload runSimulation() replays: user count, target events, tickets per
+     * order, concurrency, ramp-up, duration and think time.
+     * @param workload workload to run
+     */
+    public void setWorkload(WorkloadSpec workload) {
+        this.workload = workload;
+    }
+
+    public WorkloadSpec getWorkload() {
+        return workload;
+    }
+
+    /**
+     * Lets every simulated user fetch the event's seat map before booking, as a client
+     * would, from the in-memory SeatMapService instead of the tickets table.
+     * @param seatMapService service with the simulated event loaded
+     */
+    public void setSeatMapService(SeatMapService seatMapService) {
+        this.seatMapService = seatMapService;
+    }
+
+    /**
+     * Runs the booking simulation for a specific event, with the rest of the workload as set.
      * @param eventId ID of the event to simulate
      */
     public void runSimulation(int eventId) {
+        runSimulation(workload.forEvent(eventId));
+    }
+
+    /**
+     * Runs the booking simulation for the events of the workload.
+     */
+    public void runSimulation() {
+        runSimulation(workload);
+    }
+
+    private void runSimulation(WorkloadSpec spec) {
         try {
-            initializeSimulation(eventId); // Initialize simulation components
-            executeBookingTasks(eventId); // Execute booking tasks concurrently
+            initializeSimulation(spec); // Initialize simulation components
+            executeBookingTasks(spec); // Execute booking tasks concurrently
             waitForCompletion(); // Wait for all tasks to finish
-            printSimulationResults(eventId); // Display simulation results
+            printSimulationResults(spec); // Display simulation results
         } catch (Exception e) {
             handleSimulationError(e); // Handle any errors during simulation
         } finally {
@@ -74,50 +168,356 @@ public class BookingSimulation {
     }
 
     /**
-     * Initializes the simulation by loading event details and tickets.
+     * Runs the simulation once per claim strategy against the same event and prints the
+     * throughput of each run side by side, e.g. SET_BASED_UPDATE (JPA reference path)
+     * against NATIVE_PROCEDURE (single-CALL fast path). Every run books exact serials and
+     * consumes tickets, so the event needs enough of them for all runs.
      * @param eventId ID of the event to simulate
+     * @param strategies claim strategies to compare, in run order
      */
-    private void initializeSimulation(int eventId) {
+    public void compareClaimStrategies(int eventId, TicketClaimStrategy... strategies) {
+        TicketClaimStrategy originalStrategy = bookingService.getClaimStrategy();
+        boolean originalBestAvailable = bestAvailableAllocation;
+        bestAvailableAllocation = false; // Best-available bookings do not go through the claim strategy
+        List<String> rows = new ArrayList<>();
+        try {
+            for (TicketClaimStrategy strategy : strategies) {
+                bookingService.setClaimStrategy(strategy);
+                runSimulation(eventId);
+                double seconds = (simulationEndTime - simulationStartTime) / 1_000_000_000.0;
+                rows.add(String.format("%-22s | %-10d | %-8d | %-10d | %-14.1f", strategy,
+                    successfulBookings.get(), failedBookings.get(), (simulationEndTime - simulationStartTime) / 1_000_000,
+                    seconds > 0 ? successfulBookings.get() / seconds : 0));
+            }
+        } finally {
+            bookingService.setClaimStrategy(originalStrategy);
+            bestAvailableAllocation = originalBestAvailable;
+        }
+
+        System.out.println("\n=== Claim Strategy Comparison ===");
+        System.out.printf("%-22s | %-10s | %-8s | %-10s | %-14s%n",
+            "Strategy", "Successes", "Failures", "Time ms", "Bookings/s");
+        rows.forEach(System.out::println);
+    }
+
+    /**
+     * Runs the simulation once with one transaction per booking and once through the
+     * batcher, and prints bookings/s and commits/s of both. Users call the booking path
+     * directly and book exact serials in both runs; every run consumes tickets, so the
+     * event needs enough of them for two runs.
+     * @param eventId ID of the event to simulate
+     * @param batcher batcher wrapping this simulation's BookingService
+     */
+    public void compareGroupCommit(int eventId, BookingBatcher batcher) {
+        BookingBatcher originalBatcher = bookingBatcher;
+        AsyncBookingService originalAsync = asyncBookingService;
+        boolean originalBestAvailable = bestAvailableAllocation;
+        bestAvailableAllocation = false; // The batcher books exact serials
+        asyncBookingService = null; // The async queue would pace both runs the same way
+        List<String> rows = new ArrayList<>();
+        try {
+            // Step 1: One commit per successful booking
+            bookingBatcher = null;
+            runSimulation(eventId);
+            rows.add(groupCommitRow("Per-booking commit", successfulBookings.get()));
+
+            // Step 2: Batches of concurrent bookings share a commit
+            bookingBatcher = batcher;
+            int commitsBefore = batcher.getCommits();
+            runSimulation(eventId);
+            rows.add(groupCommitRow("Group commit", batcher.getCommits() - commitsBefore));
+        } finally {
+            bookingBatcher = originalBatcher;
+            asyncBookingService = originalAsync;
+            bestAvailableAllocation = originalBestAvailable;
+        }
+
+        System.out.println("\n=== Group Commit Comparison ===");
+        System.out.printf("%-20s | %-10s | %-8s | %-8s | %-10s | %-12s | %-12s%n",
+            "Path", "Successes", "Failures", "Commits", "Time ms", "Bookings/s", "Commits/s");
+        rows.forEach(System.out::println);
+        System.out.printf("Batcher: %d batches, %.1f requests per batch, %d fell back to single bookings%n",
+            batcher.getBatches(), batcher.getAverageBatchSize(), batcher.getFallbackBatches());
+    }
+
+    private String groupCommitRow(String path, int commits) {
+        double seconds = (simulationEndTime - simulationStartTime) / 1_000_000_000.0;
+        return String.format("%-20s | %-10d | %-8d | %-8d | %-10d | %-12.1f | %-12.1f", path,
+            successfulBookings.get(), failedBookings.get(), commits, (simulationEndTime - simulationStartTime) / 1_000_000,
+            seconds > 0 ? successfulBookings.get() / seconds : 0, seconds > 0 ? commits / seconds : 0);
+    }
+
+    /**
+     * Initializes the simulation by loading event details and tickets.
+     * @param spec workload of the run
+     */
+    private void initializeSimulation(WorkloadSpec spec) {
         System.out.println("\n=== Starting MySQL Booking Simulation ===");
-        event = eventDAO.findById(eventId); // Retrieve event details
-        if (event == null) {
-            throw new RuntimeException("Event not found: " + eventId);
+        System.out.print("Workload:\n" + spec);
+        initialTicketCounts.clear();
+        for (int eventId : spec.getEventIds()) {
+            Event event = eventDAO.findById(eventId); // Retrieve event details
+            if (event == null) {
+                throw new RuntimeException("Event not found: " + eventId);
+            }
+            int initialTicketCount = (int) bookingService.countAvailableTickets(eventId); // Count available tickets
+            initialTicketCounts.put(eventId, initialTicketCount);
+            System.out.println("Event: " + event.getEventName() + " (ID " + eventId + ")");
+            System.out.println("Initial ticket count: " + initialTicketCount);
         }
-        initialTicketCount = bookingService.getAvailableTicketSerials(eventId).size(); // Count available tickets
-        System.out.println("Event: " + event.getEventName());
-        System.out.println("Initial ticket count: " + initialTicketCount);
+        System.out.println("Thread mode: " + threadMode);
+        System.out.println("Claim strategy: " + bookingService.getClaimStrategy());
+        successfulBookings.set(0); // Counters are per run
+        failedBookings.set(0);
+        usersNotStarted.set(0);
+        unfinishedBookings.set(0);
+        responseTimes = new ConcurrentHistogram(LATENCY_SIGNIFICANT_DIGITS);
+        serviceTimes = new ConcurrentHistogram(LATENCY_SIGNIFICANT_DIGITS);
+        executorService = threadMode == ThreadMode.VIRTUAL
+            ? VirtualThreads.newVirtualThreadPerTaskExecutor() // One virtual thread per user
+            : Executors.newFixedThreadPool(spec.getConcurrency()); // Initialize thread pool
         simulationStartTime = System.nanoTime(); // Mark the start time of the simulation
+        simulationDeadline = simulationStartTime + TimeUnit.SECONDS.toNanos(spec.getDurationSeconds());
+        completionDeadline = simulationDeadline + TimeUnit.SECONDS.toNanos(COMPLETION_GRACE_SECONDS);
+        openLoopInFlight.clear();
     }
 
     /**
      * Executes concurrent booking tasks for the simulated users.
-     * @param eventId ID of the event being simulated
+     * @param spec workload of the run
      */
-    private void executeBookingTasks(int eventId) {
-        List<String> availableTickets = bookingService.getAvailableTicketSerials(eventId); // Retrieve available tickets
-        int adjustedUsers = Math.min(NUM_USERS, availableTickets.size()); // Adjust user count based on ticket availability
+    private void executeBookingTasks(WorkloadSpec spec) {
+        Map<Integer, List<String>> availableTicketsByEvent = new LinkedHashMap<>();
+        Map<Integer, List<Integer>> categoryIdsByEvent = new LinkedHashMap<>();
+        int totalAvailable = 0;
+        for (int eventId : spec.getEventIds()) {
+            List<String> availableTickets = bookingService.getAvailableTicketSerials(eventId); // Retrieve available tickets
+            availableTicketsByEvent.put(eventId, availableTickets);
+            totalAvailable += availableTickets.size();
+            if (bestAvailableAllocation) {
+                categoryIdsByEvent.put(eventId, bookingService.getAvailableTicketCategoryIds(eventId)); // Categories to allocate from
+            }
+        }
+        int adjustedUsers = Math.min(spec.getUsers(), totalAvailable); // Adjust user count based on ticket availability
 
         CountDownLatch completionLatch = new CountDownLatch(adjustedUsers); // Latch to track task completion
         List<User> users = userDAO.findAll(); // Load all users from the database
-        Random random = new Random(); // Random generator for ticket and user selection
+        Random random = spec.newRandom(); // Random generator for the schedule: event, order size, think time and arrivals
+
+        if (spec.isOpenLoop()) {
+            issueAtArrivalRate(spec, adjustedUsers, completionLatch, users, availableTicketsByEvent, categoryIdsByEvent, random);
+        } else {
+            startClosedLoopUsers(spec, adjustedUsers, completionLatch, users, availableTicketsByEvent, categoryIdsByEvent, random);
+        }
+
+        try {
+            // Wait for all tasks to complete; no user starts after the deadline, but the ones
+            // already queued or running get a grace period so their latency is not dropped
+            if (!completionLatch.await(completionDeadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                unfinishedBookings.set((int) completionLatch.getCount());
+                System.err.println("Simulation timed out before completion");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Restore the interrupted status
+        }
+        recordUnfinishedOpenLoopBookings();
+    }
+
+    /**
+     * Records every open-loop booking still unfinished after the grace period with its
+     * latency so far, from its intended start to now. That is a lower bound of its real
+     * latency, but leaving it out would hide the slowest bookings of an overloaded run.
+     * The actual-start row is not given one: the booking may not have started at all.
+     */
+    private void recordUnfinishedOpenLoopBookings() {
+        long cutOff = System.nanoTime();
+        for (Integer index : openLoopInFlight.keySet()) {
+            Long scheduledAt = openLoopInFlight.remove(index); // Null if the booking completed meanwhile
+            if (scheduledAt != null) {
+                responseTimes.recordValue(TimeUnit.NANOSECONDS.toMicros(cutOff - scheduledAt));
+            }
+        }
+    }
+
+    /**
+     * Starts the users spread evenly over the ramp-up; each looks at the seat map, thinks
+     * and books once. Users only arrive as fast as the pool or async queue lets them.
+     */
+    private void startClosedLoopUsers(WorkloadSpec spec, int adjustedUsers, CountDownLatch completionLatch,
+                                      List<User> users, Map<Integer, List<String>> availableTicketsByEvent,
+                                      Map<Integer, List<Integer>> categoryIdsByEvent, Random random) {
+        long rampUpNanos = TimeUnit.SECONDS.toNanos(spec.getRampUpSeconds());
 
         for (int i = 0; i < adjustedUsers; i++) {
+            // Spread user arrivals evenly over the ramp-up; stop starting users once the duration is used up
+            if (!awaitArrival(simulationStartTime + rampUpNanos * i / adjustedUsers)) {
+                skipRemainingUsers(adjustedUsers, i, completionLatch);
+                break;
+            }
+
+            int eventId = spec.sampleEventId(random); // Event this user books for
+            int ticketsToBook = spec.sampleTicketsPerOrder(random); // Tickets in this user's order
+            long thinkTimeMs = spec.sampleThinkTimeMs(random); // Time the user looks at the seat map
+            Random userRandom = spec.newUserRandom(i); // User and ticket selection on the pool thread
+            List<String> availableTickets = availableTicketsByEvent.get(eventId);
+            List<Integer> categoryIds = categoryIdsByEvent.get(eventId); // Null unless best-available
+
+            if (asyncBookingService != null) {
+                if (thinkTimeMs == 0) {
+                    viewSeatMap(eventId);
+                    // Blocks while the async service is saturated, pacing the simulated users
+                    submitAsyncAttempt(eventId, users, availableTickets, categoryIds, ticketsToBook, userRandom)
+                        .whenComplete((booking, failure) -> completionLatch.countDown());
+                } else {
+                    // Think on a pool thread so arrivals keep their pace; the pool bounds the open sessions
+                    executorService.submit(() -> {
+                        try {
+                            viewSeatMap(eventId);
+                            think(thinkTimeMs);
+                            submitAsyncAttempt(eventId, users, availableTickets, categoryIds, ticketsToBook, userRandom)
+                                .whenComplete((booking, failure) -> completionLatch.countDown());
+                        } catch (RuntimeException e) {
+                            failedBookings.incrementAndGet();
+                            completionLatch.countDown();
+                        }
+                    });
+                }
+                continue;
+            }
             executorService.submit(() -> { // Submit a task to the thread pool
                 try {
-                    executeBookingAttempt(users, availableTickets, random); // Perform a booking attempt
+                    viewSeatMap(eventId);
+                    think(thinkTimeMs);
+                    if (categoryIds != null) {
+                        executeBestAvailableAttempt(eventId, users, categoryIds, ticketsToBook, userRandom); // Book any free tickets
+                    } else {
+                        executeBookingAttempt(users, availableTickets, ticketsToBook, userRandom); // Perform a booking attempt
+                    }
                 } finally {
                     completionLatch.countDown(); // Signal task completion
                 }
             });
         }
+    }
 
-        try {
-            // Wait for all tasks to complete or timeout
-            if (!completionLatch.await(SIMULATION_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
-                System.err.println("Simulation timed out before completion");
+    /**
+     * Issues the bookings at the workload's arrival rate without waiting for earlier ones
+     * to complete (open loop), so a slow system builds up a queue instead of slowing the
+     * arrivals down. Each booking's latency is recorded twice: from its intended start,
+     * which includes the time it waited for a free thread, and from its actual start.
+     * Measuring only from the actual start would leave out exactly the waits a stall causes
+     * (coordinated omission); the gap between the two percentile rows shows that queueing.
+     *
+     * Bookings call the BookingService directly: the AsyncBookingService blocks the
+     * submitter when its queue is full, which would turn the run back into a closed loop.
+     * Think time is not applied, the arrival rate already sets the pace.
+     */
+    private void issueAtArrivalRate(WorkloadSpec spec, int adjustedUsers, CountDownLatch completionLatch,
+                                    List<User> users, Map<Integer, List<String>> availableTicketsByEvent,
+                                    Map<Integer, List<Integer>> categoryIdsByEvent, Random random) {
+        long intendedStart = simulationStartTime;
+
+        for (int i = 0; i < adjustedUsers; i++) {
+            // Step 1: Wait for the booking's scheduled arrival, never for earlier bookings
+            if (i > 0) {
+                intendedStart += spec.nextInterarrivalNanos(random);
+            }
+            if (!awaitArrival(intendedStart)) {
+                skipRemainingUsers(adjustedUsers, i, completionLatch);
+                break;
+            }
+
+            // Step 2: Hand it to the pool, where it queues if every thread is busy
+            int eventId = spec.sampleEventId(random); // Event this booking is for
+            int ticketsToBook = spec.sampleTicketsPerOrder(random); // Tickets in the order
+            List<String> availableTickets = availableTicketsByEvent.get(eventId);
+            List<Integer> categoryIds = categoryIdsByEvent.get(eventId); // Null unless best-available
+            Random userRandom = spec.newUserRandom(i); // User and ticket selection on the pool thread
+            long scheduledAt = intendedStart;
+            int index = i;
+            openLoopInFlight.put(index, scheduledAt); // Until its latency is recorded
+            executorService.submit(() -> {
+                long startedAt = System.nanoTime();
+                try {
+                    viewSeatMap(eventId);
+                    if (categoryIds != null) {
+                        executeBestAvailableAttempt(eventId, users, categoryIds, ticketsToBook, userRandom);
+                    } else {
+                        executeBookingAttempt(users, availableTickets, ticketsToBook, userRandom);
+                    }
+                } finally {
+                    // Step 3: Record the latency from the intended and from the actual start,
+                    // unless the run gave up on the booking and recorded it already
+                    long completedAt = System.nanoTime();
+                    if (openLoopInFlight.remove(index) != null) {
+                        responseTimes.recordValue(TimeUnit.NANOSECONDS.toMicros(completedAt - scheduledAt));
+                        serviceTimes.recordValue(TimeUnit.NANOSECONDS.toMicros(completedAt - startedAt));
+                    }
+                    completionLatch.countDown();
+                }
+            });
+        }
+    }
+
+    /**
+     * Counts the users from index first on as not started once the duration is used up.
+     */
+    private void skipRemainingUsers(int adjustedUsers, int first, CountDownLatch completionLatch) {
+        usersNotStarted.set(adjustedUsers - first);
+        for (int j = first; j < adjustedUsers; j++) {
+            completionLatch.countDown();
+        }
+        System.err.println("Duration used up: " + usersNotStarted.get() + " users were not started");
+    }
+
+    /**
+     * Waits until a user's arrival time.
+     * @param arrivalTime System.nanoTime() at which the user arrives
+     * @return false if the run's duration ends first
+     */
+    private boolean awaitArrival(long arrivalTime) {
+        long wait = arrivalTime - System.nanoTime();
+        if (arrivalTime - simulationDeadline >= 0) {
+            return false;
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
             }
+        }
+        return true;
+    }
+
+    /**
+     * @return time left until the run's duration is used up, at least 0
+     */
+    private long remainingNanos() {
+        return Math.max(0, simulationDeadline - System.nanoTime());
+    }
+
+    /**
+     * Lets a new client fetch the full seat map of the event, if a seat map service is set.
+     */
+    private void viewSeatMap(int eventId) {
+        if (seatMapService != null) {
+            seatMapService.getChangesSince(eventId, 0); // A new client gets the full map
+        }
+    }
+
+    /**
+     * Pauses the user for its think time before it books.
+     */
+    private void think(long thinkTimeMs) {
+        if (thinkTimeMs <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(thinkTimeMs);
         } catch (InterruptedException e) {
-            Thread.currentThread().interrupt(); // Restore the interrupted status
+            Thread.currentThread().interrupt(); // Book right away when the run is cut short
         }
     }
 
@@ -125,20 +525,23 @@ public class BookingSimulation {
      * Attempts to book tickets for a randomly selected user.
      * @param users List of users participating in the simulation
      * @param availableTickets List of currently available tickets
+     * @param ticketsToBook Number of tickets in the order
      * @param random Random generator for selection
      */
-    private void executeBookingAttempt(List<User> users, List<String> availableTickets, Random random) {
+    private void executeBookingAttempt(List<User> users, List<String> availableTickets, int ticketsToBook, Random random) {
         User user = users.get(random.nextInt(users.size())); // Select a random user
-        int ticketsToBook = 1 + random.nextInt(MAX_TICKETS_PER_USER); // Determine tickets to book
         List<String> selectedTickets;
 
         synchronized (availableTickets) { // Ensure thread-safe ticket selection
-            selectedTickets = selectRandomTickets(availableTickets, ticketsToBook);
+            selectedTickets = selectRandomTickets(availableTickets, ticketsToBook, random);
         }
 
         if (!selectedTickets.isEmpty()) {
             try {
-                Booking booking = bookingService.createBooking(user.getUserId(), selectedTickets, user.getEmail()); // Create booking
+                BookingBatcher batcher = bookingBatcher;
+                Booking booking = batcher != null
+                    ? batcher.submit(user.getUserId(), selectedTickets, user.getEmail()).join() // Wait for its batch
+                    : bookingService.createBooking(user.getUserId(), selectedTickets, user.getEmail()); // Create booking
                 if (booking != null) {
                     successfulBookings.incrementAndGet(); // Increment success counter
                 } else {
@@ -153,15 +556,84 @@ public class BookingSimulation {
         }
     }
 
+    /**
+     * Submits a booking attempt for a randomly selected user to the async booking service.
+     * @param eventId ID of the event being simulated
+     * @param users List of users participating in the simulation
+     * @param availableTickets List of currently available tickets
+     * @param categoryIds Categories to book from in best-available mode, or null to book exact serials
+     * @param ticketsToBook Number of tickets in the order
+     * @param random Random generator for selection
+     * @return future completed once the attempt has been counted
+     */
+    private CompletableFuture<Booking> submitAsyncAttempt(int eventId, List<User> users, List<String> availableTickets,
+                                                          List<Integer> categoryIds, int ticketsToBook, Random random) {
+        User user = users.get(random.nextInt(users.size())); // Select a random user
+        CompletableFuture<Booking> attempt;
+
+        if (categoryIds != null) {
+            if (categoryIds.isEmpty()) {
+                failedBookings.incrementAndGet(); // Nothing left to allocate from
+                return CompletableFuture.completedFuture(null);
+            }
+            int categoryId = categoryIds.get(random.nextInt(categoryIds.size())); // Select a random category
+            attempt = asyncBookingService.bookAnyAvailableAsync(user.getUserId(), eventId, categoryId,
+                ticketsToBook, user.getEmail());
+        } else {
+            List<String> selectedTickets = selectRandomTickets(availableTickets, ticketsToBook, random);
+            if (selectedTickets.isEmpty()) {
+                failedBookings.incrementAndGet(); // Increment failure counter if no tickets were selected
+                return CompletableFuture.completedFuture(null);
+            }
+            attempt = asyncBookingService.createBookingAsync(user.getUserId(), selectedTickets, user.getEmail());
+        }
+
+        return attempt.whenComplete((booking, failure) -> {
+            if (failure == null) {
+                successfulBookings.incrementAndGet(); // Increment success counter
+            } else {
+                failedBookings.incrementAndGet(); // Increment failure counter, rejections included
+                System.err.println("Booking failed for user " + user.getUserId() + ": " + failure.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Attempts to book any free tickets of a random category for a randomly selected user.
+     * @param eventId ID of the event being simulated
+     * @param users List of users participating in the simulation
+     * @param categoryIds Categories of the event that had tickets available
+     * @param ticketsToBook Number of tickets in the order
+     * @param random Random generator for selection
+     */
+    private void executeBestAvailableAttempt(int eventId, List<User> users, List<Integer> categoryIds,
+                                             int ticketsToBook, Random random) {
+        User user = users.get(random.nextInt(users.size())); // Select a random user
+
+        if (categoryIds.isEmpty()) {
+            failedBookings.incrementAndGet(); // Nothing left to allocate from
+            return;
+        }
+
+        int categoryId = categoryIds.get(random.nextInt(categoryIds.size())); // Select a random category
+        try {
+            bookingService.bookAnyAvailable(user.getUserId(), eventId, categoryId, ticketsToBook, user.getEmail());
+            successfulBookings.incrementAndGet(); // Increment success counter
+        } catch (Exception e) {
+            failedBookings.incrementAndGet(); // Increment failure counter
+            System.err.println("Booking failed for user " + user.getUserId() + ": " + e.getMessage());
+        }
+    }
+
     /**
      * Randomly selects tickets for booking from the available pool.
      * @param availableTickets List of currently available tickets
      * @param count Number of tickets to select
+     * @param random Random generator for selection
      * @return List of selected ticket serials
      */
-    private List<String> selectRandomTickets(List<String> availableTickets, int count) {
+    private List<String> selectRandomTickets(List<String> availableTickets, int count, Random random) {
         List<String> selected = new ArrayList<>();
-        Random random = new Random();
         synchronized (availableTickets) {
             for (int i = 0; i < count && !availableTickets.isEmpty(); i++) {
                 int index = random.nextInt(availableTickets.size());
@@ -172,12 +644,13 @@ public class BookingSimulation {
     }
 
     /**
-     * Waits for all booking tasks to complete.
+     * Waits for all booking tasks to complete, at most until the grace period after the duration ends.
      */
     private void waitForCompletion() {
         executorService.shutdown(); // Initiate shutdown of the thread pool
         try {
-            executorService.awaitTermination(SIMULATION_TIMEOUT_MINUTES, TimeUnit.MINUTES); // Wait for termination
+            // Pool threads finish the task that counted the latch down; tasks given up on are interrupted afterwards
+            executorService.awaitTermination(Math.max(0, completionDeadline - System.nanoTime()), TimeUnit.NANOSECONDS);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt(); // Restore interrupted status
         }
@@ -186,19 +659,115 @@ public class BookingSimulation {
 
     /**
      * Prints the results of the simulation, including performance and booking metrics.
-     * @param eventId ID of the simulated event
+     * @param spec workload of the run, echoed so the results can be traced to it
      */
-    private void printSimulationResults(int eventId) {
-        List<String> currentTickets = bookingService.getAvailableTicketSerials(eventId); // Fetch remaining tickets
-        int totalBooked = initialTicketCount - currentTickets.size(); // Calculate total tickets booked
+    private void printSimulationResults(WorkloadSpec spec) {
+        int remainingTickets = 0;
+        int totalBooked = 0;
+        Map<Integer, Integer> remainingByEvent = new LinkedHashMap<>();
+        for (Map.Entry<Integer, Integer> initial : initialTicketCounts.entrySet()) {
+            int remaining = (int) bookingService.countAvailableTickets(initial.getKey()); // Count remaining tickets
+            remainingByEvent.put(initial.getKey(), remaining);
+            remainingTickets += remaining;
+            totalBooked += initial.getValue() - remaining; // Calculate total tickets booked
+        }
 
         System.out.println("\n=== Simulation Results ===");
-        System.out.printf("Concurrent Users: %d%n", NUM_USERS);
+        System.out.print("Workload:\n" + spec);
+        System.out.printf("Concurrent Users: %d%n", spec.getUsers());
+        System.out.printf("Users Not Started: %d%n", usersNotStarted.get());
+        System.out.printf("Thread Mode: %s%n", threadMode);
         System.out.printf("Successful Bookings: %d%n", successfulBookings.get());
         System.out.printf("Failed Bookings: %d%n", failedBookings.get());
         System.out.printf("Total Tickets Booked: %d%n", totalBooked);
-        System.out.printf("Remaining Tickets: %d%n", currentTickets.size());
+        System.out.printf("Remaining Tickets: %d%n", remainingTickets);
+        if (remainingByEvent.size() > 1) {
+            remainingByEvent.forEach((eventId, remaining) -> System.out.printf("Event %d: %d booked, %d remaining%n",
+                eventId, initialTicketCounts.get(eventId) - remaining, remaining));
+        }
         System.out.printf("Simulation Time: %d ms%n", (simulationEndTime - simulationStartTime) / 1_000_000);
+
+        if (spec.isOpenLoop()) {
+            printLatencies(spec);
+        }
+
+        // Read from the per-category counters, so the report does not scan the tickets table
+        CategoryAvailabilityCounters counters = bookingService.getCategoryCounters();
+        if (counters != null) {
+            System.out.println("\nTickets by Category:");
+            for (int eventId : spec.getEventIds()) {
+                counters.getCountsByCategory(eventId).forEach((categoryId, counts) ->
+                    System.out.printf("Category %d: %s%n", categoryId, counts));
+            }
+        }
+
+        SoldOutRegistry soldOutRegistry = bookingService.getSoldOutRegistry();
+        if (soldOutRegistry != null) {
+            System.out.printf("Sold-Out Registry: %s%n", soldOutRegistry);
+        }
+
+        if (seatMapService != null) {
+            for (int eventId : spec.getEventIds()) {
+                System.out.printf("Seat Map of Event %d: version %d%n", eventId, seatMapService.getVersion(eventId));
+            }
+            System.out.printf("Seat Map: %d snapshots and %d deltas served, %d refreshes%n",
+                seatMapService.getSnapshotsServed(), seatMapService.getDeltasServed(), seatMapService.getRefreshes());
+        }
+
+        if (bookingBatcher != null) {
+            System.out.printf("Group Commit: %d commits, %.1f requests per batch%n",
+                bookingBatcher.getCommits(), bookingBatcher.getAverageBatchSize());
+        }
+
+        if (asyncBookingService != null) {
+            System.out.printf("Rejected by Backpressure: %d%n", asyncBookingService.getRejectedCount());
+            System.out.printf("Peak Queue Depth: %d%n", asyncBookingService.getPeakQueueDepth());
+        }
+
+        // Attempts per booking show how much of the work was retries after deadlocks or lock timeouts
+        int[] attempts = bookingService.getAttemptsHistogram();
+        System.out.println("\nAttempts per Booking:");
+        for (int i = 1; i < attempts.length; i++) {
+            if (attempts[i] > 0) {
+                System.out.printf("%s attempt(s): %d%n", i == attempts.length - 1 ? i + "+" : String.valueOf(i), attempts[i]);
+            }
+        }
+        System.out.printf("Transient Failures: %s, retried: %d%n",
+            bookingService.getTransientFailures(), bookingService.getTransientRetries());
+        // Stays flat over a long run because every transaction's entities are detached when it ends
+        System.out.printf("Persistence Context per Transaction: %s%n", bookingService.getUnitOfWork());
+
+        // Optimistic contention is only recorded when the OPTIMISTIC_VERSIONED strategy is used
+        Map<Integer, EventContentionStats> contention = bookingService.getContentionStats();
+        if (!contention.isEmpty()) {
+            System.out.println("\nOptimistic Contention by Event:");
+            contention.forEach((id, stats) -> System.out.printf("Event %d: %s%n", id, stats));
+        }
+    }
+
+    /**
+     * Prints the open-loop latency percentiles, from the intended start (what a user waits)
+     * and from the actual start (what the booking itself took).
+     * @param spec workload of the run
+     */
+    private void printLatencies(WorkloadSpec spec) {
+        double seconds = (simulationEndTime - simulationStartTime) / 1_000_000_000.0;
+        System.out.printf("%nOpen-Loop Latency (%s arrivals, target %.1f/s, completed %.1f/s):%n",
+            spec.getArrivalProcess(), spec.getArrivalRate(),
+            seconds > 0 ? responseTimes.getTotalCount() / seconds : 0);
+        System.out.printf("%-15s | %-8s | %-9s | %-9s | %-9s | %-9s | %-9s%n",
+            "Measured from", "Count", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        printLatencyRow("Intended start", responseTimes);
+        printLatencyRow("Actual start", serviceTimes);
+        System.out.printf("Unfinished Bookings: %d after a %d s grace period (intended-start row holds their " +
+            "latency so far as a lower bound)%n", unfinishedBookings.get(), COMPLETION_GRACE_SECONDS);
+    }
+
+    private void printLatencyRow(String label, Histogram histogram) {
+        System.out.printf("%-15s | %-8d | %-9.2f | %-9.2f | %-9.2f | %-9.2f | %-9.2f%n", label, histogram.getTotalCount(),
+            histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+            histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+            histogram.getMaxValue() / 1000.0);
     }
 
     /**
@@ -214,7 +783,7 @@ public class BookingSimulation {
      * Cleans up resources, including the thread pool.
      */
     private void cleanupResources() {
-        if (!executorService.isShutdown()) {
+        if (executorService != null && !executorService.isShutdown()) {
             executorService.shutdownNow(); // Force shutdown of the thread pool
         }
     }
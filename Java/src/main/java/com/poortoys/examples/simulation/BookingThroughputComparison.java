@@ -0,0 +1,131 @@
+/**
+ * BookingThroughputComparison measures booking throughput for increasing thread counts,
+ * comparing the serialized shared-EntityManager BookingService against the
+ * per-transaction BookingService that opens one EntityManager per booking.
+ *
+ * Every run books real tickets, so the chosen event needs at least
+ * (thread counts x 2 modes x bookings per run) available tickets.
+ *
+ * Usage: BookingThroughputComparison [eventId] [bookingsPerRun]
+ */
+
+package com.poortoys.examples.simulation;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import com.poortoys.examples.dao.UserDAO;
+import com.poortoys.examples.entities.User;
+
+public class BookingThroughputComparison {
+    // Configuration constants
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32}; // Thread counts to compare
+    private static final int DEFAULT_EVENT_ID = 1; // Event whose tickets are booked
+    private static final int DEFAULT_BOOKINGS_PER_RUN = 500; // Bookings issued per (mode, thread count) run
+    private static final int RUN_TIMEOUT_MINUTES = 5; // Timeout for a single run
+
+    private final EntityManagerFactory emf;
+    private final int eventId;
+    private final int bookingsPerRun;
+
+    public BookingThroughputComparison(EntityManagerFactory emf, int eventId, int bookingsPerRun) {
+        this.emf = emf;
+        this.eventId = eventId;
+        this.bookingsPerRun = bookingsPerRun;
+    }
+
+    public static void main(String[] args) {
+        int eventId = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_EVENT_ID;
+        int bookingsPerRun = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_BOOKINGS_PER_RUN;
+
+        EntityManagerFactory emf = Persistence.createEntityManagerFactory("ticketingsystem");
+        try {
+            new BookingThroughputComparison(emf, eventId, bookingsPerRun).run();
+        } finally {
+            emf.close();
+        }
+    }
+
+    /**
+     * Runs both modes for every thread count and prints a comparison table.
+     */
+    public void run() {
+        EntityManager sharedEm = emf.createEntityManager();
+        try {
+            BookingService sharedService = new BookingService(sharedEm);
+            BookingService perTransactionService = new BookingService(emf);
+            List<User> users = new UserDAO(sharedEm).findAll();
+            if (users.isEmpty()) {
+                throw new IllegalStateException("No users found to book with");
+            }
+
+            System.out.println("\n=== Booking Throughput: shared vs per-transaction EntityManager ===");
+            System.out.printf("Event ID: %d, bookings per run: %d%n", eventId, bookingsPerRun);
+            System.out.printf("%-8s | %-22s | %-22s | %-8s%n",
+                "Threads", "Shared (bookings/s)", "Per-tx (bookings/s)", "Speedup");
+
+            for (int threads : THREAD_COUNTS) {
+                double shared = measure(sharedService, users, threads);
+                double perTransaction = measure(perTransactionService, users, threads);
+                System.out.printf("%-8d | %-22.1f | %-22.1f | %-8s%n", threads, shared, perTransaction,
+                    shared > 0 ? String.format("%.2fx", perTransaction / shared) : "n/a");
+            }
+        } finally {
+            sharedEm.close();
+        }
+    }
+
+    /**
+     * Books up to bookingsPerRun single tickets with the given number of threads.
+     * @return successful bookings per second
+     */
+    private double measure(BookingService service, List<User> users, int threads) {
+        List<String> available = service.sampleAvailableTicketSerials(eventId, bookingsPerRun, new Random());
+        int bookings = Math.min(bookingsPerRun, available.size());
+        if (bookings == 0) {
+            System.err.println("No tickets left for event " + eventId);
+            return 0;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch latch = new CountDownLatch(bookings);
+        AtomicInteger successes = new AtomicInteger(0);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < bookings; i++) {
+            String serial = available.get(i);
+            User user = users.get(i % users.size());
+            executor.submit(() -> {
+                try {
+                    service.createBooking(user.getUserId(), Collections.singletonList(serial), user.getEmail());
+                    successes.incrementAndGet();
+                } catch (Exception e) {
+                    // Failures only lower the measured throughput
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+
+        try {
+            if (!latch.await(RUN_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                System.err.println("Run with " + threads + " threads timed out");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        return successes.get() / seconds;
+    }
+}
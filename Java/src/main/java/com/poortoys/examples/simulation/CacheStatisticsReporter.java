@@ -0,0 +1,68 @@
+/**
+ * CacheStatisticsReporter reads second-level and query cache hit/miss counts from
+ * Hibernate statistics (hibernate.generate_statistics) and prints them per region,
+ * so the effect of caching the catalog entities shows up next to the simulation results.
+ */
+
+package com.poortoys.examples.simulation;
+
+import javax.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
+
+public class CacheStatisticsReporter {
+    private final Statistics statistics;
+
+    public CacheStatisticsReporter(EntityManagerFactory emf) {
+        this.statistics = emf.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    /**
+     * @return share of second-level cache lookups answered from the cache, 0 if none were made
+     */
+    public double getSecondLevelCacheHitRatio() {
+        return ratio(statistics.getSecondLevelCacheHitCount(), statistics.getSecondLevelCacheMissCount());
+    }
+
+    /**
+     * @return share of cacheable query executions answered from the query cache, 0 if none were made
+     */
+    public double getQueryCacheHitRatio() {
+        return ratio(statistics.getQueryCacheHitCount(), statistics.getQueryCacheMissCount());
+    }
+
+    /**
+     * Prints the overall ratios and the hits, misses, puts and size of every region.
+     */
+    public void printReport() {
+        System.out.println("\n=== Second-Level Cache ===");
+        if (!statistics.isStatisticsEnabled()) {
+            System.out.println("Statistics are disabled; set hibernate.generate_statistics=true");
+            return;
+        }
+        System.out.printf("Entity Cache: %d hits, %d misses, %d puts (hit ratio %.1f%%)%n",
+            statistics.getSecondLevelCacheHitCount(), statistics.getSecondLevelCacheMissCount(),
+            statistics.getSecondLevelCachePutCount(), getSecondLevelCacheHitRatio() * 100);
+        System.out.printf("Query Cache: %d hits, %d misses, %d puts (hit ratio %.1f%%)%n",
+            statistics.getQueryCacheHitCount(), statistics.getQueryCacheMissCount(),
+            statistics.getQueryCachePutCount(), getQueryCacheHitRatio() * 100);
+
+        System.out.printf("%-50s | %-8s | %-8s | %-8s | %-8s%n", "Region", "Hits", "Misses", "Puts", "Entries");
+        for (String region : statistics.getSecondLevelCacheRegionNames()) {
+            CacheRegionStatistics regionStatistics = statistics.getCacheRegionStatistics(region);
+            if (regionStatistics == null) {
+                continue;
+            }
+            System.out.printf("%-50s | %-8d | %-8d | %-8d | %-8s%n", region,
+                regionStatistics.getHitCount(), regionStatistics.getMissCount(), regionStatistics.getPutCount(),
+                regionStatistics.getElementCountInMemory() == CacheRegionStatistics.NO_EXTENDED_STAT_SUPPORT_RETURN
+                    ? "n/a" : String.valueOf(regionStatistics.getElementCountInMemory()));
+        }
+    }
+
+    private static double ratio(long hits, long misses) {
+        long lookups = hits + misses;
+        return lookups > 0 ? hits / (double) lookups : 0;
+    }
+}
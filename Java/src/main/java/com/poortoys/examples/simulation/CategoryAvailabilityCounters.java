@@ -0,0 +1,438 @@
+/**
+ * CategoryAvailabilityCounters keeps available / reserved / sold counts per ticket
+ * category, so availability summaries cost O(categories) instead of a GROUP BY over
+ * every ticket of an event.
+ *
+ * The counts live in the ticket_category_counters table, which the booking, hold and
+ * release transactions update together with the tickets they change. Each category
+ * has SHARD_COUNT rows and a transaction updates a random one, so concurrent bookings
+ * of the same category rarely wait on each other's counter row. Committed changes are
+ * mirrored into LongAdders, which is what the summary methods read.
+ *
+ * reconcile() recounts the tickets table one category at a time and repairs any category
+ * whose counters drifted, e.g. after tickets were changed outside the booking paths. It runs once on start()
+ * (seeding categories that have no counter rows yet) and then on a fixed schedule.
+ */
+
+package com.poortoys.examples.simulation;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.LockModeType;
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.engine.spi.SessionImplementor;
+import com.poortoys.examples.entities.TicketCategoryCounter;
+import com.poortoys.examples.entities.TicketStatus;
+
+public class CategoryAvailabilityCounters implements AutoCloseable {
+    // Counter rows per category; SQLScriptsCategoryCounters.sql and the book_tickets procedure use the same number
+    public static final int SHARD_COUNT = 8;
+    // Configuration defaults
+    private static final long DEFAULT_RECONCILE_INTERVAL_MS = 60_000; // Time between reconciliations
+
+    private final EntityManagerFactory emf;
+    private final long reconcileIntervalMs;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentHashMap<Integer, CategoryCounter> categories = new ConcurrentHashMap<>(); // By category id
+
+    // Metrics for the counters themselves
+    private final AtomicInteger reconciliations = new AtomicInteger(0);
+    private final AtomicInteger correctedCategories = new AtomicInteger(0); // Categories whose counters had drifted
+    private final AtomicInteger seededCategories = new AtomicInteger(0); // Categories that had no counter rows
+    private final AtomicInteger missedUpdates = new AtomicInteger(0); // Updates for categories without counter rows
+    // Told when a category's committed available count reaches zero or rises again, if set
+    private volatile SoldOutRegistry soldOutRegistry;
+
+    public CategoryAvailabilityCounters(EntityManagerFactory emf) {
+        this(emf, DEFAULT_RECONCILE_INTERVAL_MS);
+    }
+
+    /**
+     * @param emf factory used to open one EntityManager per reconciliation
+     * @param reconcileIntervalMs time between reconciliations
+     */
+    public CategoryAvailabilityCounters(EntityManagerFactory emf, long reconcileIntervalMs) {
+        this.emf = emf;
+        this.reconcileIntervalMs = reconcileIntervalMs;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "category-counter-reconciler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reconciles once, which loads the in-memory counts, and then keeps reconciling in
+     * the background every reconcileIntervalMs. Call before bookings start.
+     */
+    public void start() {
+        reconcile();
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                reconcile();
+            } catch (RuntimeException e) {
+                // Keep the schedule alive; the next run retries
+                System.err.println("Category counter reconciliation failed: " + e.getMessage());
+            }
+        }, reconcileIntervalMs, reconcileIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Keeps a sold-out registry in step with the committed available counts, starting
+     * with the counts loaded so far.
+     * @param soldOutRegistry registry to update, or null to stop updating it
+     */
+    public void setSoldOutRegistry(SoldOutRegistry soldOutRegistry) {
+        this.soldOutRegistry = soldOutRegistry;
+        categories.forEach(this::publishAvailability);
+    }
+
+    private void publishAvailability(int categoryId, CategoryCounter counter) {
+        SoldOutRegistry registry = soldOutRegistry;
+        if (registry != null) {
+            registry.updateAvailability(counter.eventId, categoryId, counter.available::sum);
+        }
+    }
+
+    /**
+     * Records tickets changing status inside the caller's open transaction. The counter
+     * update commits or rolls back with the tickets; the in-memory counts follow on commit.
+     * @param tickets tickets that changed status
+     * @param from status the tickets had
+     * @param to status the tickets have now
+     */
+    void recordTransition(EntityManager em, List<ClaimedTicket> tickets, TicketStatus from, TicketStatus to) {
+        Map<Integer, Integer> countByCategory = new HashMap<>();
+        for (ClaimedTicket ticket : tickets) {
+            countByCategory.merge(ticket.getTicketCategoryId(), 1, Integer::sum);
+        }
+        recordTransition(em, countByCategory, from, to);
+    }
+
+    /**
+     * Records ticket status changes given as ticket counts per category id.
+     * @see #recordTransition(EntityManager, List, TicketStatus, TicketStatus)
+     */
+    void recordTransition(EntityManager em, Map<Integer, Integer> countByCategory, TicketStatus from, TicketStatus to) {
+        if (countByCategory.isEmpty()) {
+            return;
+        }
+        int shard = ThreadLocalRandom.current().nextInt(SHARD_COUNT);
+        // Categories in id order, so two bookings spanning the same categories cannot deadlock
+        for (Map.Entry<Integer, Integer> entry : new TreeMap<>(countByCategory).entrySet()) {
+            long[] delta = delta(from, to, entry.getValue());
+            int updated = em.createQuery(
+                "UPDATE TicketCategoryCounter c SET c.available = c.available + :available, " +
+                "c.reserved = c.reserved + :reserved, c.sold = c.sold + :sold " +
+                "WHERE c.ticketCategoryId = :categoryId AND c.shard = :shard")
+                .setParameter("available", delta[0])
+                .setParameter("reserved", delta[1])
+                .setParameter("sold", delta[2])
+                .setParameter("categoryId", entry.getKey())
+                .setParameter("shard", shard)
+                .executeUpdate();
+            if (updated == 0) {
+                missedUpdates.incrementAndGet(); // Not seeded yet; the next reconciliation counts it
+            }
+        }
+        mirrorOnCommit(em, countByCategory, from, to);
+    }
+
+    /**
+     * Applies status changes to the in-memory counts once the caller's transaction
+     * commits. For changes whose counter rows were already updated by the database,
+     * as the book_tickets procedure does.
+     */
+    void mirrorOnCommit(EntityManager em, Map<Integer, Integer> countByCategory, TicketStatus from, TicketStatus to) {
+        Map<Integer, Integer> counts = new HashMap<>(countByCategory);
+        em.unwrap(SessionImplementor.class).getActionQueue().registerProcess(
+            (AfterTransactionCompletionProcess) (success, session) -> {
+                if (!success) {
+                    return;
+                }
+                for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+                    CategoryCounter counter = categories.get(entry.getKey());
+                    if (counter != null) {
+                        counter.add(delta(from, to, entry.getValue()));
+                        publishAvailability(entry.getKey(), counter);
+                    }
+                }
+            });
+    }
+
+    /**
+     * @return per-status deltas {available, reserved, sold} for count tickets moving from one status to another
+     */
+    private static long[] delta(TicketStatus from, TicketStatus to, int count) {
+        long[] delta = new long[3];
+        delta[index(from)] -= count;
+        delta[index(to)] += count;
+        return delta;
+    }
+
+    private static int index(TicketStatus status) {
+        switch (status) {
+            case AVAILABLE:
+                return 0;
+            case RESERVED:
+                return 1;
+            case SOLD:
+                return 2;
+            default:
+                throw new IllegalArgumentException("Unknown ticket status: " + status);
+        }
+    }
+
+    /**
+     * Recounts the tickets table and repairs categories whose counters drifted from it,
+     * one category per transaction. Only the counter rows of the category being recounted
+     * are locked, so bookings of other categories carry on; bookings of this category that
+     * have not committed yet are neither counted nor applied to the counters until its
+     * recount finishes, so the corrections are exact. Categories without counter rows are seeded.
+     * @return number of categories corrected or seeded
+     */
+    public int reconcile() {
+        reconciliations.incrementAndGet();
+        Map<Integer, Integer> eventByCategory = new TreeMap<>(); // Category id order, as the booking paths lock them
+        EntityManager em = emf.createEntityManager();
+        try {
+            for (Object[] row : em.createQuery(
+                    "SELECT tc.ticketCategoryId, tc.event.eventId FROM TicketCategory tc", Object[].class)
+                    .getResultList()) {
+                eventByCategory.put((Integer) row[0], (Integer) row[1]);
+            }
+        } finally {
+            em.close();
+        }
+
+        int changed = 0;
+        for (Map.Entry<Integer, Integer> entry : eventByCategory.entrySet()) {
+            if (reconcileCategory(entry.getKey(), entry.getValue())) {
+                changed++;
+            }
+        }
+        categories.forEach(this::publishAvailability); // Corrections may sell out or reopen categories
+        return changed;
+    }
+
+    /**
+     * Recounts one category under a lock on its counter rows, repairs or seeds the rows, and
+     * applies the same correction to the in-memory counts. Only the correction is applied:
+     * bookings that committed before the lock may not have mirrored their own changes yet,
+     * and overwriting the counts would lose or double them.
+     * @return true if the category was corrected or seeded
+     */
+    private boolean reconcileCategory(int categoryId, int eventId) {
+        EntityManager em = emf.createEntityManager();
+        EntityTransaction tx = em.getTransaction();
+        try {
+            tx.begin();
+
+            // Step 1: Lock the category's counter rows
+            List<TicketCategoryCounter> shards = em.createQuery(
+                "SELECT c FROM TicketCategoryCounter c WHERE c.ticketCategoryId = :categoryId ORDER BY c.shard",
+                TicketCategoryCounter.class)
+                .setParameter("categoryId", categoryId)
+                .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                .getResultList();
+
+            // Step 2: Count the category's tickets per status
+            long[] actual = new long[3];
+            for (Object[] row : em.createQuery(
+                    "SELECT t.status, COUNT(t) FROM Ticket t WHERE t.ticketCategory.ticketCategoryId = :categoryId " +
+                    "GROUP BY t.status",
+                    Object[].class)
+                    .setParameter("categoryId", categoryId)
+                    .getResultList()) {
+                actual[index((TicketStatus) row[0])] += (Long) row[1];
+            }
+
+            // Step 3: Seed missing rows or put any difference into shard 0
+            boolean changed;
+            long[] difference = new long[3]; // Correction to the committed rows, and so to the in-memory counts
+            if (shards.isEmpty()) {
+                if (actual[0] + actual[1] + actual[2] == 0) {
+                    tx.commit();
+                    return false; // No tickets yet; seeded once it has some
+                }
+                for (int shard = 0; shard < SHARD_COUNT; shard++) {
+                    em.persist(shard == 0
+                        ? new TicketCategoryCounter(eventId, categoryId, 0, actual[0], actual[1], actual[2])
+                        : new TicketCategoryCounter(eventId, categoryId, shard, 0, 0, 0));
+                }
+                seededCategories.incrementAndGet();
+                changed = true;
+            } else {
+                long[] counted = sum(shards);
+                difference = new long[]{actual[0] - counted[0], actual[1] - counted[1], actual[2] - counted[2]};
+                changed = difference[0] != 0 || difference[1] != 0 || difference[2] != 0;
+                if (changed) {
+                    TicketCategoryCounter first = shards.get(0);
+                    first.setAvailable(first.getAvailable() + difference[0]);
+                    first.setReserved(first.getReserved() + difference[1]);
+                    first.setSold(first.getSold() + difference[2]);
+                    correctedCategories.incrementAndGet();
+                    System.err.printf("Category %d counters drifted by available %+d, reserved %+d, sold %+d%n",
+                        categoryId, difference[0], difference[1], difference[2]);
+                }
+            }
+            em.flush();
+
+            // Step 4: Start new in-memory counts from the recount, or correct existing ones by the difference
+            CategoryCounter created = new CategoryCounter(eventId, actual);
+            CategoryCounter counter = categories.putIfAbsent(categoryId, created);
+            if (counter != null) {
+                counter.add(difference);
+            }
+
+            tx.commit();
+            return changed;
+        } catch (RuntimeException e) {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    private static long[] sum(List<TicketCategoryCounter> shards) {
+        long[] sum = new long[3];
+        for (TicketCategoryCounter shard : shards) {
+            sum[0] += shard.getAvailable();
+            sum[1] += shard.getReserved();
+            sum[2] += shard.getSold();
+        }
+        return sum;
+    }
+
+    /**
+     * @return committed counts of every category of the event, by category id
+     */
+    public Map<Integer, Counts> getCountsByCategory(int eventId) {
+        Map<Integer, Counts> counts = new TreeMap<>();
+        categories.forEach((categoryId, counter) -> {
+            if (counter.eventId == eventId) {
+                counts.put(categoryId, counter.snapshot());
+            }
+        });
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * @return committed number of available tickets of the event
+     */
+    public long getAvailable(int eventId) {
+        long available = 0;
+        for (CategoryCounter counter : categories.values()) {
+            if (counter.eventId == eventId) {
+                available += counter.available.sum();
+            }
+        }
+        return available;
+    }
+
+    /**
+     * Stops the background reconciliation and waits for a running one to finish.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(reconcileIntervalMs + 5000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getReconciliations() {
+        return reconciliations.get();
+    }
+
+    public int getCorrectedCategories() {
+        return correctedCategories.get();
+    }
+
+    public int getSeededCategories() {
+        return seededCategories.get();
+    }
+
+    public int getMissedUpdates() {
+        return missedUpdates.get();
+    }
+
+    /**
+     * In-memory counts of one category.
+     */
+    private static final class CategoryCounter {
+        private final int eventId;
+        private final LongAdder available = new LongAdder();
+        private final LongAdder reserved = new LongAdder();
+        private final LongAdder sold = new LongAdder();
+
+        CategoryCounter(int eventId, long[] initial) {
+            this.eventId = eventId;
+            add(initial);
+        }
+
+        void add(long[] delta) {
+            available.add(delta[0]);
+            reserved.add(delta[1]);
+            sold.add(delta[2]);
+        }
+
+        Counts snapshot() {
+            return new Counts(available.sum(), reserved.sum(), sold.sum());
+        }
+    }
+
+    /**
+     * Ticket counts of one category at one point in time.
+     */
+    public static final class Counts {
+        private final long available;
+        private final long reserved;
+        private final long sold;
+
+        Counts(long available, long reserved, long sold) {
+            this.available = available;
+            this.reserved = reserved;
+            this.sold = sold;
+        }
+
+        public long getAvailable() {
+            return available;
+        }
+
+        public long getReserved() {
+            return reserved;
+        }
+
+        public long getSold() {
+            return sold;
+        }
+
+        public long getTotal() {
+            return available + reserved + sold;
+        }
+
+        @Override
+        public String toString() {
+            return "available=" + available + ", reserved=" + reserved + ", sold=" + sold;
+        }
+    }
+}
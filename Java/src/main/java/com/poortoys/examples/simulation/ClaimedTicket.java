@@ -0,0 +1,32 @@
+package com.poortoys.examples.simulation;
+
+import java.math.BigDecimal;
+
+/**
+ * Lightweight view of a ticket claimed inside a booking transaction.
+ * Carries only what is needed to price the booking and link it to the ticket,
+ * so claim paths don't have to hydrate full Ticket entities.
+ */
+final class ClaimedTicket {
+    private final int ticketId;
+    private final int ticketCategoryId;
+    private final BigDecimal price;
+
+    ClaimedTicket(int ticketId, int ticketCategoryId, BigDecimal price) {
+        this.ticketId = ticketId;
+        this.ticketCategoryId = ticketCategoryId;
+        this.price = price;
+    }
+
+    int getTicketId() {
+        return ticketId;
+    }
+
+    int getTicketCategoryId() {
+        return ticketCategoryId;
+    }
+
+    BigDecimal getPrice() {
+        return price;
+    }
+}
@@ -0,0 +1,69 @@
+package com.poortoys.examples.simulation;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-event counters for optimistic booking attempts, used to decide whether a
+ * workload is better served by optimistic or pessimistic ticket claiming.
+ */
+public class EventContentionStats {
+    private final AtomicLong attempts = new AtomicLong(0); // Transactions started
+    private final AtomicLong conflicts = new AtomicLong(0); // Attempts that hit a version conflict
+    private final AtomicLong retries = new AtomicLong(0); // Attempts that were retried after a conflict
+    private final AtomicLong successes = new AtomicLong(0); // Bookings that committed
+    private final AtomicLong exhausted = new AtomicLong(0); // Bookings that ran out of retry budget
+
+    void recordAttempt() {
+        attempts.incrementAndGet();
+    }
+
+    void recordConflict() {
+        conflicts.incrementAndGet();
+    }
+
+    void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    void recordSuccess() {
+        successes.incrementAndGet();
+    }
+
+    void recordExhausted() {
+        exhausted.incrementAndGet();
+    }
+
+    public long getAttempts() {
+        return attempts.get();
+    }
+
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getSuccesses() {
+        return successes.get();
+    }
+
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+    /**
+     * @return share of attempts that ended in a version conflict
+     */
+    public double getConflictRate() {
+        long total = attempts.get();
+        return total > 0 ? (double) conflicts.get() / total : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("attempts=%d, conflicts=%d (%.1f%%), retries=%d, successes=%d, exhausted=%d",
+            getAttempts(), getConflicts(), getConflictRate() * 100, getRetries(), getSuccesses(), getExhausted());
+    }
+}
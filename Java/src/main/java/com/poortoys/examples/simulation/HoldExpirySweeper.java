@@ -0,0 +1,171 @@
+/**
+ * HoldExpirySweeper releases seat holds that were not confirmed before they expired.
+ * On every run it takes the oldest expired holds from the expires_at index and, in one
+ * transaction per batch, makes their RESERVED tickets available again and deletes the
+ * holds. A hold confirmed concurrently wins: its tickets are already SOLD and are
+ * skipped by the release. Released tickets of events served from a seat inventory are
+ * freed there too, once the release is committed.
+ */
+
+package com.poortoys.examples.simulation;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.TemporalType;
+
+public class HoldExpirySweeper implements AutoCloseable {
+    // Configuration defaults
+    private static final long DEFAULT_INTERVAL_MS = 1000; // Time between sweeps
+    private static final int DEFAULT_BATCH_SIZE = 500; // Expired holds released per transaction
+
+    private final EntityManagerFactory emf;
+    private final long intervalMs;
+    private final int batchSize;
+    private final ScheduledExecutorService scheduler;
+    private volatile CategoryAvailabilityCounters categoryCounters; // Counters moved back to available, or null
+    private volatile SeatInventory seatInventory; // In-memory seats freed with the holds, or null
+
+    // Metrics for released holds
+    private final AtomicInteger releasedHolds = new AtomicInteger(0);
+    private final AtomicInteger releasedTickets = new AtomicInteger(0);
+    private final AtomicInteger sweeps = new AtomicInteger(0);
+
+    public HoldExpirySweeper(EntityManagerFactory emf) {
+        this(emf, DEFAULT_INTERVAL_MS, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param emf factory used to open one EntityManager per batch
+     * @param intervalMs time between sweeps
+     * @param batchSize maximum expired holds released per transaction
+     */
+    public HoldExpirySweeper(EntityManagerFactory emf, long intervalMs, int batchSize) {
+        this.emf = emf;
+        this.intervalMs = intervalMs;
+        this.batchSize = batchSize;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hold-expiry-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Counts released tickets as available again in the per-category counters.
+     * @param categoryCounters counters to update, or null to stop maintaining them
+     */
+    public void setCategoryCounters(CategoryAvailabilityCounters categoryCounters) {
+        this.categoryCounters = categoryCounters;
+    }
+
+    /**
+     * Frees released tickets in the seat inventory as well, so in-memory bookings can claim them again.
+     * @param seatInventory inventory that holds were taken from, or null
+     */
+    public void setSeatInventory(SeatInventory seatInventory) {
+        this.seatInventory = seatInventory;
+    }
+
+    /**
+     * Starts sweeping in the background every intervalMs.
+     */
+    public void start() {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                sweep();
+            } catch (RuntimeException e) {
+                // Keep the schedule alive; the next run retries
+                System.err.println("Hold expiry sweep failed: " + e.getMessage());
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Releases every hold that has expired by now, batchSize holds per transaction.
+     * @return number of holds released
+     */
+    public int sweep() {
+        sweeps.incrementAndGet();
+        Date now = new Date();
+        int released = 0;
+        int batch;
+        do {
+            batch = sweepBatch(now);
+            released += batch;
+        } while (batch == batchSize);
+        return released;
+    }
+
+    /**
+     * Releases up to batchSize holds that expired before the given time.
+     * @return number of holds released
+     */
+    private int sweepBatch(Date now) {
+        EntityManager em = emf.createEntityManager();
+        EntityTransaction tx = em.getTransaction();
+        try {
+            tx.begin();
+
+            List<String> expired = em.createQuery(
+                "SELECT h.holdToken FROM SeatHold h WHERE h.expiresAt <= :now ORDER BY h.expiresAt",
+                String.class)
+                .setParameter("now", now, TemporalType.TIMESTAMP)
+                .setMaxResults(batchSize)
+                .getResultList();
+            if (expired.isEmpty()) {
+                tx.commit();
+                return 0;
+            }
+
+            List<Integer> tickets = BookingService.releaseHolds(em, expired, categoryCounters);
+            tx.commit();
+            SeatInventory inventory = seatInventory;
+            if (inventory != null) {
+                inventory.releaseTicketIds(tickets);
+            }
+
+            releasedHolds.addAndGet(expired.size());
+            releasedTickets.addAndGet(tickets.size());
+            return expired.size();
+        } catch (RuntimeException e) {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Stops sweeping and waits for a running sweep to finish.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(intervalMs + 5000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getReleasedHolds() {
+        return releasedHolds.get();
+    }
+
+    public int getReleasedTickets() {
+        return releasedTickets.get();
+    }
+
+    public int getSweeps() {
+        return sweeps.get();
+    }
+}
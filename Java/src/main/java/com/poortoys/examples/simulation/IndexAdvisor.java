@@ -0,0 +1,401 @@
+/**
+ * IndexAdvisor runs MySQL's EXPLAIN on the SQL that Hibernate generates for the hot
+ * booking and availability queries and fails when one of them scans a large table
+ * (access type ALL, or a full index scan) or, for queries meant to be answered from an
+ * index alone, when the plan has to read the rows. JPQL is translated with Hibernate's
+ * own query plan and its named parameters are bound through their Hibernate types, so
+ * enums, converters and entity parameters are explained with the values the DAOs send.
+ *
+ * Plans depend on the data; run it against a database holding a realistic event after
+ * applying SQL/SQLScriptsQueryIndexes.sql.
+ *
+ * Usage: IndexAdvisor [eventId] [largeTableRows]
+ */
+
+package com.poortoys.examples.simulation;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import org.hibernate.Session;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.engine.query.spi.HQLQueryPlan;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.hql.spi.NamedParameterInformation;
+import org.hibernate.hql.spi.QueryTranslator;
+import com.poortoys.examples.dao.BookingDAO;
+import com.poortoys.examples.dao.BookingTicketDAO;
+import com.poortoys.examples.dao.TicketCategoryDAO;
+import com.poortoys.examples.dao.TicketDAO;
+import com.poortoys.examples.dao.UserDAO;
+import com.poortoys.examples.entities.BookingStatus;
+import com.poortoys.examples.entities.TicketStatus;
+import com.poortoys.examples.entities.User;
+
+public class IndexAdvisor {
+    private static final int DEFAULT_EVENT_ID = 1;
+    // Tables estimated to hold fewer rows than this may be scanned
+    public static final long DEFAULT_LARGE_TABLE_ROWS = 10_000;
+
+    private final EntityManagerFactory emf;
+    private final long largeTableRows;
+    private final List<Probe> probes = new ArrayList<>();
+
+    /**
+     * A query to explain, with the parameter values to explain it with.
+     */
+    private static class Probe {
+        final String name;
+        final String query; // JPQL, or SQL with positional parameters when nativeSql is set
+        final boolean nativeSql;
+        final boolean covering; // Every table must be read from an index alone
+        final Map<String, Object> namedParameters;
+        final Object[] positionalParameters;
+
+        Probe(String name, String query, boolean nativeSql, boolean covering,
+              Map<String, Object> namedParameters, Object[] positionalParameters) {
+            this.name = name;
+            this.query = query;
+            this.nativeSql = nativeSql;
+            this.covering = covering;
+            this.namedParameters = namedParameters;
+            this.positionalParameters = positionalParameters;
+        }
+    }
+
+    /**
+     * One row of an EXPLAIN result, with the verdict for it.
+     */
+    public static class PlanRow {
+        private final String queryName;
+        private final String table;
+        private final String accessType;
+        private final String key;
+        private final long rows;
+        private final String extra;
+        private final String violation; // null if the row is acceptable
+
+        PlanRow(String queryName, String table, String accessType, String key, long rows, String extra,
+                String violation) {
+            this.queryName = queryName;
+            this.table = table;
+            this.accessType = accessType;
+            this.key = key;
+            this.rows = rows;
+            this.extra = extra;
+            this.violation = violation;
+        }
+
+        public String getQueryName() { return queryName; }
+        public String getTable() { return table; }
+        public String getAccessType() { return accessType; }
+        public String getKey() { return key; }
+        public long getRows() { return rows; }
+        public String getExtra() { return extra; }
+        public String getViolation() { return violation; }
+        public boolean isViolation() { return violation != null; }
+    }
+
+    public IndexAdvisor(EntityManagerFactory emf) {
+        this(emf, DEFAULT_LARGE_TABLE_ROWS);
+    }
+
+    /**
+     * @param emf factory of a MySQL persistence unit
+     * @param largeTableRows estimated row count from which a full scan is reported
+     */
+    public IndexAdvisor(EntityManagerFactory emf, long largeTableRows) {
+        this.emf = emf;
+        this.largeTableRows = largeTableRows;
+    }
+
+    public static void main(String[] args) {
+        int eventId = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_EVENT_ID;
+        long largeTableRows = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_LARGE_TABLE_ROWS;
+
+        EntityManagerFactory emf = Persistence.createEntityManagerFactory("ticketingsystem");
+        List<PlanRow> violations;
+        try {
+            IndexAdvisor advisor = new IndexAdvisor(emf, largeTableRows).addHotQueries(eventId);
+            List<PlanRow> plans = advisor.explainAll();
+            printReport(plans);
+            violations = violations(plans);
+        } finally {
+            emf.close();
+        }
+        System.exit(violations.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * Registers the queries on the booking path, the availability reads and the DAO
+     * lookups, explained with an existing ticket, category and user of the event. The
+     * lookup of a booking's tickets is only registered once a booking exists.
+     * @param eventId event whose data is used as parameter values
+     * @return this advisor
+     */
+    public IndexAdvisor addHotQueries(int eventId) {
+        String serial;
+        Integer ticketId;
+        Integer categoryId;
+        User user;
+        Integer bookingId;
+        EntityManager em = emf.createEntityManager();
+        try {
+            serial = em.createQuery(
+                "SELECT MIN(t.serialNumber) FROM Ticket t WHERE t.event.eventId = :eventId", String.class)
+                .setParameter("eventId", eventId)
+                .getSingleResult();
+            ticketId = em.createQuery(
+                "SELECT MIN(t.ticketId) FROM Ticket t WHERE t.event.eventId = :eventId", Integer.class)
+                .setParameter("eventId", eventId)
+                .getSingleResult();
+            categoryId = em.createQuery(
+                "SELECT MIN(tc.ticketCategoryId) FROM TicketCategory tc WHERE tc.event.eventId = :eventId",
+                Integer.class)
+                .setParameter("eventId", eventId)
+                .getSingleResult();
+            Integer userId = em.createQuery("SELECT MIN(u.userId) FROM User u", Integer.class).getSingleResult();
+            user = userId != null ? em.find(User.class, userId) : null;
+            bookingId = em.createQuery("SELECT MIN(b.bookingId) FROM Booking b", Integer.class).getSingleResult();
+        } finally {
+            em.close();
+        }
+        if (serial == null || ticketId == null || categoryId == null || user == null) {
+            throw new IllegalStateException("Event " + eventId + " needs tickets, a category and a user to explain with");
+        }
+
+        addCoveringQuery("available serials", BookingService.AVAILABLE_SERIALS_QUERY,
+            parameters("eventId", eventId, "status", TicketStatus.AVAILABLE));
+        addCoveringQuery("available count", BookingService.AVAILABLE_COUNT_QUERY,
+            parameters("eventId", eventId, "status", TicketStatus.AVAILABLE));
+        addQuery("claim serials", BookingService.CLAIM_SERIALS_UPDATE,
+            parameters("sold", TicketStatus.SOLD, "now", new Date(),
+                "serials", Collections.singletonList(serial), "available", TicketStatus.AVAILABLE));
+        addQuery("claim ticket ids", BookingService.CLAIM_IDS_UPDATE,
+            parameters("sold", TicketStatus.SOLD, "now", new Date(),
+                "ids", Collections.singletonList(ticketId), "available", TicketStatus.AVAILABLE));
+        addNativeQuery("claim best available", BookingService.CLAIM_ANY_AVAILABLE_SQL,
+            eventId, categoryId, TicketStatus.AVAILABLE.getDbValue(), 1);
+        addQuery("bookings by user and status", BookingDAO.FIND_BY_USER_AND_STATUS_QUERY,
+            parameters("user", user, "status", BookingStatus.CONFIRMED));
+        addQuery("categories by event", TicketCategoryDAO.FIND_BY_EVENT_QUERY,
+            parameters("eventId", eventId));
+        addQuery("tickets by event", TicketDAO.FIND_BY_EVENT_QUERY,
+            parameters("eventId", eventId));
+        addQuery("ticket by serial", TicketDAO.FIND_BY_SERIAL_NUMBER_QUERY,
+            parameters("serialNumber", serial));
+        addQuery("user by email", UserDAO.FIND_BY_EMAIL_QUERY,
+            parameters("email", user.getEmail()));
+        addQuery("user by username", UserDAO.FIND_BY_USERNAME_QUERY,
+            parameters("username", user.getUserName()));
+        if (bookingId != null) {
+            addQuery("tickets by booking", BookingTicketDAO.FIND_BY_BOOKING_ID_QUERY,
+                parameters("bookingId", bookingId));
+        }
+        return this;
+    }
+
+    /**
+     * Adds a JPQL query whose plan must not scan a large table.
+     * A collection-valued parameter is explained with its first element only.
+     */
+    public IndexAdvisor addQuery(String name, String jpql, Map<String, Object> parameters) {
+        probes.add(new Probe(name, jpql, false, false, parameters, null));
+        return this;
+    }
+
+    /**
+     * Adds a JPQL query that must in addition be answered from indexes without reading rows.
+     */
+    public IndexAdvisor addCoveringQuery(String name, String jpql, Map<String, Object> parameters) {
+        probes.add(new Probe(name, jpql, false, true, parameters, null));
+        return this;
+    }
+
+    /**
+     * Adds a native query with positional (?) parameters whose plan must not scan a large table.
+     */
+    public IndexAdvisor addNativeQuery(String name, String sql, Object... parameters) {
+        probes.add(new Probe(name, sql, true, false, Collections.<String, Object>emptyMap(), parameters));
+        return this;
+    }
+
+    /**
+     * Explains every registered query.
+     * @return all plan rows, with a violation set on those that scan a large table or miss a covering index
+     * @throws IllegalStateException if the persistence unit does not use MySQL
+     */
+    public List<PlanRow> explainAll() {
+        SessionFactoryImplementor sessionFactory = emf.unwrap(SessionFactoryImplementor.class);
+        if (!(sessionFactory.getJdbcServices().getDialect() instanceof MySQLDialect)) {
+            throw new IllegalStateException("IndexAdvisor reads MySQL EXPLAIN output; dialect is " +
+                sessionFactory.getJdbcServices().getDialect());
+        }
+
+        List<PlanRow> plans = new ArrayList<>();
+        EntityManager em = emf.createEntityManager();
+        try {
+            SharedSessionContractImplementor session = em.unwrap(SharedSessionContractImplementor.class);
+            em.unwrap(Session.class).doWork(connection -> {
+                for (Probe probe : probes) {
+                    if (probe.nativeSql) {
+                        plans.addAll(explainNative(connection, probe));
+                    } else {
+                        plans.addAll(explainJpql(connection, session, sessionFactory, probe));
+                    }
+                }
+            });
+        } finally {
+            em.close();
+        }
+        return plans;
+    }
+
+    /**
+     * Explains every registered query and throws if any plan is not acceptable.
+     * @throws RuntimeException listing the offending queries
+     */
+    public void check() {
+        List<PlanRow> violations = violations(explainAll());
+        if (!violations.isEmpty()) {
+            StringBuilder message = new StringBuilder("Queries without a usable index:");
+            for (PlanRow row : violations) {
+                message.append("\n  ").append(row.getQueryName()).append(": ").append(row.getViolation());
+            }
+            throw new RuntimeException(message.toString());
+        }
+    }
+
+    private List<PlanRow> explainJpql(Connection connection, SharedSessionContractImplementor session,
+                                      SessionFactoryImplementor sessionFactory, Probe probe) throws SQLException {
+        // Translated outside the query plan cache; each probe is explained once
+        HQLQueryPlan plan = new HQLQueryPlan(probe.query, false, Collections.emptyMap(), sessionFactory);
+        List<PlanRow> rows = new ArrayList<>();
+        for (QueryTranslator translator : plan.getTranslators()) {
+            // collectSqlStrings rather than getSQLString, which is null for bulk UPDATE and DELETE
+            for (String sql : translator.collectSqlStrings()) {
+                rows.addAll(explainTranslated(connection, session, probe, translator, sql));
+            }
+        }
+        return rows;
+    }
+
+    private List<PlanRow> explainTranslated(Connection connection, SharedSessionContractImplementor session,
+                                            Probe probe, QueryTranslator translator, String sql) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("EXPLAIN " + sql)) {
+            for (Map.Entry<String, Object> parameter : probe.namedParameters.entrySet()) {
+                NamedParameterInformation info =
+                    translator.getParameterTranslations().getNamedParameterInformation(parameter.getKey());
+                if (info == null) {
+                    throw new IllegalArgumentException("Query '" + probe.name + "' has no parameter " +
+                        parameter.getKey());
+                }
+                Object value = parameter.getValue() instanceof Collection
+                    ? ((Collection<?>) parameter.getValue()).iterator().next()
+                    : parameter.getValue();
+                for (int location : info.getSourceLocations()) {
+                    if (info.getExpectedType() != null) {
+                        info.getExpectedType().nullSafeSet(statement, value, location + 1, session);
+                    } else {
+                        statement.setObject(location + 1, value);
+                    }
+                }
+            }
+            return readPlan(statement, probe);
+        }
+    }
+
+    private List<PlanRow> explainNative(Connection connection, Probe probe) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("EXPLAIN " + probe.query)) {
+            for (int i = 0; i < probe.positionalParameters.length; i++) {
+                statement.setObject(i + 1, probe.positionalParameters[i]);
+            }
+            return readPlan(statement, probe);
+        }
+    }
+
+    private List<PlanRow> readPlan(PreparedStatement statement, Probe probe) throws SQLException {
+        List<PlanRow> rows = new ArrayList<>();
+        try (ResultSet result = statement.executeQuery()) {
+            while (result.next()) {
+                String table = result.getString("table");
+                String accessType = result.getString("type");
+                String key = result.getString("key");
+                long estimatedRows = result.getLong("rows");
+                String extra = result.getString("Extra");
+                rows.add(new PlanRow(probe.name, table, accessType, key, estimatedRows, extra,
+                    judge(probe, table, accessType, estimatedRows, extra)));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @return why the plan row is not acceptable, or null if it is
+     */
+    private String judge(Probe probe, String table, String accessType, long estimatedRows, String extra) {
+        if (table == null) {
+            return null; // No table accessed, e.g. "Impossible WHERE" or "No tables used"
+        }
+        boolean fullScan = "ALL".equals(accessType) || "index".equals(accessType);
+        if (fullScan && estimatedRows >= largeTableRows) {
+            return ("ALL".equals(accessType) ? "full table scan of " : "full index scan of ") + table +
+                " (~" + estimatedRows + " rows)";
+        }
+        // "Using index" in Extra means no row was read; "Using index condition" does not
+        if (probe.covering && (extra == null || !Arrays.asList(extra.split(";\\s*")).contains("Using index"))) {
+            return "reads rows of " + table + " although a covering index is required";
+        }
+        return null;
+    }
+
+    /**
+     * @return the plan rows that are not acceptable
+     */
+    public static List<PlanRow> violations(List<PlanRow> plans) {
+        List<PlanRow> violations = new ArrayList<>();
+        for (PlanRow row : plans) {
+            if (row.isViolation()) {
+                violations.add(row);
+            }
+        }
+        return violations;
+    }
+
+    public static void printReport(List<PlanRow> plans) {
+        System.out.println("\n=== Index Advisor ===");
+        System.out.printf("%-28s | %-12s | %-6s | %-34s | %-8s | %s%n", "Query", "Table", "Type", "Key", "Rows", "Extra");
+        for (PlanRow row : plans) {
+            System.out.printf("%-28s | %-12s | %-6s | %-34s | %-8d | %s%n", row.getQueryName(), row.getTable(),
+                row.getAccessType(), row.getKey(), row.getRows(), row.getExtra());
+        }
+        List<PlanRow> violations = violations(plans);
+        if (violations.isEmpty()) {
+            System.out.println("All queries use an index");
+        }
+        for (PlanRow row : violations) {
+            System.out.println("FAIL " + row.getQueryName() + ": " + row.getViolation());
+        }
+    }
+
+    private static Map<String, Object> parameters(Object... namesAndValues) {
+        Map<String, Object> parameters = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            parameters.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return parameters;
+    }
+}
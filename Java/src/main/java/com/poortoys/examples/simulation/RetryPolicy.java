@@ -0,0 +1,78 @@
+package com.poortoys.examples.simulation;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retry budget with exponential backoff and full jitter.
+ * The delay before retry n is a random value between 0 and
+ * min(maxBackoffMillis, baseBackoffMillis * 2^(n-1)), which spreads competing
+ * retries apart instead of letting them collide again.
+ */
+public class RetryPolicy {
+    private final int maxAttempts; // Total attempts including the first one
+    private final long baseBackoffMillis; // Backoff ceiling for the first retry
+    private final long maxBackoffMillis; // Upper bound for any backoff
+
+    /**
+     * @param maxAttempts total attempts allowed, including the first one (at least 1)
+     * @param baseBackoffMillis backoff ceiling for the first retry
+     * @param maxBackoffMillis upper bound for any backoff
+     */
+    public RetryPolicy(int maxAttempts, long baseBackoffMillis, long maxBackoffMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1: " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param attempt the attempt that just failed (1 for the first attempt)
+     * @return true if another attempt is allowed
+     */
+    public boolean canRetry(int attempt) {
+        return attempt < maxAttempts;
+    }
+
+    /**
+     * Computes the jittered delay to wait after the given failed attempt.
+     * @param attempt the attempt that just failed (1 for the first attempt)
+     * @return delay in milliseconds
+     */
+    public long backoffMillis(int attempt) {
+        long ceiling = baseBackoffMillis << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > maxBackoffMillis) {
+            ceiling = maxBackoffMillis;
+        }
+        return ceiling > 0 ? ThreadLocalRandom.current().nextLong(ceiling + 1) : 0;
+    }
+
+    /**
+     * Sleeps for the jittered backoff of the given failed attempt.
+     * @param attempt the attempt that just failed (1 for the first attempt)
+     */
+    public void backoff(int attempt) {
+        long delay = backoffMillis(attempt);
+        if (delay <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Restore the interrupted status
+            throw new RuntimeException("Interrupted while backing off", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{maxAttempts=" + maxAttempts +
+               ", baseBackoffMillis=" + baseBackoffMillis +
+               ", maxBackoffMillis=" + maxBackoffMillis + '}';
+    }
+}
@@ -0,0 +1,332 @@
+/**
+ * SeatInventory keeps the authoritative availability of every ticket of the loaded events in memory.
+ * Each ticket category is a bitset indexed by seat ordinal (a set bit means the seat is taken),
+ * so claiming a seat is a single compare-and-set and never touches database row locks.
+ * The bitsets are rebuilt from the tickets table when an event is loaded, which is also the
+ * recovery step after a restart. The users allowed to book are loaded alongside, so a
+ * booking is validated without a query either.
+ */
+
+package com.poortoys.examples.simulation;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import com.poortoys.examples.dao.UserDAO;
+import com.poortoys.examples.entities.TicketStatus;
+import com.poortoys.examples.entities.User;
+
+public class SeatInventory {
+    // Seat location of every loaded ticket, keyed by serial number and by ticket ID
+    private final Map<String, Seat> seatsBySerial = new ConcurrentHashMap<>();
+    private final Map<Integer, Seat> seatsByTicketId = new ConcurrentHashMap<>();
+    // Category bitsets keyed by ticket category ID
+    private final Map<Integer, CategoryInventory> categories = new ConcurrentHashMap<>();
+    // Detached users that may book, keyed by user ID
+    private final Map<Integer, User> users = new ConcurrentHashMap<>();
+
+    // Metrics for claims served from memory
+    private final AtomicInteger successfulClaims = new AtomicInteger(0);
+    private final AtomicInteger rejectedClaims = new AtomicInteger(0);
+
+    /**
+     * Loads (or reloads) the availability of every ticket of an event from the tickets table.
+     * Seat ordinals are assigned per category in ticket ID order.
+     * Must not run while bookings for the event are being claimed.
+     * @param emf factory used to open a short-lived EntityManager
+     * @param eventId ID of the event to load
+     * @return number of tickets loaded
+     */
+    public int loadEvent(EntityManagerFactory emf, int eventId) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            List<Object[]> rows = em.createQuery(
+                "SELECT t.ticketId, t.serialNumber, tc.ticketCategoryId, tc.price, t.status FROM Ticket t " +
+                "JOIN t.ticketCategory tc WHERE t.event.eventId = :eventId ORDER BY t.ticketId",
+                Object[].class)
+                .setParameter("eventId", eventId)
+                .getResultList();
+
+            // Group rows per category so every bitset can be sized up front
+            Map<Integer, List<Object[]>> rowsByCategory = new HashMap<>();
+            for (Object[] row : rows) {
+                rowsByCategory.computeIfAbsent((Integer) row[2], id -> new ArrayList<>()).add(row);
+            }
+
+            for (Map.Entry<Integer, List<Object[]>> entry : rowsByCategory.entrySet()) {
+                List<Object[]> categoryRows = entry.getValue();
+                CategoryInventory category = new CategoryInventory(entry.getKey(),
+                    (BigDecimal) categoryRows.get(0)[3], categoryRows.size());
+
+                for (int ordinal = 0; ordinal < categoryRows.size(); ordinal++) {
+                    Object[] row = categoryRows.get(ordinal);
+                    category.ticketIds[ordinal] = (Integer) row[0];
+                    if (row[4] != TicketStatus.AVAILABLE) {
+                        category.markTaken(ordinal);
+                    }
+                    Seat seat = new Seat(category, ordinal);
+                    seatsBySerial.put((String) row[1], seat);
+                    seatsByTicketId.put(category.ticketIds[ordinal], seat);
+                }
+                categories.put(entry.getKey(), category);
+            }
+
+            System.out.println("Seat inventory loaded for event " + eventId + ": " + rows.size() +
+                " tickets in " + rowsByCategory.size() + " categories");
+            return rows.size();
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Loads every user, page by page, so bookings can be validated in memory.
+     * Users created afterwards can only book once they are added with addUser.
+     * @param emf factory used to open a short-lived EntityManager
+     * @return number of users loaded
+     */
+    public int loadUsers(EntityManagerFactory emf) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            new UserDAO(em).streamAll().forEach(this::addUser); // Pages are detached as the stream moves on
+            System.out.println("Seat inventory loaded " + users.size() + " users");
+            return users.size();
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Allows a user to book from the inventory.
+     * @param user detached user; only read once added
+     */
+    public void addUser(User user) {
+        users.put(user.getUserId(), user);
+    }
+
+    /**
+     * @return the loaded user, or null if the user is unknown to the inventory
+     */
+    User getUser(int userId) {
+        return users.get(userId);
+    }
+
+    /**
+     * @return true if every serial belongs to a loaded event
+     */
+    public boolean containsAll(List<String> serials) {
+        for (String serial : serials) {
+            if (!seatsBySerial.containsKey(serial)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the category belongs to a loaded event
+     */
+    public boolean containsCategory(int ticketCategoryId) {
+        return categories.containsKey(ticketCategoryId);
+    }
+
+    /**
+     * Claims exactly the given seats. Either all seats are claimed or none is.
+     * @param serials serial numbers to claim
+     * @return the claimed tickets, or null if any seat was already taken
+     */
+    List<ClaimedTicket> claim(List<String> serials) {
+        List<ClaimedTicket> claimed = new ArrayList<>(serials.size());
+        for (String serial : serials) {
+            Seat seat = seatsBySerial.get(serial);
+            if (seat == null) {
+                release(claimed);
+                throw new IllegalArgumentException("Ticket not in seat inventory: " + serial);
+            }
+            if (!seat.category.tryTake(seat.ordinal)) {
+                release(claimed); // Undo the seats taken so far
+                rejectedClaims.incrementAndGet();
+                return null;
+            }
+            claimed.add(seat.category.toClaimedTicket(seat.ordinal));
+        }
+        successfulClaims.incrementAndGet();
+        return claimed;
+    }
+
+    /**
+     * Claims any free seats of a category. Either quantity seats are claimed or none is.
+     * @return the claimed tickets, or null if not enough seats are free
+     */
+    List<ClaimedTicket> claimAny(int ticketCategoryId, int quantity) {
+        CategoryInventory category = categories.get(ticketCategoryId);
+        if (category == null) {
+            throw new IllegalArgumentException("Ticket category not in seat inventory: " + ticketCategoryId);
+        }
+
+        List<ClaimedTicket> claimed = new ArrayList<>(quantity);
+        while (claimed.size() < quantity) {
+            int ordinal = category.takeAnyFree();
+            if (ordinal < 0) {
+                release(claimed); // Undo the seats taken so far
+                rejectedClaims.incrementAndGet();
+                return null;
+            }
+            claimed.add(category.toClaimedTicket(ordinal));
+        }
+        successfulClaims.incrementAndGet();
+        return claimed;
+    }
+
+    /**
+     * Makes previously claimed seats available again.
+     */
+    void release(List<ClaimedTicket> claimed) {
+        for (ClaimedTicket ticket : claimed) {
+            Seat seat = seatsByTicketId.get(ticket.getTicketId());
+            if (seat != null) {
+                seat.category.release(seat.ordinal);
+            }
+        }
+    }
+
+    /**
+     * Makes seats available again by ticket ID, e.g. after their hold was released.
+     * IDs of tickets outside the loaded events are ignored.
+     */
+    void releaseTicketIds(List<Integer> ticketIds) {
+        for (Integer ticketId : ticketIds) {
+            Seat seat = seatsByTicketId.get(ticketId);
+            if (seat != null) {
+                seat.category.release(seat.ordinal);
+            }
+        }
+    }
+
+    /**
+     * @return number of free seats in a category, or -1 if the category is not loaded
+     */
+    public int getAvailableCount(int ticketCategoryId) {
+        CategoryInventory category = categories.get(ticketCategoryId);
+        return category != null ? category.available.get() : -1;
+    }
+
+    public int getSuccessfulClaims() {
+        return successfulClaims.get();
+    }
+
+    public int getRejectedClaims() {
+        return rejectedClaims.get();
+    }
+
+    /**
+     * Location of one ticket: its category bitset and seat ordinal.
+     */
+    private static final class Seat {
+        private final CategoryInventory category;
+        private final int ordinal;
+
+        Seat(CategoryInventory category, int ordinal) {
+            this.category = category;
+            this.ordinal = ordinal;
+        }
+    }
+
+    /**
+     * Availability bitset of one ticket category.
+     */
+    private static final class CategoryInventory {
+        private final int ticketCategoryId;
+        private final BigDecimal price;
+        private final int[] ticketIds; // Ticket ID per seat ordinal
+        private final AtomicLongArray taken; // One bit per seat ordinal
+        private final AtomicInteger available;
+        private final AtomicInteger scanHint = new AtomicInteger(0); // Word where the next free-seat scan starts
+
+        CategoryInventory(int ticketCategoryId, BigDecimal price, int size) {
+            this.ticketCategoryId = ticketCategoryId;
+            this.price = price;
+            this.ticketIds = new int[size];
+            this.taken = new AtomicLongArray((size + 63) / 64);
+            this.available = new AtomicInteger(size);
+        }
+
+        void markTaken(int ordinal) {
+            if (tryTake(ordinal)) {
+                return;
+            }
+            throw new IllegalStateException("Seat ordinal loaded twice: " + ordinal);
+        }
+
+        /**
+         * Sets the bit of a seat with a compare-and-set.
+         * @return false if the seat was already taken
+         */
+        boolean tryTake(int ordinal) {
+            int word = ordinal >>> 6;
+            long mask = 1L << (ordinal & 63);
+            while (true) {
+                long current = taken.get(word);
+                if ((current & mask) != 0) {
+                    return false;
+                }
+                if (taken.compareAndSet(word, current, current | mask)) {
+                    available.decrementAndGet();
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Takes the first free seat found, starting from a rotating word so concurrent
+         * buyers spread over the bitset.
+         * @return the seat ordinal, or -1 if the category is full
+         */
+        int takeAnyFree() {
+            int words = taken.length();
+            int start = Math.floorMod(scanHint.getAndIncrement(), Math.max(words, 1));
+            for (int i = 0; i < words; i++) {
+                int word = (start + i) % words;
+                long current;
+                while ((current = taken.get(word)) != -1L) {
+                    int bit = Long.numberOfTrailingZeros(~current);
+                    int ordinal = (word << 6) + bit;
+                    if (ordinal >= ticketIds.length) {
+                        break; // Only padding bits are left in the last word
+                    }
+                    if (taken.compareAndSet(word, current, current | (1L << bit))) {
+                        available.decrementAndGet();
+                        return ordinal;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        void release(int ordinal) {
+            int word = ordinal >>> 6;
+            long mask = 1L << (ordinal & 63);
+            while (true) {
+                long current = taken.get(word);
+                if ((current & mask) == 0) {
+                    return;
+                }
+                if (taken.compareAndSet(word, current, current & ~mask)) {
+                    available.incrementAndGet();
+                    return;
+                }
+            }
+        }
+
+        ClaimedTicket toClaimedTicket(int ordinal) {
+            return new ClaimedTicket(ticketIds[ordinal], ticketCategoryId, price);
+        }
+    }
+}
@@ -0,0 +1,593 @@
+/**
+ * SeatMapService serves the seat map of an event from memory, so polling clients do not
+ * each re-run the availability query against the tickets table.
+ *
+ * A seat map holds one status byte per seat, laid out per ticket category as rows x seats
+ * (50 x 200 for the tickets TicketInitializer creates), and carries a version. A single
+ * background refresh reads the event's tickets that are not available, compares them
+ * with the current map and, if any seat changed, publishes a new immutable map under the
+ * next version and appends the changed seats to a fixed-size ring of deltas. Clients pass
+ * the version they last saw and get back only the seats that changed since, or the full
+ * map when they are new or so far behind that the ring no longer holds their changes.
+ *
+ * Maps lag the database by at most one refresh interval; every write path (JPA, stored
+ * procedure, holds, sweeper, write-behind) shows up because the tickets table is the source.
+ */
+
+package com.poortoys.examples.simulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import com.poortoys.examples.entities.TicketStatus;
+
+public class SeatMapService implements AutoCloseable {
+    // Configuration defaults
+    private static final long DEFAULT_REFRESH_INTERVAL_MS = 250; // Time between refreshes of every loaded event
+    private static final int DEFAULT_DELTA_CAPACITY = 65_536; // Seat changes kept per event for delta requests
+    // Status byte of a cell without a ticket, e.g. a short last row
+    private static final byte NO_SEAT = -1;
+    private static final TicketStatus[] STATUSES = TicketStatus.values();
+
+    private final EntityManagerFactory emf;
+    private final long refreshIntervalMs;
+    private final int deltaCapacity;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentHashMap<Integer, EventSeatMap> events = new ConcurrentHashMap<>(); // By event id
+
+    // Metrics for the served reads and the refreshes
+    private final AtomicInteger snapshotsServed = new AtomicInteger(0); // Full maps handed out
+    private final AtomicInteger deltasServed = new AtomicInteger(0); // Delta (or "no change") answers
+    private final AtomicInteger refreshes = new AtomicInteger(0);
+    private final AtomicInteger failedRefreshes = new AtomicInteger(0);
+    private final AtomicLong publishedChanges = new AtomicLong(0); // Seat changes found by refreshes
+
+    public SeatMapService(EntityManagerFactory emf) {
+        this(emf, DEFAULT_REFRESH_INTERVAL_MS, DEFAULT_DELTA_CAPACITY);
+    }
+
+    /**
+     * @param emf factory used to open one EntityManager per load or refresh
+     * @param refreshIntervalMs time between background refreshes
+     * @param deltaCapacity seat changes kept per event; older clients get a full map
+     */
+    public SeatMapService(EntityManagerFactory emf, long refreshIntervalMs, int deltaCapacity) {
+        this.emf = emf;
+        this.refreshIntervalMs = refreshIntervalMs;
+        this.deltaCapacity = deltaCapacity;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "seat-map-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads (or reloads) the seat map of an event at version 1. Rows and seats are taken
+     * from the number in each ticket's row and seat label ("Row 12", "Seat 7").
+     * @param eventId ID of the event to load
+     * @return number of seats loaded
+     * @throws IllegalStateException if a label has no number or two tickets share a seat
+     */
+    public int loadEvent(int eventId) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            List<Object[]> rows = em.createQuery(
+                "SELECT t.ticketId, t.ticketCategory.ticketCategoryId, t.rowNumber, t.seatNumber, t.status " +
+                "FROM Ticket t WHERE t.event.eventId = :eventId ORDER BY t.ticketCategory.ticketCategoryId",
+                Object[].class)
+                .setParameter("eventId", eventId)
+                .getResultList();
+
+            // Step 1: Size every category from its highest row and seat number
+            int[] rowOf = new int[rows.size()];
+            int[] seatOf = new int[rows.size()];
+            Map<Integer, int[]> extents = new LinkedHashMap<>(); // Highest row and seat by category id
+            for (int i = 0; i < rows.size(); i++) {
+                Object[] row = rows.get(i);
+                rowOf[i] = labelNumber((String) row[2], row[0]);
+                seatOf[i] = labelNumber((String) row[3], row[0]);
+                int[] extent = extents.computeIfAbsent((Integer) row[1], id -> new int[2]);
+                extent[0] = Math.max(extent[0], rowOf[i]);
+                extent[1] = Math.max(extent[1], seatOf[i]);
+            }
+            Map<Integer, CategoryLayout> layouts = new LinkedHashMap<>();
+            int cells = 0;
+            for (Map.Entry<Integer, int[]> extent : extents.entrySet()) {
+                int[] size = extent.getValue();
+                layouts.put(extent.getKey(), new CategoryLayout(extent.getKey(), size[0], size[1], cells));
+                cells += size[0] * size[1];
+            }
+
+            // Step 2: Place every ticket in its cell and index the cells by ticket id
+            byte[] statuses = new byte[cells];
+            Arrays.fill(statuses, NO_SEAT);
+            long[] cellByTicketId = new long[rows.size()]; // Ticket id in the high half, cell in the low half
+            for (int i = 0; i < rows.size(); i++) {
+                Object[] row = rows.get(i);
+                CategoryLayout layout = layouts.get(row[1]);
+                int cell = layout.offset + (rowOf[i] - 1) * layout.seatsPerRow + (seatOf[i] - 1);
+                if (statuses[cell] != NO_SEAT) {
+                    throw new IllegalStateException("Two tickets share row " + rowOf[i] + ", seat " + seatOf[i] +
+                        " of category " + layout.ticketCategoryId);
+                }
+                statuses[cell] = (byte) ((TicketStatus) row[4]).ordinal();
+                cellByTicketId[i] = ((long) (Integer) row[0] << 32) | cell;
+            }
+            Arrays.sort(cellByTicketId);
+
+            events.put(eventId, new EventSeatMap(new SeatMap(eventId, 1,
+                Collections.unmodifiableList(new ArrayList<>(layouts.values())), statuses), cellByTicketId, deltaCapacity));
+            System.out.println("Seat map loaded for event " + eventId + ": " + rows.size() + " seats in " +
+                layouts.size() + " categories");
+            return rows.size();
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Keeps refreshing every loaded event in the background every refreshIntervalMs.
+     * Load the events first.
+     */
+    public void start() {
+        scheduler.scheduleWithFixedDelay(() -> {
+            for (Integer eventId : events.keySet()) {
+                try {
+                    refresh(eventId);
+                } catch (RuntimeException e) {
+                    // Keep the schedule alive; clients keep the last published map until the next run
+                    failedRefreshes.incrementAndGet();
+                    System.err.println("Seat map refresh failed for event " + eventId + ": " + e.getMessage());
+                }
+            }
+        }, refreshIntervalMs, refreshIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads the tickets of the event that are not available, and publishes a new version
+     * if any seat changed. Refreshes of the same event must not run concurrently; start()
+     * runs them on one thread.
+     * @param eventId ID of a loaded event
+     * @return number of seats that changed
+     */
+    public int refresh(int eventId) {
+        EventSeatMap eventMap = loadedEvent(eventId);
+        List<Object[]> rows;
+        EntityManager em = emf.createEntityManager();
+        try {
+            // Covered by idx_tickets_event_status_serial, which carries ticket_id
+            rows = em.createQuery(
+                "SELECT t.ticketId, t.status FROM Ticket t WHERE t.event.eventId = :eventId AND t.status <> :available",
+                Object[].class)
+                .setParameter("eventId", eventId)
+                .setParameter("available", TicketStatus.AVAILABLE)
+                .getResultList();
+        } finally {
+            em.close();
+        }
+        refreshes.incrementAndGet();
+
+        // Step 1: Build the statuses the database reports; seats not returned are available
+        SeatMap current = eventMap.current;
+        byte[] statuses = current.statuses.clone();
+        byte available = (byte) TicketStatus.AVAILABLE.ordinal();
+        for (int cell = 0; cell < statuses.length; cell++) {
+            if (statuses[cell] != NO_SEAT) {
+                statuses[cell] = available;
+            }
+        }
+        for (Object[] row : rows) {
+            int cell = eventMap.cellOf((Integer) row[0]);
+            if (cell >= 0) { // Tickets created after the load are not on the map until it is reloaded
+                statuses[cell] = (byte) ((TicketStatus) row[1]).ordinal();
+            }
+        }
+
+        // Step 2: Collect the changed cells and publish them under the next version
+        int changed = 0;
+        int[] changedCells = new int[16];
+        for (int cell = 0; cell < statuses.length; cell++) {
+            if (statuses[cell] != current.statuses[cell]) {
+                if (changed == changedCells.length) {
+                    changedCells = Arrays.copyOf(changedCells, changed * 2);
+                }
+                changedCells[changed++] = cell;
+            }
+        }
+        if (changed > 0) {
+            eventMap.publish(new SeatMap(eventId, current.version + 1, current.layouts, statuses),
+                changedCells, changed);
+            publishedChanges.addAndGet(changed);
+        }
+        return changed;
+    }
+
+    /**
+     * @return the current seat map of a loaded event; the map is immutable and shared
+     */
+    public SeatMap getSnapshot(int eventId) {
+        snapshotsServed.incrementAndGet();
+        return loadedEvent(eventId).current;
+    }
+
+    /**
+     * Answers a client that last saw the given version: with the seats changed since, or
+     * with the full map if the version is 0, unknown, or older than the retained deltas.
+     * @param eventId ID of a loaded event
+     * @param knownVersion version the client already has, 0 if none
+     * @return the update that brings the client to the current version
+     */
+    public SeatMapUpdate getChangesSince(int eventId, long knownVersion) {
+        EventSeatMap eventMap = loadedEvent(eventId);
+        eventMap.lock.readLock().lock();
+        try {
+            SeatMap current = eventMap.current;
+            if (knownVersion == current.version) {
+                deltasServed.incrementAndGet();
+                return new SeatMapUpdate(current.version, null, Collections.<SeatChange>emptyList());
+            }
+            if (knownVersion <= 0 || knownVersion > current.version || knownVersion < eventMap.oldestDeltaBase) {
+                snapshotsServed.incrementAndGet();
+                return new SeatMapUpdate(current.version, current, Collections.<SeatChange>emptyList());
+            }
+            deltasServed.incrementAndGet();
+            return new SeatMapUpdate(current.version, null, eventMap.changesAfter(knownVersion));
+        } finally {
+            eventMap.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return current version of a loaded event's seat map
+     */
+    public long getVersion(int eventId) {
+        return loadedEvent(eventId).current.version;
+    }
+
+    private EventSeatMap loadedEvent(int eventId) {
+        EventSeatMap eventMap = events.get(eventId);
+        if (eventMap == null) {
+            throw new IllegalArgumentException("Seat map not loaded for event " + eventId);
+        }
+        return eventMap;
+    }
+
+    /**
+     * @return the number at the end of a row or seat label, e.g. 12 for "Row 12"
+     */
+    private static int labelNumber(String label, Object ticketId) {
+        int end = label == null ? 0 : label.length();
+        int start = end;
+        while (start > 0 && Character.isDigit(label.charAt(start - 1))) {
+            start--;
+        }
+        if (start == end || Integer.parseInt(label.substring(start, end)) < 1) {
+            throw new IllegalStateException("Ticket " + ticketId + " has no row or seat number in '" + label + "'");
+        }
+        return Integer.parseInt(label.substring(start, end));
+    }
+
+    /**
+     * Stops the background refresh and waits for a running one to finish.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(refreshIntervalMs + 5000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getSnapshotsServed() {
+        return snapshotsServed.get();
+    }
+
+    public int getDeltasServed() {
+        return deltasServed.get();
+    }
+
+    public int getRefreshes() {
+        return refreshes.get();
+    }
+
+    public int getFailedRefreshes() {
+        return failedRefreshes.get();
+    }
+
+    public long getPublishedChanges() {
+        return publishedChanges.get();
+    }
+
+    /**
+     * Published map and delta ring of one event.
+     */
+    private static final class EventSeatMap {
+        private final long[] cellByTicketId; // Sorted; ticket id in the high half, cell in the low half
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        // Delta ring, one entry per changed seat in version order; guarded by lock
+        private final long[] deltaVersions;
+        private final int[] deltaCells;
+        private final byte[] deltaStatuses;
+        private long deltaCount = 0; // Entries ever written; the newest is at (deltaCount - 1) % capacity
+        private long oldestDeltaBase = 1; // Oldest version from which every later change is still in the ring
+        private volatile SeatMap current;
+
+        EventSeatMap(SeatMap initial, long[] cellByTicketId, int capacity) {
+            this.current = initial;
+            this.cellByTicketId = cellByTicketId;
+            this.deltaVersions = new long[capacity];
+            this.deltaCells = new int[capacity];
+            this.deltaStatuses = new byte[capacity];
+        }
+
+        /**
+         * @return the cell of a ticket, or -1 if the ticket was not loaded
+         */
+        int cellOf(int ticketId) {
+            int low = 0;
+            int high = cellByTicketId.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int middleId = (int) (cellByTicketId[middle] >> 32);
+                if (middleId < ticketId) {
+                    low = middle + 1;
+                } else if (middleId > ticketId) {
+                    high = middle - 1;
+                } else {
+                    return (int) cellByTicketId[middle];
+                }
+            }
+            return -1;
+        }
+
+        void publish(SeatMap next, int[] changedCells, int changed) {
+            lock.writeLock().lock();
+            try {
+                int capacity = deltaVersions.length;
+                for (int i = 0; i < changed; i++) {
+                    int slot = (int) (deltaCount % capacity);
+                    if (deltaCount >= capacity) {
+                        // Overwriting a change of this version: clients before it need the full map
+                        oldestDeltaBase = deltaVersions[slot];
+                    }
+                    deltaVersions[slot] = next.version;
+                    deltaCells[slot] = changedCells[i];
+                    deltaStatuses[slot] = next.statuses[changedCells[i]];
+                    deltaCount++;
+                }
+                if (changed > capacity) {
+                    oldestDeltaBase = next.version; // The ring cannot hold even this version's changes
+                }
+                current = next;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Collects the latest status of every seat changed after a version. Call with the read lock held.
+         */
+        List<SeatChange> changesAfter(long knownVersion) {
+            int capacity = deltaVersions.length;
+            long oldest = Math.max(0, deltaCount - capacity);
+            long first = deltaCount;
+            while (first > oldest && deltaVersions[(int) ((first - 1) % capacity)] > knownVersion) {
+                first--;
+            }
+            // Later entries win, so a seat reserved and then sold is reported once as sold
+            Map<Integer, SeatChange> byCell = new LinkedHashMap<>();
+            for (long entry = first; entry < deltaCount; entry++) {
+                int slot = (int) (entry % capacity);
+                byCell.remove(deltaCells[slot]);
+                byCell.put(deltaCells[slot], current.toChange(deltaVersions[slot], deltaCells[slot], deltaStatuses[slot]));
+            }
+            return new ArrayList<>(byCell.values());
+        }
+    }
+
+    /**
+     * Position of one ticket category's seats in the status array.
+     */
+    public static final class CategoryLayout {
+        private final int ticketCategoryId;
+        private final int rows;
+        private final int seatsPerRow;
+        private final int offset; // Cell of row 1, seat 1
+
+        CategoryLayout(int ticketCategoryId, int rows, int seatsPerRow, int offset) {
+            this.ticketCategoryId = ticketCategoryId;
+            this.rows = rows;
+            this.seatsPerRow = seatsPerRow;
+            this.offset = offset;
+        }
+
+        public int getTicketCategoryId() {
+            return ticketCategoryId;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public int getSeatsPerRow() {
+            return seatsPerRow;
+        }
+    }
+
+    /**
+     * Immutable seat map of an event at one version.
+     */
+    public static final class SeatMap {
+        private final int eventId;
+        private final long version;
+        private final List<CategoryLayout> layouts;
+        private final byte[] statuses; // TicketStatus ordinal per cell, NO_SEAT where no ticket exists
+
+        SeatMap(int eventId, long version, List<CategoryLayout> layouts, byte[] statuses) {
+            this.eventId = eventId;
+            this.version = version;
+            this.layouts = layouts;
+            this.statuses = statuses;
+        }
+
+        public int getEventId() {
+            return eventId;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public List<CategoryLayout> getCategories() {
+            return layouts;
+        }
+
+        /**
+         * @param row row number, starting at 1
+         * @param seat seat number within the row, starting at 1
+         * @return status of the seat, or null if the category has no ticket there
+         */
+        public TicketStatus getStatus(int ticketCategoryId, int row, int seat) {
+            CategoryLayout layout = layout(ticketCategoryId);
+            if (row < 1 || row > layout.rows || seat < 1 || seat > layout.seatsPerRow) {
+                throw new IndexOutOfBoundsException("No row " + row + ", seat " + seat + " in category " + ticketCategoryId);
+            }
+            byte status = statuses[layout.offset + (row - 1) * layout.seatsPerRow + (seat - 1)];
+            return status == NO_SEAT ? null : STATUSES[status];
+        }
+
+        /**
+         * @return number of available seats in a category
+         */
+        public int getAvailable(int ticketCategoryId) {
+            CategoryLayout layout = layout(ticketCategoryId);
+            byte available = (byte) TicketStatus.AVAILABLE.ordinal();
+            int count = 0;
+            for (int cell = layout.offset; cell < layout.offset + layout.rows * layout.seatsPerRow; cell++) {
+                if (statuses[cell] == available) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private CategoryLayout layout(int ticketCategoryId) {
+            for (CategoryLayout layout : layouts) {
+                if (layout.ticketCategoryId == ticketCategoryId) {
+                    return layout;
+                }
+            }
+            throw new IllegalArgumentException("Category " + ticketCategoryId + " is not on the seat map of event " + eventId);
+        }
+
+        SeatChange toChange(long changeVersion, int cell, byte status) {
+            for (CategoryLayout layout : layouts) {
+                int index = cell - layout.offset;
+                if (index >= 0 && index < layout.rows * layout.seatsPerRow) {
+                    return new SeatChange(changeVersion, layout.ticketCategoryId,
+                        index / layout.seatsPerRow + 1, index % layout.seatsPerRow + 1, STATUSES[status]);
+                }
+            }
+            throw new IllegalStateException("Cell " + cell + " is outside the seat map of event " + eventId);
+        }
+    }
+
+    /**
+     * New status of one seat, and the version that introduced it.
+     */
+    public static final class SeatChange {
+        private final long version;
+        private final int ticketCategoryId;
+        private final int row;
+        private final int seat;
+        private final TicketStatus status;
+
+        SeatChange(long version, int ticketCategoryId, int row, int seat, TicketStatus status) {
+            this.version = version;
+            this.ticketCategoryId = ticketCategoryId;
+            this.row = row;
+            this.seat = seat;
+            this.status = status;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public int getTicketCategoryId() {
+            return ticketCategoryId;
+        }
+
+        public int getRow() {
+            return row;
+        }
+
+        public int getSeat() {
+            return seat;
+        }
+
+        public TicketStatus getStatus() {
+            return status;
+        }
+
+        @Override
+        public String toString() {
+            return "category " + ticketCategoryId + " row " + row + " seat " + seat + " -> " + status + " (v" + version + ")";
+        }
+    }
+
+    /**
+     * Answer to a poll: either a full map or the changes since the client's version.
+     */
+    public static final class SeatMapUpdate {
+        private final long version;
+        private final SeatMap snapshot; // null for a delta
+        private final List<SeatChange> changes;
+
+        SeatMapUpdate(long version, SeatMap snapshot, List<SeatChange> changes) {
+            this.version = version;
+            this.snapshot = snapshot;
+            this.changes = changes;
+        }
+
+        /**
+         * @return the version the client has after applying this update
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return true if the client must replace its map with getSnapshot()
+         */
+        public boolean isSnapshot() {
+            return snapshot != null;
+        }
+
+        public SeatMap getSnapshot() {
+            return snapshot;
+        }
+
+        /**
+         * @return changed seats in version order, each seat at most once with its latest status
+         */
+        public List<SeatChange> getChanges() {
+            return changes;
+        }
+    }
+}
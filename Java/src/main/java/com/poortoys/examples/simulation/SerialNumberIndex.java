@@ -0,0 +1,370 @@
+/**
+ * SerialNumberIndex resolves ticket serial numbers to ticket IDs and seat ordinals in memory,
+ * without a database round trip and without hashing or boxing per lookup.
+ *
+ * Serials made by TicketInitializer have a fixed shape: two event letters, two category
+ * letters and a zero-padded seat number of at least four digits ("ROVI0042"). Such a serial
+ * is packed into one long (the four prefix characters in the upper 32 bits, the seat number
+ * in the lower 32 bits) and stored with its ticket ID and seat ordinal in an open-addressing
+ * table of longs. Serials of any other shape are kept in a small HashMap so the index is
+ * still complete for them.
+ *
+ * Seat ordinals are assigned per category in ticket ID order, as in SeatInventory.
+ * The table is rebuilt and republished as a whole when an event is loaded, so lookups never
+ * see a half-built table and need no locking.
+ *
+ * Usage: SerialNumberIndex [tickets] prints the memory used per million tickets compared
+ * with a HashMap<String, Integer> from serial to ticket ID.
+ */
+
+package com.poortoys.examples.simulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+public class SerialNumberIndex {
+    // Configuration defaults
+    private static final int LOAD_PAGE_SIZE = 10_000; // Tickets read per query when loading an event
+    private static final double LOAD_FACTOR = 0.6; // Filled share of the table; keeps probe sequences short
+    private static final int DEFAULT_REPORT_TICKETS = 1_000_000;
+
+    // Encoded keys always have a printable first character, so 0 never is a key
+    static final long NOT_ENCODABLE = 0L;
+    private static final int PREFIX_LENGTH = 4;
+    private static final int MIN_DIGITS = 4; // String.format("%04d") pads to at least four digits
+    private static final int MAX_DIGITS = 9; // Any nine-digit seat number fits in an int
+
+    private volatile Table table = new Table(0);
+    // Serials that do not have the generated shape; normally empty
+    private volatile Map<String, Long> irregularSerials = new HashMap<>();
+
+    // Metrics for lookups
+    private final AtomicInteger hits = new AtomicInteger(0);
+    private final AtomicInteger misses = new AtomicInteger(0);
+
+    public static void main(String[] args) {
+        int tickets = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_REPORT_TICKETS;
+        printMemoryReport(tickets);
+    }
+
+    /**
+     * Packs a generated serial number into a long.
+     * @return the encoded serial, or NOT_ENCODABLE if it does not have the generated shape
+     */
+    static long encode(String serial) {
+        int length = serial.length();
+        int digits = length - PREFIX_LENGTH;
+        if (digits < MIN_DIGITS || digits > MAX_DIGITS) {
+            return NOT_ENCODABLE;
+        }
+        // Step 1: Four printable ASCII characters, one byte each
+        long prefix = 0;
+        for (int i = 0; i < PREFIX_LENGTH; i++) {
+            char c = serial.charAt(i);
+            if (c < 0x20 || c > 0x7E) {
+                return NOT_ENCODABLE;
+            }
+            prefix = (prefix << 8) | c;
+        }
+        // Step 2: The seat number; a leading zero beyond the padding would encode like a shorter serial
+        if (digits > MIN_DIGITS && serial.charAt(PREFIX_LENGTH) == '0') {
+            return NOT_ENCODABLE;
+        }
+        long number = 0;
+        for (int i = PREFIX_LENGTH; i < length; i++) {
+            char c = serial.charAt(i);
+            if (c < '0' || c > '9') {
+                return NOT_ENCODABLE;
+            }
+            number = number * 10 + (c - '0');
+        }
+        return (prefix << 32) | number;
+    }
+
+    /**
+     * Adds every ticket of an event to the index, reading the tickets table in keyset pages.
+     * Loading an event again replaces its entries.
+     * @param emf factory used to open a short-lived EntityManager
+     * @param eventId ID of the event to load
+     * @return number of tickets loaded
+     */
+    public synchronized int loadEvent(EntityManagerFactory emf, int eventId) {
+        long[] keys = new long[LOAD_PAGE_SIZE];
+        long[] values = new long[LOAD_PAGE_SIZE];
+        Map<String, Long> irregular = new HashMap<>(irregularSerials);
+        Map<Integer, int[]> nextOrdinal = new HashMap<>(); // Per ticket category ID
+        int loaded = 0; // Encoded serials buffered in keys and values
+        int loadedIrregular = 0;
+
+        EntityManager em = emf.createEntityManager();
+        try {
+            int lastTicketId = 0;
+            List<Object[]> page;
+            do {
+                page = em.createQuery(
+                    "SELECT t.ticketId, t.serialNumber, tc.ticketCategoryId FROM Ticket t " +
+                    "JOIN t.ticketCategory tc WHERE t.event.eventId = :eventId AND t.ticketId > :lastTicketId " +
+                    "ORDER BY t.ticketId",
+                    Object[].class)
+                    .setParameter("eventId", eventId)
+                    .setParameter("lastTicketId", lastTicketId)
+                    .setMaxResults(LOAD_PAGE_SIZE)
+                    .getResultList();
+
+                for (Object[] row : page) {
+                    int ticketId = (Integer) row[0];
+                    String serial = (String) row[1];
+                    int ordinal = nextOrdinal.computeIfAbsent((Integer) row[2], id -> new int[1])[0]++;
+                    long value = pack(ticketId, ordinal);
+                    long key = encode(serial);
+                    if (key == NOT_ENCODABLE) {
+                        irregular.put(serial, value);
+                        loadedIrregular++;
+                    } else {
+                        if (loaded == keys.length) {
+                            keys = Arrays.copyOf(keys, loaded * 2);
+                            values = Arrays.copyOf(values, loaded * 2);
+                        }
+                        keys[loaded] = key;
+                        values[loaded] = value;
+                        loaded++;
+                    }
+                    lastTicketId = ticketId;
+                }
+                em.clear();
+            } while (page.size() == LOAD_PAGE_SIZE);
+        } finally {
+            em.close();
+        }
+
+        // Rebuild the table with the entries already loaded plus the new ones, then publish it
+        Table current = table;
+        Table rebuilt = new Table(current.size + loaded);
+        current.copyTo(rebuilt);
+        for (int i = 0; i < loaded; i++) {
+            rebuilt.put(keys[i], values[i]);
+        }
+        table = rebuilt;
+        irregularSerials = irregular;
+
+        System.out.println("Serial number index loaded for event " + eventId + ": " + loaded +
+            " encoded serials, " + loadedIrregular + " irregular serials");
+        return loaded + loadedIrregular;
+    }
+
+    /**
+     * @return the ticket ID of a serial, or -1 if the serial is not in the index
+     */
+    public int getTicketId(String serial) {
+        long value = lookup(serial);
+        return value < 0 ? -1 : (int) (value >>> 32);
+    }
+
+    /**
+     * @return the seat ordinal of a serial within its category, or -1 if the serial is not in the index
+     */
+    public int getSeatOrdinal(String serial) {
+        long value = lookup(serial);
+        return value < 0 ? -1 : (int) value;
+    }
+
+    /**
+     * Resolves the ticket IDs of all serials, e.g. to claim them by primary key.
+     * @return the ticket IDs in request order, or null if any serial is not in the index
+     */
+    public int[] getTicketIds(List<String> serials) {
+        int[] ticketIds = new int[serials.size()];
+        for (int i = 0; i < ticketIds.length; i++) {
+            ticketIds[i] = getTicketId(serials.get(i));
+            if (ticketIds[i] < 0) {
+                return null;
+            }
+        }
+        return ticketIds;
+    }
+
+    /**
+     * @return packed ticket ID and seat ordinal, or -1 if the serial is not in the index
+     */
+    private long lookup(String serial) {
+        long key = encode(serial);
+        long value;
+        if (key != NOT_ENCODABLE) {
+            value = table.get(key);
+        } else {
+            Long irregular = irregularSerials.get(serial);
+            value = irregular != null ? irregular : -1L;
+        }
+        (value < 0 ? misses : hits).incrementAndGet();
+        return value;
+    }
+
+    private static long pack(int ticketId, int ordinal) {
+        return ((long) ticketId << 32) | (ordinal & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return number of serials in the index
+     */
+    public int size() {
+        return table.size + irregularSerials.size();
+    }
+
+    /**
+     * @return bytes held by the table of encoded serials
+     */
+    public long getTableBytes() {
+        return table.slots.length * (long) Long.BYTES;
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d serials (%d irregular), %.1f MB table, %d hits, %d misses",
+            size(), irregularSerials.size(), getTableBytes() / (1024.0 * 1024.0), getHits(), getMisses());
+    }
+
+    /**
+     * Builds the index table and a HashMap<String, Integer> from the same generated serials
+     * and prints the heap each of them takes, scaled to one million tickets.
+     * Heap use is measured as the used-memory difference around building each structure,
+     * so run it with no other load in the JVM.
+     * @param tickets number of synthetic serials to index
+     */
+    public static void printMemoryReport(int tickets) {
+        // Step 1: Generated serials: 10,000 seats per event/category prefix
+        List<String> serials = new ArrayList<>(tickets);
+        for (int i = 0; i < tickets; i++) {
+            int prefix = i / 10_000;
+            serials.add(String.format("%c%c%c%c%04d", 'A' + prefix / 676 % 26, 'A' + prefix / 26 % 26,
+                'A' + prefix % 26, 'A', i % 10_000));
+        }
+
+        // Step 2: Measure the primitive table
+        long before = usedHeap();
+        Table index = new Table(tickets);
+        for (int i = 0; i < tickets; i++) {
+            index.put(encode(serials.get(i)), pack(i + 1, i));
+        }
+        long indexBytes = usedHeap() - before;
+
+        // Step 3: Measure the map, including the serial strings it keeps reachable.
+        // Strings are copied so the ones of the generated list are not counted as shared
+        before = usedHeap();
+        Map<String, Integer> map = new HashMap<>();
+        for (int i = 0; i < tickets; i++) {
+            map.put(new String(serials.get(i).toCharArray()), i + 1);
+        }
+        long mapBytes = usedHeap() - before;
+
+        // Step 4: Check both answer the same and print the report
+        for (int i = 0; i < tickets; i += Math.max(1, tickets / 1000)) {
+            String serial = serials.get(i);
+            if ((int) (index.get(encode(serial)) >>> 32) != map.get(serial)) {
+                throw new IllegalStateException("Index and map disagree on " + serial);
+            }
+        }
+        double perMillion = 1_000_000.0 / tickets / (1024.0 * 1024.0);
+        System.out.println("\n=== Serial Number Index Memory (" + tickets + " tickets) ===");
+        System.out.printf("%-32s %12s %14s %12s%n", "Structure", "Bytes", "MB per 1M", "Bytes/ticket");
+        System.out.printf("%-32s %12d %14.1f %12.1f%n", "Primitive index (long table)", indexBytes,
+            indexBytes * perMillion, indexBytes / (double) tickets);
+        System.out.printf("%-32s %12d %14.1f %12.1f%n", "HashMap<String, Integer>", mapBytes,
+            mapBytes * perMillion, mapBytes / (double) tickets);
+        System.out.printf("%-32s %12d %14.1f%n", "Index table arrays", index.slots.length * (long) Long.BYTES,
+            index.slots.length * (double) Long.BYTES * perMillion);
+        System.out.printf("Index uses %.1fx less memory%n", mapBytes / (double) Math.max(1, indexBytes));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Open-addressing hash table from encoded serial to packed ticket ID and seat ordinal.
+     * Key and value share adjacent slots, so a probe reads one cache line.
+     */
+    private static final class Table {
+        private final long[] slots; // key at 2 * i, value at 2 * i + 1; key 0 marks a free bucket
+        private final int buckets;
+        private int size;
+
+        Table(int expectedSize) {
+            this.buckets = Math.max(2, (int) Math.ceil(expectedSize / LOAD_FACTOR));
+            this.slots = new long[buckets * 2];
+        }
+
+        /**
+         * Maps a key to a bucket with a multiply-shift over the bucket count,
+         * so the table does not have to be rounded up to a power of two.
+         */
+        private int bucketOf(long key) {
+            long hash = key * 0x9E3779B97F4A7C15L; // Fibonacci hashing spreads nearby serials apart
+            return (int) (((hash >>> 32) * buckets) >>> 32);
+        }
+
+        void put(long key, long value) {
+            int bucket = bucketOf(key);
+            while (true) {
+                long current = slots[bucket * 2];
+                if (current == NOT_ENCODABLE) {
+                    slots[bucket * 2] = key;
+                    slots[bucket * 2 + 1] = value;
+                    size++;
+                    return;
+                }
+                if (current == key) {
+                    slots[bucket * 2 + 1] = value; // Reloaded ticket
+                    return;
+                }
+                if (++bucket == buckets) {
+                    bucket = 0;
+                }
+            }
+        }
+
+        /**
+         * @return the value of a key, or -1 if it is absent
+         */
+        long get(long key) {
+            int bucket = bucketOf(key);
+            while (true) {
+                long current = slots[bucket * 2];
+                if (current == key) {
+                    return slots[bucket * 2 + 1];
+                }
+                if (current == NOT_ENCODABLE) {
+                    return -1L;
+                }
+                if (++bucket == buckets) {
+                    bucket = 0;
+                }
+            }
+        }
+
+        void copyTo(Table target) {
+            for (int bucket = 0; bucket < buckets; bucket++) {
+                if (slots[bucket * 2] != NOT_ENCODABLE) {
+                    target.put(slots[bucket * 2], slots[bucket * 2 + 1]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * SoldOutRegistry remembers which ticket categories have nothing left to sell, so
+ * BookingService can reject best-available requests for them without opening a
+ * transaction, loading the user and running a locking select that finds no row.
+ *
+ * Marks come from two sources:
+ * - CategoryAvailabilityCounters, on commit, when a category's available count reaches
+ *   zero. Such a mark stays until the count rises again, e.g. when a hold is released
+ *   by the client or by the HoldExpirySweeper, or a reconciliation finds more tickets.
+ * - The booking path, when a SKIP LOCKED claim finds no free row at all. Rows locked by
+ *   other transactions are skipped, and those may still roll back, so such a mark only
+ *   lasts probeMarkTtlMs and is then checked against the database again.
+ */
+
+package com.poortoys.examples.simulation;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+public class SoldOutRegistry {
+    // Configuration defaults
+    private static final long DEFAULT_PROBE_MARK_TTL_MS = 1_000; // Lifetime of marks from empty claims
+    private static final long NO_EXPIRY = Long.MAX_VALUE;
+
+    private final long probeMarkTtlNanos;
+    private final ConcurrentHashMap<Integer, Mark> marks = new ConcurrentHashMap<>(); // By category id
+
+    // Metrics for the registry
+    private final AtomicInteger rejectedRequests = new AtomicInteger(0); // Requests answered without the database
+    private final AtomicInteger soldOutMarks = new AtomicInteger(0);
+    private final AtomicInteger reopenedCategories = new AtomicInteger(0);
+
+    public SoldOutRegistry() {
+        this(DEFAULT_PROBE_MARK_TTL_MS);
+    }
+
+    /**
+     * @param probeMarkTtlMs how long a mark from a claim that found no free row is trusted
+     */
+    public SoldOutRegistry(long probeMarkTtlMs) {
+        this.probeMarkTtlNanos = TimeUnit.MILLISECONDS.toNanos(probeMarkTtlMs);
+    }
+
+    /**
+     * Checks a booking request against the marks and counts it if it is turned away.
+     * @return true if the category is sold out and the request should be rejected
+     */
+    boolean rejects(int ticketCategoryId) {
+        if (isSoldOut(ticketCategoryId)) {
+            rejectedRequests.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the category is marked sold out and the mark has not expired
+     */
+    public boolean isSoldOut(int ticketCategoryId) {
+        Mark mark = marks.get(ticketCategoryId);
+        if (mark == null) {
+            return false;
+        }
+        if (mark.expiresAtNanos != NO_EXPIRY && System.nanoTime() - mark.expiresAtNanos >= 0) {
+            marks.remove(ticketCategoryId, mark); // Let the next request check the database
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Marks a category sold out for probeMarkTtlMs after a claim found no free row in it.
+     */
+    void markProbablySoldOut(int eventId, int ticketCategoryId) {
+        Mark mark = new Mark(eventId, System.nanoTime() + probeMarkTtlNanos);
+        // Never shorten a mark the counters set
+        Mark previous = marks.putIfAbsent(ticketCategoryId, mark);
+        if (previous == null) {
+            soldOutMarks.incrementAndGet();
+        } else if (previous.expiresAtNanos != NO_EXPIRY) {
+            marks.replace(ticketCategoryId, previous, mark);
+        }
+    }
+
+    /**
+     * Marks or reopens a category from its committed available count. The count is read
+     * again after marking, so a release that committed in between reopens the category.
+     * @param available reads the category's current committed available count
+     */
+    void updateAvailability(int eventId, int ticketCategoryId, LongSupplier available) {
+        if (available.getAsLong() > 0) {
+            reopen(ticketCategoryId);
+            return;
+        }
+        if (marks.put(ticketCategoryId, new Mark(eventId, NO_EXPIRY)) == null) {
+            soldOutMarks.incrementAndGet();
+        }
+        if (available.getAsLong() > 0) {
+            reopen(ticketCategoryId);
+        }
+    }
+
+    /**
+     * Removes the sold-out mark of a category, if any.
+     */
+    public void reopen(int ticketCategoryId) {
+        if (marks.remove(ticketCategoryId) != null) {
+            reopenedCategories.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return number of categories of the event currently marked sold out
+     */
+    public int getSoldOutCategories(int eventId) {
+        int count = 0;
+        for (Integer categoryId : marks.keySet()) {
+            Mark mark = marks.get(categoryId);
+            if (mark != null && mark.eventId == eventId && isSoldOut(categoryId)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getRejectedRequests() {
+        return rejectedRequests.get();
+    }
+
+    public int getSoldOutMarks() {
+        return soldOutMarks.get();
+    }
+
+    public int getReopenedCategories() {
+        return reopenedCategories.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d requests rejected without the database, %d sold-out marks, %d reopened",
+            getRejectedRequests(), getSoldOutMarks(), getReopenedCategories());
+    }
+
+    /**
+     * Sold-out mark of one category.
+     */
+    private static final class Mark {
+        private final int eventId;
+        private final long expiresAtNanos; // System.nanoTime() deadline, or NO_EXPIRY
+
+        Mark(int eventId, long expiresAtNanos) {
+            this.eventId = eventId;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+}
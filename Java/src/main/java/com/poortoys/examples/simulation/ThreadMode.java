@@ -0,0 +1,11 @@
+package com.poortoys.examples.simulation;
+
+/**
+ * How simulated users are mapped onto threads.
+ */
+public enum ThreadMode {
+    // Fixed pool of platform threads; users beyond the pool size wait in its queue
+    PLATFORM,
+    // One virtual thread per user (JDK 21+); users only wait for database connections and locks
+    VIRTUAL
+}
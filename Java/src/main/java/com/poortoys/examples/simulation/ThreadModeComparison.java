@@ -0,0 +1,218 @@
+/**
+ * ThreadModeComparison compares platform threads against virtual threads for increasing
+ * numbers of concurrent simulated users. Every user makes one single-ticket booking
+ * attempt; users are spread over the event's available tickets, so once tickets run out
+ * the remaining attempts fail on conflicts, which still exercises the database path.
+ * Conflicts are counted apart from other errors. The bookings of each run are deleted
+ * and their tickets made available again, so every run starts from the same tickets.
+ *
+ * Platform mode uses the same fixed pool as BookingSimulation (cores x 2); virtual mode
+ * starts one virtual thread per user and therefore needs a JDK 21 or later runtime.
+ * Latency is measured from submission, so time spent queueing for a thread is included.
+ *
+ * Usage: ThreadModeComparison [eventId]
+ */
+
+package com.poortoys.examples.simulation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+import com.poortoys.examples.dao.UserDAO;
+import com.poortoys.examples.entities.TicketStatus;
+import com.poortoys.examples.entities.User;
+
+public class ThreadModeComparison {
+    // Configuration constants
+    private static final int[] USER_COUNTS = {1_000, 5_000, 10_000, 50_000}; // Concurrent users to compare
+    private static final int PLATFORM_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2; // As in BookingSimulation
+    private static final int DEFAULT_EVENT_ID = 1; // Event whose tickets are booked
+    private static final int RUN_TIMEOUT_MINUTES = 10; // Timeout for a single run
+    private static final int RELEASE_CHUNK_SIZE = 1_000; // Bookings deleted per statement after a run
+
+    private final EntityManagerFactory emf;
+    private final int eventId;
+
+    public ThreadModeComparison(EntityManagerFactory emf, int eventId) {
+        this.emf = emf;
+        this.eventId = eventId;
+    }
+
+    public static void main(String[] args) {
+        int eventId = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_EVENT_ID;
+
+        EntityManagerFactory emf = Persistence.createEntityManagerFactory("ticketingsystem");
+        try {
+            new ThreadModeComparison(emf, eventId).run();
+        } finally {
+            emf.close();
+        }
+    }
+
+    /**
+     * Runs both thread modes for every user count and prints a comparison table.
+     */
+    public void run() {
+        if (!VirtualThreads.isSupported()) {
+            System.err.println("Virtual threads require JDK 21 or later; only platform threads will be measured");
+        }
+
+        BookingService bookingService = new BookingService(emf);
+        bookingService.setClaimStrategy(TicketClaimStrategy.SET_BASED_UPDATE);
+        List<User> users;
+        EntityManager em = emf.createEntityManager();
+        try {
+            users = new UserDAO(em).findAll();
+        } finally {
+            em.close();
+        }
+        if (users.isEmpty()) {
+            throw new IllegalStateException("No users found to book with");
+        }
+
+        System.out.println("\n=== Booking Attempts: platform vs virtual threads ===");
+        System.out.printf("Event ID: %d, platform pool size: %d%n", eventId, PLATFORM_POOL_SIZE);
+        System.out.printf("%-8s | %-8s | %-12s | %-10s | %-10s | %-8s | %-14s | %-14s%n",
+            "Users", "Mode", "Attempts/s", "Successes", "Conflicts", "Errors", "Avg latency ms", "Max latency ms");
+
+        for (int userCount : USER_COUNTS) {
+            for (ThreadMode mode : ThreadMode.values()) {
+                if (mode == ThreadMode.VIRTUAL && !VirtualThreads.isSupported()) {
+                    continue;
+                }
+                measure(bookingService, users, userCount, mode);
+            }
+        }
+    }
+
+    /**
+     * Starts userCount booking attempts at once and prints one result row.
+     */
+    private void measure(BookingService bookingService, List<User> users, int userCount, ThreadMode mode) {
+        // One serial per user at most; users beyond the ticket count reuse serials
+        List<String> available = bookingService.sampleAvailableTicketSerials(eventId, userCount, new Random());
+        if (available.isEmpty()) {
+            System.err.println("No tickets left for event " + eventId);
+            return;
+        }
+
+        ExecutorService executor = mode == ThreadMode.VIRTUAL
+            ? VirtualThreads.newVirtualThreadPerTaskExecutor()
+            : Executors.newFixedThreadPool(PLATFORM_POOL_SIZE);
+        CountDownLatch latch = new CountDownLatch(userCount);
+        AtomicInteger successes = new AtomicInteger(0);
+        AtomicInteger conflicts = new AtomicInteger(0); // Ticket already taken by another user
+        AtomicInteger errors = new AtomicInteger(0); // Any other failure
+        Queue<Integer> bookingIds = new ConcurrentLinkedQueue<>(); // Deleted again once the run ends
+        AtomicLong totalLatency = new AtomicLong(0);
+        AtomicLong maxLatency = new AtomicLong(0);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < userCount; i++) {
+            String serial = available.get(i % available.size()); // Users beyond the ticket count contend
+            User user = users.get(i % users.size());
+            long submitted = System.nanoTime();
+            executor.submit(() -> {
+                try {
+                    bookingIds.add(bookingService.createBooking(user.getUserId(),
+                        Collections.singletonList(serial), user.getEmail()).getBookingId());
+                    successes.incrementAndGet();
+                } catch (RuntimeException e) {
+                    if (BookingService.TicketConflictException.isCauseOf(e)) {
+                        conflicts.incrementAndGet(); // Expected once tickets are contended
+                    } else {
+                        errors.incrementAndGet();
+                    }
+                } finally {
+                    long latency = System.nanoTime() - submitted;
+                    totalLatency.addAndGet(latency);
+                    maxLatency.accumulateAndGet(latency, Math::max);
+                    latch.countDown();
+                }
+            });
+        }
+
+        try {
+            if (!latch.await(RUN_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                System.err.println("Run with " + userCount + " " + mode + " users timed out");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        long finished = userCount - latch.getCount();
+        System.out.printf("%-8d | %-8s | %-12.1f | %-10d | %-10d | %-8d | %-14.1f | %-14.1f%n", userCount, mode,
+            finished / seconds, successes.get(), conflicts.get(), errors.get(),
+            finished > 0 ? totalLatency.get() / (double) finished / 1_000_000 : 0,
+            maxLatency.get() / 1_000_000.0);
+
+        awaitTermination(executor); // Bookings still running after a timeout must not escape the release
+        releaseBookings(new ArrayList<>(bookingIds));
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        try {
+            if (!executor.awaitTermination(RUN_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                System.err.println("Bookings still running; their tickets stay sold");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Deletes the given bookings and makes their tickets available again.
+     */
+    private void releaseBookings(List<Integer> bookingIds) {
+        EntityManager em = emf.createEntityManager();
+        EntityTransaction tx = em.getTransaction();
+        try {
+            tx.begin();
+            for (int from = 0; from < bookingIds.size(); from += RELEASE_CHUNK_SIZE) {
+                List<Integer> chunk = bookingIds.subList(from, Math.min(from + RELEASE_CHUNK_SIZE, bookingIds.size()));
+                List<Integer> ticketIds = em.createQuery(
+                    "SELECT bt.ticket.ticketId FROM BookingTicket bt WHERE bt.booking.bookingId IN :ids", Integer.class)
+                    .setParameter("ids", chunk)
+                    .getResultList();
+                em.createQuery("DELETE FROM BookingTicket bt WHERE bt.booking.bookingId IN :ids")
+                    .setParameter("ids", chunk)
+                    .executeUpdate();
+                em.createQuery("DELETE FROM Booking b WHERE b.bookingId IN :ids")
+                    .setParameter("ids", chunk)
+                    .executeUpdate();
+                if (!ticketIds.isEmpty()) {
+                    em.createQuery(
+                        "UPDATE Ticket t SET t.status = :available, t.purchaseDate = NULL, t.version = t.version + 1 " +
+                        "WHERE t.ticketId IN :ids")
+                        .setParameter("available", TicketStatus.AVAILABLE)
+                        .setParameter("ids", ticketIds)
+                        .executeUpdate();
+                }
+            }
+            tx.commit();
+        } catch (RuntimeException e) {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+}
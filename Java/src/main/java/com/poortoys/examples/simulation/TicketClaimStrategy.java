@@ -0,0 +1,15 @@
+package com.poortoys.examples.simulation;
+
+/**
+ * Strategies BookingService can use to claim the tickets of a booking.
+ */
+public enum TicketClaimStrategy {
+    // One SELECT ... FOR UPDATE per serial followed by a merge of every ticket
+    PESSIMISTIC_PER_SERIAL,
+    // One guarded UPDATE for the whole serial set followed by a single price query
+    SET_BASED_UPDATE,
+    // Unlocked read, version-checked update, retried with jittered backoff on conflict
+    OPTIMISTIC_VERSIONED,
+    // One CALL of the book_tickets stored procedure; no entities are loaded or tracked
+    NATIVE_PROCEDURE
+}
@@ -0,0 +1,75 @@
+package com.poortoys.examples.simulation;
+
+import java.sql.SQLException;
+
+/**
+ * Classifies booking failures by walking the cause chain down to the MySQL error.
+ * Deadlocks, lock wait timeouts and serialization failures say nothing about ticket
+ * availability: the same transaction is expected to succeed when run again.
+ * Everything else (sold out, unknown user, constraint violations) is permanent.
+ */
+public final class TransientFailureClassifier {
+    // MySQL error codes
+    private static final int ER_LOCK_DEADLOCK = 1213;
+    private static final int ER_LOCK_WAIT_TIMEOUT = 1205;
+    // SQLState class 40 (transaction rollback), 40001 = serialization failure
+    private static final String SQLSTATE_SERIALIZATION_FAILURE = "40001";
+
+    /**
+     * Kinds of booking failure, as far as retrying is concerned.
+     */
+    public enum FailureType {
+        DEADLOCK(true),
+        LOCK_WAIT_TIMEOUT(true),
+        SERIALIZATION_FAILURE(true),
+        PERMANENT(false);
+
+        private final boolean transientFailure;
+
+        FailureType(boolean transientFailure) {
+            this.transientFailure = transientFailure;
+        }
+
+        /**
+         * @return true if running the same transaction again may succeed
+         */
+        public boolean isTransient() {
+            return transientFailure;
+        }
+    }
+
+    private TransientFailureClassifier() {
+    }
+
+    /**
+     * @return the failure type of the first SQLException in the cause chain, or
+     *         PERMANENT if the chain holds no transient database error
+     */
+    public static FailureType classify(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (!(cause instanceof SQLException)) {
+                continue;
+            }
+            // Walk chained SQLExceptions too; batch failures wrap the driver error there
+            for (SQLException sql = (SQLException) cause; sql != null; sql = sql.getNextException()) {
+                if (sql.getErrorCode() == ER_LOCK_DEADLOCK) {
+                    return FailureType.DEADLOCK;
+                }
+                if (sql.getErrorCode() == ER_LOCK_WAIT_TIMEOUT) {
+                    return FailureType.LOCK_WAIT_TIMEOUT;
+                }
+                if (SQLSTATE_SERIALIZATION_FAILURE.equals(sql.getSQLState())) {
+                    return FailureType.SERIALIZATION_FAILURE;
+                }
+            }
+        }
+        return FailureType.PERMANENT;
+    }
+
+    /**
+     * @return true if the failure is worth retrying
+     */
+    public static boolean isTransient(Throwable failure) {
+        return classify(failure).isTransient();
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * UnitOfWork runs one transaction's worth of work on an EntityManager and makes sure
+ * the entities it touched do not outlive it. With an EntityManagerFactory every unit
+ * gets its own short-lived EntityManager; with a shared EntityManager units are
+ * serialized and the persistence context is cleared after each one, so a long-running
+ * service does not keep every Booking, BookingTicket and Ticket it ever loaded managed,
+ * and flushes only dirty-check the current unit's entities.
+ *
+ * The number of entities managed at the end of each unit is recorded, so a steadily
+ * growing context shows up in the metrics instead of as heap growth.
+ *
+ * Per-unit EntityManagers run at most (pool size - ID_TABLE_RESERVE) units at once. The
+ * pooled-lo id generators read their sequence tables on a second pooled connection while
+ * holding the generator's lock; if every connection were held by a unit waiting for that
+ * lock, the read could never get one and all bookings would hang.
+ */
+
+package com.poortoys.examples.simulation;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import org.hibernate.engine.spi.SessionImplementor;
+
+public class UnitOfWork {
+    // Connections kept free of units: one for the sequence table read, one each for the
+    // write-behind writer and the booking batcher, which persist outside units
+    private static final int ID_TABLE_RESERVE = 3;
+
+    private final EntityManagerFactory emf; // Source of per-unit EntityManagers, or null in shared mode
+    private final EntityManager sharedEm; // EntityManager reused by every unit in shared mode
+    // Serializes units on the shared EntityManager, which is not thread-safe. A ReentrantLock rather than
+    // synchronized, so a virtual thread blocked in JDBC while holding it does not pin its carrier.
+    private final ReentrantLock sharedLock = new ReentrantLock();
+    private final Semaphore connectionPermits; // Bounds concurrent per-unit EntityManagers, or null in shared mode
+
+    // Persistence context metrics
+    private final AtomicInteger completedUnits = new AtomicInteger(0); // Units committed or rolled back
+    private final AtomicInteger lastContextSize = new AtomicInteger(0); // Entities managed at the end of the last unit
+    private final AtomicInteger peakContextSize = new AtomicInteger(0); // Largest context seen at the end of a unit
+    private final AtomicLong totalContextSize = new AtomicLong(0); // Sum over all units, for the average
+
+    /**
+     * Runs every unit on its own EntityManager, closed when the unit ends.
+     * @param emf factory for the per-unit EntityManagers
+     */
+    public UnitOfWork(EntityManagerFactory emf) {
+        this.emf = emf;
+        this.sharedEm = null;
+        this.connectionPermits = new Semaphore(connectionPermits(emf));
+    }
+
+    /**
+     * @return number of units that may run at once on per-unit EntityManagers of the factory
+     */
+    static int connectionPermits(EntityManagerFactory emf) {
+        return Math.max(1, AsyncBookingService.connectionPoolSize(emf) - ID_TABLE_RESERVE);
+    }
+
+    /**
+     * Runs units one at a time on a shared EntityManager, clearing it after each unit.
+     * Entities returned by a unit are detached once it ends.
+     * @param em EntityManager shared by all units
+     */
+    public UnitOfWork(EntityManager em) {
+        this.emf = null;
+        this.sharedEm = em;
+        this.connectionPermits = null;
+    }
+
+    /**
+     * Runs work in its own transaction, committing on success and rolling back on failure.
+     * @param work work to run; receives the EntityManager to use
+     * @return the work's result
+     */
+    public <T> T execute(Function<EntityManager, T> work) {
+        if (emf != null) {
+            try {
+                connectionPermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for a database connection", e);
+            }
+            EntityManager entityManager = null;
+            try {
+                entityManager = emf.createEntityManager();
+                return runInTransaction(entityManager, work);
+            } finally {
+                try {
+                    if (entityManager != null) {
+                        recordContextSize(entityManager);
+                        entityManager.close();
+                    }
+                } finally {
+                    connectionPermits.release(); // Also when the factory is already closed, or each retry would lose one
+                }
+            }
+        }
+        sharedLock.lock();
+        try {
+            return runInTransaction(sharedEm, work);
+        } finally {
+            recordContextSize(sharedEm);
+            sharedEm.clear(); // Detach everything the unit loaded or persisted
+            sharedLock.unlock();
+        }
+    }
+
+    private static <T> T runInTransaction(EntityManager em, Function<EntityManager, T> work) {
+        EntityTransaction tx = em.getTransaction();
+        try {
+            tx.begin();
+            T result = work.apply(em);
+            tx.commit();
+            return result;
+        } catch (RuntimeException e) {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            throw e;
+        }
+    }
+
+    private void recordContextSize(EntityManager em) {
+        int size = persistenceContextSize(em);
+        completedUnits.incrementAndGet();
+        lastContextSize.set(size);
+        peakContextSize.accumulateAndGet(size, Math::max);
+        totalContextSize.addAndGet(size);
+    }
+
+    /**
+     * @return number of entities currently managed by the EntityManager
+     */
+    public static int persistenceContextSize(EntityManager em) {
+        return em.unwrap(SessionImplementor.class).getPersistenceContext().getNumberOfManagedEntities();
+    }
+
+    public boolean isShared() {
+        return sharedEm != null;
+    }
+
+    public int getCompletedUnits() {
+        return completedUnits.get();
+    }
+
+    public int getLastContextSize() {
+        return lastContextSize.get();
+    }
+
+    public int getPeakContextSize() {
+        return peakContextSize.get();
+    }
+
+    public double getAverageContextSize() {
+        int units = completedUnits.get();
+        return units > 0 ? totalContextSize.get() / (double) units : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("units=%d, last=%d, peak=%d, avg=%.1f managed entities",
+            getCompletedUnits(), getLastContextSize(), getPeakContextSize(), getAverageContextSize());
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * VirtualThreads gives access to JDK 21 virtual threads while the code base still
+ * compiles for Java 8. The factory method is looked up reflectively, so the same build
+ * runs on older JDKs, where isSupported() returns false.
+ *
+ * Run with -Djdk.tracePinnedThreads=short to report virtual threads that block while
+ * pinned to their carrier (inside synchronized blocks, e.g. in the JDBC driver or pool).
+ */
+
+package com.poortoys.examples.simulation;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+
+public final class VirtualThreads {
+    // Executors.newVirtualThreadPerTaskExecutor(), or null before JDK 21
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findFactory();
+
+    private VirtualThreads() {
+    }
+
+    private static Method findFactory() {
+        try {
+            return java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null; // Running on a JDK without virtual threads
+        }
+    }
+
+    /**
+     * @return true if the running JDK supports virtual threads
+     */
+    public static boolean isSupported() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for every task.
+     * @throws UnsupportedOperationException if the running JDK has no virtual threads
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require JDK 21 or later, running on " +
+                System.getProperty("java.version"));
+        }
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to create virtual thread executor", e);
+        }
+    }
+}
@@ -0,0 +1,452 @@
+/**
+ * WorkloadSpec describes the load BookingSimulation puts on the system: how many users
+ * arrive, how they spread over the target events, how many tickets each order asks for,
+ * how fast they ramp up, how long they think before booking and how long the run may take.
+ *
+ * A spec is read from a properties file and/or command-line overrides, so production
+ * on-sale shapes can be replayed without recompiling:
+ *
+ *   --workload=onsale.properties --users=20000 --rampUpSeconds=30
+ *
+ * Keys (file and command line use the same names):
+ *   users            number of simulated users (orders)
+ *   events           target events as eventId[:weight],... e.g. 1:3,2:1
+ *   ticketsPerOrder  tickets per order as count:weight,... e.g. 1:50,2:35,4:15
+ *   concurrency      users served at the same time (platform thread pool size)
+ *   rampUpSeconds    users start evenly spread over this time; 0 starts them all at once
+ *   durationSeconds  time limit of the run; users not started by then are skipped
+ *   thinkTimeMs      pause before booking, fixed (500) or uniform in a range (200-2000)
+ *   seed             random seed for the sampled choices, 0 for a different run each time
+ *   arrivalRate      open loop: issue the users' orders at this many per second, whether or not
+ *                    earlier ones have completed; 0 (default) runs closed loop, paced by ramp-up
+ *   arrivalProcess   CONSTANT (evenly spaced) or POISSON (exponential gaps) open-loop arrivals
+ *
+ * toString() renders the spec in the same format, so the results show exactly what ran.
+ */
+
+package com.poortoys.examples.simulation;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class WorkloadSpec {
+    // Command-line option naming a properties file to start from
+    public static final String WORKLOAD_FILE_OPTION = "workload";
+    // Keys in the order they are echoed
+    private static final List<String> KEYS = Arrays.asList("users", "events", "ticketsPerOrder", "concurrency",
+        "rampUpSeconds", "durationSeconds", "thinkTimeMs", "seed", "arrivalRate", "arrivalProcess");
+
+    /**
+     * How open-loop arrivals are spaced.
+     */
+    public enum ArrivalProcess {
+        CONSTANT, // Every 1 / arrivalRate seconds
+        POISSON   // Exponentially distributed gaps with mean 1 / arrivalRate, as independent users arrive
+    }
+
+    // Defaults: the workload the simulation used before it was configurable
+    private int users = 5000;
+    private WeightedChoice events = WeightedChoice.parse("events", "1");
+    private WeightedChoice ticketsPerOrder = WeightedChoice.parse("ticketsPerOrder", "1");
+    private int concurrency = Runtime.getRuntime().availableProcessors() * 2;
+    private int rampUpSeconds = 0;
+    private int durationSeconds = 180;
+    private long thinkTimeMinMs = 0;
+    private long thinkTimeMaxMs = 0;
+    private long seed = 0;
+    private double arrivalRate = 0; // Bookings per second; 0 runs closed loop
+    private ArrivalProcess arrivalProcess = ArrivalProcess.CONSTANT;
+
+    /**
+     * Builds a spec from command-line arguments of the form --key=value. A --workload=file
+     * argument loads that properties file first; the other arguments override its values.
+     * @param args command-line arguments; arguments not starting with "--" are ignored
+     * @return the spec, with defaults for every key not given
+     */
+    public static WorkloadSpec fromArgs(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                continue;
+            }
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Expected --key=value, got: " + arg);
+            }
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+
+        WorkloadSpec spec = new WorkloadSpec();
+        String file = options.remove(WORKLOAD_FILE_OPTION);
+        if (file != null) {
+            spec.apply(load(file));
+        }
+        options.forEach(spec::set);
+        return spec;
+    }
+
+    /**
+     * @param properties workload keys; keys not set keep their defaults
+     * @return the spec described by the properties
+     */
+    public static WorkloadSpec fromProperties(Properties properties) {
+        WorkloadSpec spec = new WorkloadSpec();
+        spec.apply(properties);
+        return spec;
+    }
+
+    private static Properties load(String file) {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read workload file " + file + ": " + e.getMessage(), e);
+        }
+        return properties;
+    }
+
+    private void apply(Properties properties) {
+        for (String key : properties.stringPropertyNames()) {
+            set(key, properties.getProperty(key));
+        }
+    }
+
+    /**
+     * Sets one key from its text form.
+     * @throws IllegalArgumentException if the key is unknown or the value is invalid
+     */
+    public void set(String key, String value) {
+        String text = value.trim();
+        try {
+            switch (key) {
+                case "users":
+                    setUsers(Integer.parseInt(text));
+                    break;
+                case "events":
+                    events = WeightedChoice.parse(key, text);
+                    break;
+                case "ticketsPerOrder":
+                    ticketsPerOrder = WeightedChoice.parse(key, text);
+                    break;
+                case "concurrency":
+                    setConcurrency(Integer.parseInt(text));
+                    break;
+                case "rampUpSeconds":
+                    setRampUpSeconds(Integer.parseInt(text));
+                    break;
+                case "durationSeconds":
+                    setDurationSeconds(Integer.parseInt(text));
+                    break;
+                case "thinkTimeMs":
+                    int dash = text.indexOf('-');
+                    if (dash < 0) {
+                        setThinkTimeMs(Long.parseLong(text), Long.parseLong(text));
+                    } else {
+                        setThinkTimeMs(Long.parseLong(text.substring(0, dash).trim()),
+                            Long.parseLong(text.substring(dash + 1).trim()));
+                    }
+                    break;
+                case "seed":
+                    seed = Long.parseLong(text);
+                    break;
+                case "arrivalRate":
+                    setArrivalRate(Double.parseDouble(text));
+                    break;
+                case "arrivalProcess":
+                    try {
+                        arrivalProcess = ArrivalProcess.valueOf(text.toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Invalid value for workload key " + key + ": " + value +
+                            " (known: " + Arrays.toString(ArrivalProcess.values()) + ")", e);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown workload key: " + key + " (known: " + KEYS + ")");
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for workload key " + key + ": " + value, e);
+        }
+    }
+
+    /**
+     * @return a copy of this spec that targets only the given event
+     */
+    public WorkloadSpec forEvent(int eventId) {
+        WorkloadSpec copy = fromProperties(toProperties());
+        copy.events = WeightedChoice.parse("events", String.valueOf(eventId));
+        return copy;
+    }
+
+    /**
+     * @return the spec as properties, in the format fromProperties reads
+     */
+    public Properties toProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("users", String.valueOf(users));
+        properties.setProperty("events", events.toString());
+        properties.setProperty("ticketsPerOrder", ticketsPerOrder.toString());
+        properties.setProperty("concurrency", String.valueOf(concurrency));
+        properties.setProperty("rampUpSeconds", String.valueOf(rampUpSeconds));
+        properties.setProperty("durationSeconds", String.valueOf(durationSeconds));
+        properties.setProperty("thinkTimeMs", thinkTimeMinMs == thinkTimeMaxMs
+            ? String.valueOf(thinkTimeMinMs) : thinkTimeMinMs + "-" + thinkTimeMaxMs);
+        properties.setProperty("seed", String.valueOf(seed));
+        properties.setProperty("arrivalRate", arrivalRate == Math.rint(arrivalRate)
+            ? String.valueOf((long) arrivalRate) : String.valueOf(arrivalRate));
+        properties.setProperty("arrivalProcess", arrivalProcess.name());
+        return properties;
+    }
+
+    /**
+     * @return a new random generator, seeded if the spec has a seed
+     */
+    Random newRandom() {
+        return seed != 0 ? new Random(seed) : new Random();
+    }
+
+    /**
+     * Pool threads sharing one generator contend on it and make a seeded run pick
+     * different users and tickets each time, so every user gets its own.
+     * @param userIndex index of the user in the run
+     * @return a new random generator for one user, seeded from the seed and the index if the spec has a seed
+     */
+    Random newUserRandom(int userIndex) {
+        if (seed == 0) {
+            return new Random();
+        }
+        // SplitMix64 finalizer, so neighbouring users and seeds do not get correlated sequences
+        long mixed = seed + (userIndex + 1) * 0x9E3779B97F4A7C15L;
+        mixed = (mixed ^ (mixed >>> 30)) * 0xBF58476D1CE4E5B9L;
+        mixed = (mixed ^ (mixed >>> 27)) * 0x94D049BB133111EBL;
+        return new Random(mixed ^ (mixed >>> 31));
+    }
+
+    /**
+     * @return the event the next user books for, drawn by the events weights
+     */
+    int sampleEventId(Random random) {
+        return events.sample(random);
+    }
+
+    /**
+     * @return the number of tickets the next order asks for, drawn by the ticketsPerOrder weights
+     */
+    int sampleTicketsPerOrder(Random random) {
+        return ticketsPerOrder.sample(random);
+    }
+
+    /**
+     * @return the next user's think time in milliseconds
+     */
+    long sampleThinkTimeMs(Random random) {
+        if (thinkTimeMaxMs == thinkTimeMinMs) {
+            return thinkTimeMinMs;
+        }
+        return thinkTimeMinMs + (long) (random.nextDouble() * (thinkTimeMaxMs - thinkTimeMinMs + 1));
+    }
+
+    /**
+     * @return nanoseconds from one open-loop arrival to the next
+     */
+    long nextInterarrivalNanos(Random random) {
+        double meanNanos = TimeUnit.SECONDS.toNanos(1) / arrivalRate;
+        if (arrivalProcess == ArrivalProcess.CONSTANT) {
+            return (long) meanNanos;
+        }
+        return (long) (-Math.log(1.0 - random.nextDouble()) * meanNanos); // Inverse of the exponential CDF
+    }
+
+    // Getters and setters
+
+    public int getUsers() {
+        return users;
+    }
+
+    public void setUsers(int users) {
+        if (users <= 0) {
+            throw new IllegalArgumentException("users must be positive: " + users);
+        }
+        this.users = users;
+    }
+
+    /**
+     * @return the target event ids, in the order given
+     */
+    public List<Integer> getEventIds() {
+        return events.getValues();
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public void setConcurrency(int concurrency) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+        }
+        this.concurrency = concurrency;
+    }
+
+    public int getRampUpSeconds() {
+        return rampUpSeconds;
+    }
+
+    public void setRampUpSeconds(int rampUpSeconds) {
+        if (rampUpSeconds < 0) {
+            throw new IllegalArgumentException("rampUpSeconds must not be negative: " + rampUpSeconds);
+        }
+        this.rampUpSeconds = rampUpSeconds;
+    }
+
+    public int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public void setDurationSeconds(int durationSeconds) {
+        if (durationSeconds <= 0) {
+            throw new IllegalArgumentException("durationSeconds must be positive: " + durationSeconds);
+        }
+        this.durationSeconds = durationSeconds;
+    }
+
+    public void setThinkTimeMs(long minMs, long maxMs) {
+        if (minMs < 0 || maxMs < minMs) {
+            throw new IllegalArgumentException("thinkTimeMs must be a non-negative range: " + minMs + "-" + maxMs);
+        }
+        this.thinkTimeMinMs = minMs;
+        this.thinkTimeMaxMs = maxMs;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @return true if bookings are issued at arrivalRate regardless of completions
+     */
+    public boolean isOpenLoop() {
+        return arrivalRate > 0;
+    }
+
+    public double getArrivalRate() {
+        return arrivalRate;
+    }
+
+    public void setArrivalRate(double arrivalRate) {
+        if (arrivalRate < 0 || Double.isNaN(arrivalRate) || Double.isInfinite(arrivalRate)) {
+            throw new IllegalArgumentException("arrivalRate must be a non-negative number: " + arrivalRate);
+        }
+        this.arrivalRate = arrivalRate;
+    }
+
+    public ArrivalProcess getArrivalProcess() {
+        return arrivalProcess;
+    }
+
+    public void setArrivalProcess(ArrivalProcess arrivalProcess) {
+        this.arrivalProcess = arrivalProcess;
+    }
+
+    /**
+     * @return one key=value line per key, in the order of the key list
+     */
+    @Override
+    public String toString() {
+        Properties properties = toProperties();
+        StringBuilder text = new StringBuilder();
+        for (String key : KEYS) {
+            text.append(key).append('=').append(properties.getProperty(key)).append(System.lineSeparator());
+        }
+        return text.toString();
+    }
+
+    /**
+     * Integer values with relative weights, e.g. "1:50,2:35,4:15". A value without a weight has weight 1.
+     */
+    private static final class WeightedChoice {
+        private final List<Integer> values;
+        private final double[] cumulativeWeights;
+        private final String text; // Normalized form, echoed back
+
+        private WeightedChoice(List<Integer> values, double[] cumulativeWeights, String text) {
+            this.values = Collections.unmodifiableList(values);
+            this.cumulativeWeights = cumulativeWeights;
+            this.text = text;
+        }
+
+        static WeightedChoice parse(String key, String text) {
+            List<Integer> values = new ArrayList<>();
+            List<Double> weights = new ArrayList<>();
+            for (String entry : text.split(",")) {
+                String[] parts = entry.trim().split(":");
+                if (parts.length > 2 || parts[0].trim().isEmpty()) {
+                    throw new IllegalArgumentException("Invalid " + key + " entry '" + entry + "', expected value[:weight]");
+                }
+                int value = Integer.parseInt(parts[0].trim());
+                double weight = parts.length == 2 ? Double.parseDouble(parts[1].trim()) : 1.0;
+                if (value <= 0 || weight <= 0 || values.contains(value)) {
+                    throw new IllegalArgumentException("Invalid " + key + " entry '" + entry +
+                        "': values must be positive and unique, weights positive");
+                }
+                values.add(value);
+                weights.add(weight);
+            }
+
+            double[] cumulative = new double[weights.size()];
+            double total = 0;
+            StringBuilder normalized = new StringBuilder();
+            for (int i = 0; i < weights.size(); i++) {
+                total += weights.get(i);
+                cumulative[i] = total;
+                if (i > 0) {
+                    normalized.append(',');
+                }
+                normalized.append(values.get(i));
+                if (weights.size() > 1) {
+                    normalized.append(':').append(formatWeight(weights.get(i)));
+                }
+            }
+            return new WeightedChoice(values, cumulative, normalized.toString());
+        }
+
+        private static String formatWeight(double weight) {
+            return weight == Math.rint(weight) ? String.valueOf((long) weight) : String.valueOf(weight);
+        }
+
+        int sample(Random random) {
+            if (values.size() == 1) {
+                return values.get(0);
+            }
+            double point = random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+            for (int i = 0; i < cumulativeWeights.length; i++) {
+                if (point < cumulativeWeights[i]) {
+                    return values.get(i);
+                }
+            }
+            return values.get(values.size() - 1);
+        }
+
+        List<Integer> getValues() {
+            return values;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/**
+ * WriteBehindBookingWriter persists bookings confirmed by the in-memory SeatInventory.
+ * Confirmed bookings are queued and a background thread writes them in batches: one
+ * transaction marks all tickets of the batch as sold and inserts the bookings and
+ * booking_ticket rows. If a batch fails, its bookings are retried one per transaction
+ * so a single bad booking cannot sink the others; bookings that still fail have their
+ * seats released in the inventory.
+ *
+ * Every queued booking has a future that completes with the written booking, or
+ * exceptionally if it could not be written; callers that need the booking id or must
+ * know it reached the database can wait for it. Bookings still queued when the JVM dies
+ * are lost, so close() must be called on shutdown to drain the queue.
+ */
+
+package com.poortoys.examples.simulation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.TemporalType;
+import com.poortoys.examples.entities.*;
+
+public class WriteBehindBookingWriter implements AutoCloseable {
+    // Configuration defaults
+    private static final int DEFAULT_BATCH_SIZE = 100; // Bookings written per transaction
+    private static final long DEFAULT_FLUSH_INTERVAL_MS = 20; // Maximum wait for a batch to fill
+
+    private final EntityManagerFactory emf;
+    private final SeatInventory inventory;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final BlockingQueue<PendingBooking> queue = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+    private final Object lifecycleLock = new Object(); // Makes enqueue's running check and add atomic with close()
+    private volatile boolean running = true;
+    private volatile CategoryAvailabilityCounters categoryCounters; // Counters moved to sold on write, or null
+
+    // Metrics for persistence progress
+    private final AtomicInteger persistedBookings = new AtomicInteger(0);
+    private final AtomicInteger failedBookings = new AtomicInteger(0);
+    private final AtomicInteger batches = new AtomicInteger(0);
+
+    public WriteBehindBookingWriter(EntityManagerFactory emf, SeatInventory inventory) {
+        this(emf, inventory, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL_MS);
+    }
+
+    /**
+     * @param emf factory used to open one EntityManager per batch
+     * @param inventory inventory whose seats are released when a booking cannot be written
+     * @param batchSize maximum bookings written per transaction
+     * @param flushIntervalMs maximum time to wait for a batch to fill
+     */
+    public WriteBehindBookingWriter(EntityManagerFactory emf, SeatInventory inventory,
+                                    int batchSize, long flushIntervalMs) {
+        this.emf = emf;
+        this.inventory = inventory;
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.writerThread = new Thread(this::drainLoop, "booking-write-behind");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Counts written tickets as sold in the per-category counters, in the same transaction.
+     * @param categoryCounters counters to update, or null to stop maintaining them
+     */
+    public void setCategoryCounters(CategoryAvailabilityCounters categoryCounters) {
+        this.categoryCounters = categoryCounters;
+    }
+
+    /**
+     * Queues a booking whose seats were already claimed in the inventory.
+     * @param idempotencyKey client request id recorded with the booking, or null
+     * @param confirmedAt time the booking was confirmed in memory, written as its booking time
+     * @return future completed with the written booking, or exceptionally if it could not be written
+     * @throws IllegalStateException if the writer is closed; the booking was not queued
+     */
+    CompletableFuture<Booking> enqueue(int userId, String email, List<ClaimedTicket> tickets, String idempotencyKey,
+                                       Date confirmedAt) {
+        PendingBooking pending = new PendingBooking(userId, email, tickets, idempotencyKey, confirmedAt);
+        synchronized (lifecycleLock) {
+            if (!running) {
+                throw new IllegalStateException("Write-behind writer is closed");
+            }
+            queue.add(pending); // Before close() can clear running, so the drain loop still sees it
+        }
+        return pending.result;
+    }
+
+    /**
+     * Background loop: waits for the first booking, then collects up to batchSize
+     * bookings or until flushIntervalMs has passed, and writes them.
+     */
+    private void drainLoop() {
+        List<PendingBooking> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingBooking first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingBooking next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Restore the interrupted status
+                abandonQueued(batch);
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Fails every booking the loop still holds or that is queued, once the writer thread
+     * has been interrupted and will not write them: their seats are released and their
+     * futures completed exceptionally. Later bookings are refused by enqueue.
+     * @param batch bookings already taken from the queue for the next batch
+     */
+    private void abandonQueued(List<PendingBooking> batch) {
+        List<PendingBooking> abandoned = new ArrayList<>(batch);
+        synchronized (lifecycleLock) {
+            running = false; // Nothing reaches the queue after it has been drained below
+            queue.drainTo(abandoned);
+        }
+        IllegalStateException failure = new IllegalStateException("Write-behind writer was interrupted");
+        for (PendingBooking pending : abandoned) {
+            failedBookings.incrementAndGet();
+            inventory.release(pending.tickets);
+            pending.result.completeExceptionally(failure);
+        }
+        if (!abandoned.isEmpty()) {
+            System.err.println("Write-behind writer interrupted: " + abandoned.size() + " bookings not written");
+        }
+    }
+
+    /**
+     * Writes a batch in one transaction, falling back to one transaction per booking on failure.
+     */
+    private void writeBatch(List<PendingBooking> batch) {
+        batches.incrementAndGet();
+        try {
+            List<Booking> written = persist(batch);
+            persistedBookings.addAndGet(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(written.get(i));
+            }
+        } catch (RuntimeException batchFailure) {
+            System.err.println("Write-behind batch of " + batch.size() + " failed, retrying individually: " +
+                batchFailure.getMessage());
+            for (PendingBooking pending : batch) {
+                try {
+                    Booking written = persist(Collections.singletonList(pending)).get(0);
+                    persistedBookings.incrementAndGet();
+                    pending.result.complete(written);
+                } catch (InventoryDriftException e) {
+                    // The database already sold these seats, so they must stay taken in memory
+                    failedBookings.incrementAndGet();
+                    System.err.println("Write-behind booking rejected for user " + pending.userId + ": " + e.getMessage());
+                    pending.result.completeExceptionally(e);
+                } catch (RuntimeException e) {
+                    failedBookings.incrementAndGet();
+                    inventory.release(pending.tickets); // The booking never reached the database
+                    System.err.println("Write-behind booking failed for user " + pending.userId + ": " + e.getMessage());
+                    pending.result.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Persists the given bookings in a single transaction.
+     * @return the written bookings, in the order of the given ones
+     */
+    private List<Booking> persist(List<PendingBooking> bookings) {
+        EntityManager em = emf.createEntityManager();
+        EntityTransaction tx = em.getTransaction();
+        try {
+            tx.begin();
+
+            List<Integer> ticketIds = new ArrayList<>();
+            for (PendingBooking pending : bookings) {
+                for (ClaimedTicket ticket : pending.tickets) {
+                    ticketIds.add(ticket.getTicketId());
+                }
+            }
+
+            // The inventory already decided ownership; the guard only detects drift from the table
+            int updated = em.createQuery(
+                "UPDATE Ticket t SET t.status = :sold, t.purchaseDate = :now, t.version = t.version + 1 " +
+                "WHERE t.ticketId IN :ids AND t.status = :available")
+                .setParameter("sold", TicketStatus.SOLD)
+                .setParameter("now", new Date(), TemporalType.TIMESTAMP)
+                .setParameter("ids", ticketIds)
+                .setParameter("available", TicketStatus.AVAILABLE)
+                .executeUpdate();
+            if (updated != ticketIds.size()) {
+                throw new InventoryDriftException("Seat inventory out of sync: " + updated + " of " +
+                    ticketIds.size() + " tickets were still available in the database");
+            }
+            CategoryAvailabilityCounters counters = categoryCounters;
+            if (counters != null) {
+                List<ClaimedTicket> written = new ArrayList<>(ticketIds.size());
+                for (PendingBooking pending : bookings) {
+                    written.addAll(pending.tickets);
+                }
+                counters.recordTransition(em, written, TicketStatus.AVAILABLE, TicketStatus.SOLD);
+            }
+
+            // Load the users with one query; the written bookings reference them, not proxies
+            Map<Integer, User> users = new HashMap<>();
+            for (PendingBooking pending : bookings) {
+                users.put(pending.userId, null);
+            }
+            for (User user : em.createQuery("SELECT u FROM User u WHERE u.userId IN :ids", User.class)
+                    .setParameter("ids", users.keySet())
+                    .getResultList()) {
+                users.put(user.getUserId(), user);
+            }
+
+            List<Booking> written = new ArrayList<>(bookings.size());
+            for (PendingBooking pending : bookings) {
+                User user = users.get(pending.userId);
+                if (user == null) {
+                    throw new RuntimeException("User not found: " + pending.userId);
+                }
+                Booking booking = BookingService.newConfirmedBooking(user, pending.tickets, pending.email,
+                    pending.confirmedAt);
+                em.persist(booking);
+
+                for (ClaimedTicket ticket : pending.tickets) {
+                    em.persist(new BookingTicket(booking, em.getReference(Ticket.class, ticket.getTicketId())));
+                }
+                if (pending.idempotencyKey != null) {
+                    // A key already taken by a concurrent retry fails the write, and the seats are released
+                    em.persist(new BookingIdempotencyKey(pending.userId, pending.idempotencyKey, booking,
+                        pending.confirmedAt));
+                }
+                written.add(booking);
+            }
+
+            em.flush();
+            tx.commit();
+            return written;
+        } catch (RuntimeException e) {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Stops accepting bookings and waits until every queued booking has been written.
+     */
+    @Override
+    public void close() {
+        synchronized (lifecycleLock) {
+            running = false; // The loop exits once the queue is empty; enqueue refuses from now on
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getPersistedBookings() {
+        return persistedBookings.get();
+    }
+
+    public int getFailedBookings() {
+        return failedBookings.get();
+    }
+
+    public int getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Raised when tickets the inventory considered free are no longer available in the table.
+     */
+    private static final class InventoryDriftException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        InventoryDriftException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A booking confirmed in memory that has not been written yet.
+     */
+    private static final class PendingBooking {
+        private final int userId;
+        private final String email;
+        private final List<ClaimedTicket> tickets;
+        private final String idempotencyKey; // Client request id, or null
+        private final Date confirmedAt;
+        private final CompletableFuture<Booking> result = new CompletableFuture<>(); // Completed once written or failed
+
+        PendingBooking(int userId, String email, List<ClaimedTicket> tickets, String idempotencyKey,
+                       Date confirmedAt) {
+            this.userId = userId;
+            this.email = email;
+            this.tickets = tickets;
+            this.idempotencyKey = idempotencyKey;
+            this.confirmedAt = confirmedAt;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.poortoys.examples.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.poortoys.examples.entities.ReplicationHeartbeat;
+import com.poortoys.examples.entities.User;
+
+/**
+ * Checks ReplicaRouter's routing against two H2 in-memory databases standing in for the
+ * primary and the replica. Nothing replicates between them: the tests write the replica's
+ * heartbeat row themselves to give it a lag, and the two databases hold different numbers
+ * of users so each count shows which one answered.
+ */
+public class ReplicaRouterTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger(0); // Keeps every test on fresh databases
+    private static final int PRIMARY_USERS = 3;
+    private static final int REPLICA_USERS = 1;
+
+    private EntityManagerFactory primary;
+    private EntityManagerFactory replica;
+    private EntityManager primaryEm;
+
+    @Before
+    public void createDatabases() {
+        primary = Persistence.createEntityManagerFactory("ticketingsystem", h2Properties("primary"));
+        replica = Persistence.createEntityManagerFactory(ReplicaRouter.REPLICA_PERSISTENCE_UNIT, h2Properties("replica"));
+        insertUsers(primary, PRIMARY_USERS);
+        insertUsers(replica, REPLICA_USERS);
+        primaryEm = primary.createEntityManager();
+    }
+
+    @After
+    public void closeDatabases() {
+        primaryEm.close();
+        if (replica.isOpen()) {
+            replica.close();
+        }
+        primary.close();
+    }
+
+    @Test
+    public void withoutReplicaEveryReadGoesToThePrimary() {
+        try (ReplicaRouter router = new ReplicaRouter(primary, null)) {
+            router.start();
+            UserDAO userDAO = new UserDAO(primaryEm, router);
+
+            assertEquals(PRIMARY_USERS, userDAO.count(UserDAO.USER_LIST_STALENESS).intValue());
+            assertEquals(Long.MAX_VALUE, router.getReplicaLagMs());
+            assertEquals(1, router.getPrimaryReads());
+            assertEquals(0, router.getReplicaReads());
+        }
+    }
+
+    @Test
+    public void boundedReadsGoToACurrentReplica() {
+        try (ReplicaRouter router = new ReplicaRouter(primary, replica)) {
+            replicateBeat(System.currentTimeMillis());
+            router.heartbeat();
+            UserDAO userDAO = new UserDAO(primaryEm, router);
+
+            assertEquals(REPLICA_USERS, userDAO.count(UserDAO.USER_LIST_STALENESS).intValue());
+            assertEquals(REPLICA_USERS, userDAO.findAll().size());
+            assertEquals(2, router.getReplicaReads());
+            assertEquals(0, router.getPrimaryReads());
+        }
+    }
+
+    @Test
+    public void primaryPolicyStaysOnThePrimary() {
+        try (ReplicaRouter router = new ReplicaRouter(primary, replica)) {
+            replicateBeat(System.currentTimeMillis());
+            router.heartbeat();
+            UserDAO userDAO = new UserDAO(primaryEm, router);
+
+            assertEquals(PRIMARY_USERS, userDAO.count(StalenessPolicy.PRIMARY).intValue());
+            assertEquals(PRIMARY_USERS, userDAO.count().intValue()); // Counts are exact unless the caller opts in
+            assertEquals(0, router.getReplicaReads());
+            assertEquals(2, router.getPrimaryReads());
+            assertEquals(0, router.getLaggingReplicaReads());
+        }
+    }
+
+    @Test
+    public void laggingReplicaSendsBoundedReadsToThePrimary() {
+        try (ReplicaRouter router = new ReplicaRouter(primary, replica)) {
+            replicateBeat(System.currentTimeMillis() - 60_000); // The replica stopped applying a minute ago
+            router.heartbeat();
+            UserDAO userDAO = new UserDAO(primaryEm, router);
+
+            assertTrue(router.getReplicaLagMs() >= 60_000);
+            assertEquals(PRIMARY_USERS, userDAO.count(UserDAO.USER_LIST_STALENESS).intValue());
+            assertEquals(1, router.getLaggingReplicaReads());
+            assertEquals(0, router.getReplicaReads());
+        }
+    }
+
+    @Test
+    public void replicaWithoutHeartbeatIsNotRead() {
+        try (ReplicaRouter router = new ReplicaRouter(primary, replica)) {
+            router.heartbeat(); // The beat never reaches the replica
+            UserDAO userDAO = new UserDAO(primaryEm, router);
+
+            assertEquals(Long.MAX_VALUE, router.getReplicaLagMs());
+            assertEquals(PRIMARY_USERS, userDAO.count(UserDAO.USER_LIST_STALENESS).intValue());
+            assertEquals(1, router.getLaggingReplicaReads());
+        }
+    }
+
+    @Test
+    public void failedReplicaReadRunsAgainOnThePrimary() {
+        try (ReplicaRouter router = new ReplicaRouter(primary, replica)) {
+            replicateBeat(System.currentTimeMillis());
+            router.heartbeat();
+            UserDAO userDAO = new UserDAO(primaryEm, router);
+            replica.close(); // The replica goes away after the last heartbeat
+
+            assertEquals(PRIMARY_USERS, userDAO.count(UserDAO.USER_LIST_STALENESS).intValue());
+            assertEquals(1, router.getReplicaFailures());
+            assertEquals(1, router.getPrimaryReads());
+            assertEquals(Long.MAX_VALUE, router.getReplicaLagMs()); // Primary only until the next heartbeat
+        }
+    }
+
+    // Write the heartbeat row on the replica, as replication would after the beat was taken
+    private void replicateBeat(long beatMillis) {
+        inTransaction(replica, em -> em.persist(new ReplicationHeartbeat(ReplicationHeartbeat.HEARTBEAT_ID, beatMillis)));
+    }
+
+    private static void insertUsers(EntityManagerFactory emf, int count) {
+        inTransaction(emf, em -> {
+            for (int i = 0; i < count; i++) {
+                em.persist(new User("user" + i, "user" + i + "@example.com", "hash"));
+            }
+        });
+    }
+
+    private static void inTransaction(EntityManagerFactory emf, Consumer<EntityManager> work) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            work.accept(em);
+            em.getTransaction().commit();
+        } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
+    }
+
+    // Point a persistence unit at a new H2 database in MySQL mode with the schema created from the entities
+    private static Map<String, Object> h2Properties(String name) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("javax.persistence.jdbc.driver", "org.h2.Driver");
+        properties.put("javax.persistence.jdbc.url",
+            "jdbc:h2:mem:" + name + DATABASES.incrementAndGet() + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+        properties.put("javax.persistence.jdbc.user", "sa");
+        properties.put("javax.persistence.jdbc.password", "");
+        properties.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        properties.put("hibernate.hbm2ddl.auto", "create");
+        properties.put("hibernate.show_sql", "false");
+        properties.put("hibernate.format_sql", "false");
+        properties.put("hibernate.connection.provider_class",
+            "org.hibernate.engine.jdbc.connections.internal.DriverManagerConnectionProviderImpl");
+        return properties;
+    }
+}
@@ -0,0 +1,214 @@
+package com.poortoys.examples.simulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.poortoys.examples.entities.Event;
+import com.poortoys.examples.entities.Ticket;
+import com.poortoys.examples.entities.TicketCategory;
+import com.poortoys.examples.entities.TicketStatus;
+import com.poortoys.examples.entities.User;
+
+/**
+ * Checks SeatInventory's claims and releases, and the rebuild from the tickets table,
+ * against an H2 in-memory database. The event has a VIP category of four tickets, one of
+ * them already sold, and a standard category of three tickets, one of them reserved.
+ */
+public class SeatInventoryTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger(0); // Keeps every test on a fresh database
+    private static final BigDecimal VIP_PRICE = new BigDecimal("50.00");
+    private static final BigDecimal STANDARD_PRICE = new BigDecimal("20.00");
+
+    private EntityManagerFactory emf;
+    private SeatInventory inventory;
+    private int eventId;
+    private int vipCategoryId;
+    private int standardCategoryId;
+    private int userId;
+
+    @Before
+    public void loadInventory() {
+        emf = Persistence.createEntityManagerFactory("ticketingsystem", h2Properties("inventory"));
+        inTransaction(em -> {
+            Event event = new Event("Test Event", null, new Date(), null);
+            em.persist(event);
+            TicketCategory vip = new TicketCategory("VIP", VIP_PRICE, new Date(0), null, "Front", event);
+            TicketCategory standard = new TicketCategory("Standard", STANDARD_PRICE, new Date(0), null, "Back", event);
+            em.persist(vip);
+            em.persist(standard);
+            em.persist(new Ticket("VIP1", event, vip, "A", "1", "1", TicketStatus.AVAILABLE));
+            em.persist(new Ticket("VIP2", event, vip, "A", "1", "2", TicketStatus.AVAILABLE));
+            em.persist(new Ticket("VIP3", event, vip, "A", "1", "3", TicketStatus.AVAILABLE));
+            em.persist(new Ticket("VIP4", event, vip, "A", "1", "4", TicketStatus.SOLD));
+            em.persist(new Ticket("STD1", event, standard, "B", "1", "1", TicketStatus.AVAILABLE));
+            em.persist(new Ticket("STD2", event, standard, "B", "1", "2", TicketStatus.RESERVED));
+            em.persist(new Ticket("STD3", event, standard, "B", "1", "3", TicketStatus.AVAILABLE));
+            User user = new User("user0", "user0@example.com", "hash");
+            em.persist(user);
+            userId = user.getUserId();
+            eventId = event.getEventId();
+            vipCategoryId = vip.getTicketCategoryId();
+            standardCategoryId = standard.getTicketCategoryId();
+        });
+        inventory = new SeatInventory();
+        inventory.loadEvent(emf, eventId);
+    }
+
+    @After
+    public void closeDatabase() {
+        emf.close();
+    }
+
+    @Test
+    public void loadedTicketsThatAreNotAvailableAreTaken() {
+        assertEquals(3, inventory.getAvailableCount(vipCategoryId));
+        assertEquals(2, inventory.getAvailableCount(standardCategoryId));
+        assertNull(inventory.claim(Collections.singletonList("VIP4")));
+        assertNull(inventory.claim(Collections.singletonList("STD2")));
+        assertTrue(inventory.containsAll(Arrays.asList("VIP1", "STD3")));
+        assertEquals(-1, inventory.getAvailableCount(-1));
+    }
+
+    @Test
+    public void claimTakesSeatsUntilTheyAreReleased() {
+        List<ClaimedTicket> claimed = inventory.claim(Arrays.asList("VIP1", "STD1"));
+
+        assertNotNull(claimed);
+        assertEquals(2, claimed.size());
+        assertEquals(vipCategoryId, claimed.get(0).getTicketCategoryId());
+        assertEquals(VIP_PRICE, claimed.get(0).getPrice());
+        assertEquals(STANDARD_PRICE, claimed.get(1).getPrice());
+        assertEquals(2, inventory.getAvailableCount(vipCategoryId));
+        assertEquals(1, inventory.getAvailableCount(standardCategoryId));
+        assertNull(inventory.claim(Collections.singletonList("VIP1"))); // Already taken
+
+        inventory.release(claimed);
+
+        assertEquals(3, inventory.getAvailableCount(vipCategoryId));
+        assertEquals(2, inventory.getAvailableCount(standardCategoryId));
+        assertNotNull(inventory.claim(Collections.singletonList("VIP1")));
+        assertEquals(2, inventory.getSuccessfulClaims());
+        assertEquals(1, inventory.getRejectedClaims());
+    }
+
+    @Test
+    public void failedMultiSeatClaimReleasesTheSeatsItTook() {
+        // VIP1 and VIP2 are taken before the claim reaches the sold VIP4
+        assertNull(inventory.claim(Arrays.asList("VIP1", "VIP2", "VIP4", "VIP3")));
+
+        assertEquals(3, inventory.getAvailableCount(vipCategoryId));
+        assertNotNull(inventory.claim(Arrays.asList("VIP1", "VIP2", "VIP3")));
+        assertEquals(1, inventory.getRejectedClaims());
+    }
+
+    @Test
+    public void unknownSerialReleasesTheSeatsTakenBeforeIt() {
+        try {
+            inventory.claim(Arrays.asList("VIP1", "NOPE"));
+            fail("Claimed a serial outside the inventory");
+        } catch (IllegalArgumentException expected) {
+            // The seats taken before the unknown serial must be free again
+        }
+
+        assertEquals(3, inventory.getAvailableCount(vipCategoryId));
+        assertNotNull(inventory.claim(Collections.singletonList("VIP1")));
+    }
+
+    @Test
+    public void claimAnyTakesAllRequestedSeatsOrNone() {
+        assertNull(inventory.claimAny(standardCategoryId, 3)); // Only two are free
+        assertEquals(2, inventory.getAvailableCount(standardCategoryId));
+
+        List<ClaimedTicket> claimed = inventory.claimAny(standardCategoryId, 2);
+
+        assertEquals(2, claimed.size());
+        assertEquals(0, inventory.getAvailableCount(standardCategoryId));
+        assertNull(inventory.claimAny(standardCategoryId, 1));
+    }
+
+    @Test
+    public void releaseByTicketIdFreesTheSeat() {
+        List<ClaimedTicket> claimed = inventory.claim(Collections.singletonList("STD1"));
+
+        inventory.releaseTicketIds(Arrays.asList(claimed.get(0).getTicketId(), -1)); // Unknown IDs are ignored
+
+        assertEquals(2, inventory.getAvailableCount(standardCategoryId));
+    }
+
+    @Test
+    public void reloadRebuildsAvailabilityFromTheTicketsTable() {
+        inventory.claim(Collections.singletonList("VIP1")); // Never written, as if lost in a restart
+        inTransaction(em -> em.createQuery("UPDATE Ticket t SET t.status = :sold WHERE t.serialNumber = 'VIP2'")
+            .setParameter("sold", TicketStatus.SOLD)
+            .executeUpdate());
+
+        assertEquals(7, inventory.loadEvent(emf, eventId));
+
+        assertEquals(2, inventory.getAvailableCount(vipCategoryId)); // VIP1 and VIP3
+        assertNotNull(inventory.claim(Collections.singletonList("VIP1")));
+        assertNull(inventory.claim(Collections.singletonList("VIP2")));
+    }
+
+    @Test
+    public void loadedUsersCanBeLookedUp() {
+        assertNull(inventory.getUser(userId));
+
+        assertEquals(1, inventory.loadUsers(emf));
+
+        assertEquals("user0@example.com", inventory.getUser(userId).getEmail());
+        assertNull(inventory.getUser(userId + 1));
+    }
+
+    private void inTransaction(Consumer<EntityManager> work) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            work.accept(em);
+            em.getTransaction().commit();
+        } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
+    }
+
+    // Point the persistence unit at a new H2 database in MySQL mode with the schema created from the entities
+    private static Map<String, Object> h2Properties(String name) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("javax.persistence.jdbc.driver", "org.h2.Driver");
+        properties.put("javax.persistence.jdbc.url",
+            "jdbc:h2:mem:" + name + DATABASES.incrementAndGet() + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+        properties.put("javax.persistence.jdbc.user", "sa");
+        properties.put("javax.persistence.jdbc.password", "");
+        properties.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        properties.put("hibernate.hbm2ddl.auto", "create");
+        properties.put("hibernate.show_sql", "false");
+        properties.put("hibernate.format_sql", "false");
+        properties.put("hibernate.connection.provider_class",
+            "org.hibernate.engine.jdbc.connections.internal.DriverManagerConnectionProviderImpl");
+        return properties;
+    }
+}
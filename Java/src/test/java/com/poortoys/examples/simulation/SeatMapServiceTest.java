@@ -0,0 +1,206 @@
+package com.poortoys.examples.simulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.poortoys.examples.entities.Event;
+import com.poortoys.examples.entities.Ticket;
+import com.poortoys.examples.entities.TicketCategory;
+import com.poortoys.examples.entities.TicketStatus;
+import com.poortoys.examples.simulation.SeatMapService.SeatChange;
+import com.poortoys.examples.simulation.SeatMapService.SeatMapUpdate;
+
+/**
+ * Checks SeatMapService's answers to polling clients against an H2 in-memory database,
+ * with a delta ring of only DELTA_CAPACITY seat changes so a few refreshes overflow it.
+ * The event has one category of one row of SEATS seats; ticket "S<n>" is seat n.
+ */
+public class SeatMapServiceTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger(0); // Keeps every test on a fresh database
+    private static final int SEATS = 10;
+    private static final int DELTA_CAPACITY = 4;
+
+    private EntityManagerFactory emf;
+    private SeatMapService seatMaps;
+    private int eventId;
+    private int categoryId;
+
+    @Before
+    public void loadSeatMap() {
+        emf = Persistence.createEntityManagerFactory("ticketingsystem", h2Properties("seatmap"));
+        inTransaction(em -> {
+            Event event = new Event("Test Event", null, new Date(), null);
+            em.persist(event);
+            TicketCategory category = new TicketCategory("Standard", new BigDecimal("20.00"), new Date(0), null,
+                "Floor", event);
+            em.persist(category);
+            for (int seat = 1; seat <= SEATS; seat++) {
+                em.persist(new Ticket("S" + seat, event, category, "A", "Row 1", "Seat " + seat,
+                    TicketStatus.AVAILABLE));
+            }
+            eventId = event.getEventId();
+            categoryId = category.getTicketCategoryId();
+        });
+        seatMaps = new SeatMapService(emf, 60_000, DELTA_CAPACITY); // Refreshed by the tests, never started
+        seatMaps.loadEvent(eventId);
+    }
+
+    @After
+    public void closeDatabase() {
+        seatMaps.close();
+        emf.close();
+    }
+
+    @Test
+    public void clientsWithinTheRingGetExactlyTheChangedSeats() {
+        sell(1, 2);
+        assertEquals(2, seatMaps.refresh(eventId)); // Version 2
+        sell(3);
+        assertEquals(1, seatMaps.refresh(eventId)); // Version 3
+
+        SeatMapUpdate fromFirst = seatMaps.getChangesSince(eventId, 1);
+        assertFalse(fromFirst.isSnapshot());
+        assertEquals(3, fromFirst.getVersion());
+        assertEquals(Arrays.asList(1, 2, 3), seats(fromFirst.getChanges()));
+
+        SeatMapUpdate fromSecond = seatMaps.getChangesSince(eventId, 2);
+        assertEquals(Collections.singletonList(3), seats(fromSecond.getChanges()));
+        assertEquals(3, fromSecond.getChanges().get(0).getVersion());
+
+        SeatMapUpdate current = seatMaps.getChangesSince(eventId, 3);
+        assertFalse(current.isSnapshot());
+        assertTrue(current.getChanges().isEmpty());
+    }
+
+    @Test
+    public void clientsOlderThanTheRingGetTheFullMap() {
+        sell(1, 2);
+        seatMaps.refresh(eventId); // Version 2
+        sell(3);
+        seatMaps.refresh(eventId); // Version 3
+        sell(4, 5);
+        seatMaps.refresh(eventId); // Version 4 overwrites seat 1, a change of version 2
+
+        SeatMapUpdate fromFirst = seatMaps.getChangesSince(eventId, 1);
+        assertTrue(fromFirst.isSnapshot());
+        assertEquals(4, fromFirst.getVersion());
+        assertEquals(SEATS - 5, fromFirst.getSnapshot().getAvailable(categoryId));
+        assertEquals(TicketStatus.SOLD, fromFirst.getSnapshot().getStatus(categoryId, 1, 1));
+
+        // Version 2 itself is still a valid base: every later change is in the ring
+        SeatMapUpdate fromSecond = seatMaps.getChangesSince(eventId, 2);
+        assertFalse(fromSecond.isSnapshot());
+        assertEquals(Arrays.asList(3, 4, 5), seats(fromSecond.getChanges()));
+
+        assertEquals(Arrays.asList(4, 5), seats(seatMaps.getChangesSince(eventId, 3).getChanges()));
+        assertEquals(1, seatMaps.getSnapshotsServed());
+        assertEquals(2, seatMaps.getDeltasServed());
+    }
+
+    @Test
+    public void versionWithMoreChangesThanTheRingHoldsNeedsTheFullMap() {
+        sell(1, 2, 3, 4, 5); // One more change than the ring holds
+        assertEquals(5, seatMaps.refresh(eventId)); // Version 2
+
+        assertTrue(seatMaps.getChangesSince(eventId, 1).isSnapshot());
+        assertTrue(seatMaps.getChangesSince(eventId, 2).getChanges().isEmpty());
+    }
+
+    @Test
+    public void seatChangedTwiceIsReportedOnceWithItsLatestStatus() {
+        setStatus(TicketStatus.RESERVED, 6);
+        seatMaps.refresh(eventId); // Version 2
+        sell(6);
+        seatMaps.refresh(eventId); // Version 3
+
+        List<SeatChange> changes = seatMaps.getChangesSince(eventId, 1).getChanges();
+
+        assertEquals(1, changes.size());
+        assertEquals(TicketStatus.SOLD, changes.get(0).getStatus());
+        assertEquals(3, changes.get(0).getVersion());
+    }
+
+    @Test
+    public void newAndUnknownVersionsGetTheFullMap() {
+        sell(1);
+        seatMaps.refresh(eventId); // Version 2
+
+        assertTrue(seatMaps.getChangesSince(eventId, 0).isSnapshot());
+        assertTrue(seatMaps.getChangesSince(eventId, 3).isSnapshot()); // Ahead of the service, e.g. after a reload
+    }
+
+    private void sell(int... seats) {
+        setStatus(TicketStatus.SOLD, seats);
+    }
+
+    private void setStatus(TicketStatus status, int... seats) {
+        List<String> serials = new ArrayList<>();
+        for (int seat : seats) {
+            serials.add("S" + seat);
+        }
+        inTransaction(em -> em.createQuery("UPDATE Ticket t SET t.status = :status WHERE t.serialNumber IN :serials")
+            .setParameter("status", status)
+            .setParameter("serials", serials)
+            .executeUpdate());
+    }
+
+    private static List<Integer> seats(List<SeatChange> changes) {
+        List<Integer> seats = new ArrayList<>();
+        for (SeatChange change : changes) {
+            seats.add(change.getSeat());
+        }
+        return seats;
+    }
+
+    private void inTransaction(Consumer<EntityManager> work) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            work.accept(em);
+            em.getTransaction().commit();
+        } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
+    }
+
+    // Point the persistence unit at a new H2 database in MySQL mode with the schema created from the entities
+    private static Map<String, Object> h2Properties(String name) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("javax.persistence.jdbc.driver", "org.h2.Driver");
+        properties.put("javax.persistence.jdbc.url",
+            "jdbc:h2:mem:" + name + DATABASES.incrementAndGet() + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+        properties.put("javax.persistence.jdbc.user", "sa");
+        properties.put("javax.persistence.jdbc.password", "");
+        properties.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        properties.put("hibernate.hbm2ddl.auto", "create");
+        properties.put("hibernate.show_sql", "false");
+        properties.put("hibernate.format_sql", "false");
+        properties.put("hibernate.connection.provider_class",
+            "org.hibernate.engine.jdbc.connections.internal.DriverManagerConnectionProviderImpl");
+        return properties;
+    }
+}
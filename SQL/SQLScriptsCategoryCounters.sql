@@ -0,0 +1,35 @@
+-- MySQL Migration: per-category availability counters
+
+USE TicketSystem;
+
+-- Availability summaries used to GROUP BY over every ticket of an event. Each ticket
+-- category now has a few counter rows (shards) that the booking, hold and release
+-- transactions update together with the tickets themselves. Reading a category is a
+-- SUM over its shards. CategoryAvailabilityCounters.reconcile() seeds missing
+-- categories and repairs drift by recounting the tickets table.
+
+-- Ticket_Category_Counters Table holds one row per category and shard
+CREATE TABLE ticket_category_counters (
+    ticket_category_counter_id INT AUTO_INCREMENT PRIMARY KEY, -- Unique identifier for each counter row
+    event_id INT NOT NULL,                                     -- Event the category belongs to
+    ticket_category_id INT NOT NULL,                           -- Category being counted
+    shard INT NOT NULL,                                        -- Shard number, picked at random per update
+    available BIGINT NOT NULL DEFAULT 0,                       -- Change in available tickets recorded in this shard
+    reserved BIGINT NOT NULL DEFAULT 0,                        -- Change in reserved tickets recorded in this shard
+    sold BIGINT NOT NULL DEFAULT 0,                            -- Change in sold tickets recorded in this shard
+    CONSTRAINT uk_ticket_category_counters_shard UNIQUE (ticket_category_id, shard),
+    INDEX idx_ticket_category_counters_event (event_id),       -- Sums an event's categories without a full scan
+    FOREIGN KEY (event_id) REFERENCES events(event_id),                               -- Ensures referential integrity with event
+    FOREIGN KEY (ticket_category_id) REFERENCES ticket_category(ticket_category_id)   -- Ensures referential integrity with category
+);
+
+-- Seed shard 0 of every category from the current tickets; shards 1 to 7 start at zero
+INSERT INTO ticket_category_counters (event_id, ticket_category_id, shard, available, reserved, sold)
+SELECT t.event_id, t.ticket_category_id, s.shard,
+       IF(s.shard = 0, SUM(t.status = 'available'), 0),
+       IF(s.shard = 0, SUM(t.status = 'reserved'), 0),
+       IF(s.shard = 0, SUM(t.status = 'sold'), 0)
+FROM tickets t
+CROSS JOIN (SELECT 0 AS shard UNION ALL SELECT 1 UNION ALL SELECT 2 UNION ALL SELECT 3
+            UNION ALL SELECT 4 UNION ALL SELECT 5 UNION ALL SELECT 6 UNION ALL SELECT 7) s
+GROUP BY t.event_id, t.ticket_category_id, s.shard;
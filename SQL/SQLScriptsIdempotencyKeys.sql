@@ -0,0 +1,25 @@
+-- MySQL Migration: idempotent booking requests
+
+USE TicketSystem;
+
+-- A client that retries createBooking after a timeout sends the same request id again.
+-- The (user_id, idempotency_key) pair is unique, so the retry finds the original
+-- booking. Two racing retries cannot both commit, because the second insert fails
+-- and rolls its booking back.
+
+-- Booking_Idempotency_Keys Table links client request ids to the booking they created
+CREATE TABLE booking_idempotency_keys (
+    booking_idempotency_key_id INT PRIMARY KEY,     -- Allocated by Hibernate from booking_idempotency_keys_seq
+    user_id INT NOT NULL,                           -- User who sent the request
+    idempotency_key VARCHAR(64) NOT NULL,           -- Client-chosen request id, identical on every retry
+    booking_id INT NOT NULL,                        -- Booking created for the request
+    created_at TIMESTAMP NOT NULL,                  -- When the request was first booked
+    CONSTRAINT uk_booking_idempotency_user_key UNIQUE (user_id, idempotency_key),
+    FOREIGN KEY (booking_id) REFERENCES bookings(booking_id) -- Ensures referential integrity with booking
+);
+
+-- Sequence-emulating table for the ids, as in SQLScriptsPooledIdSequences.sql
+CREATE TABLE booking_idempotency_keys_seq (
+    next_val BIGINT NOT NULL -- Lowest id of the next block handed out to Hibernate
+);
+INSERT INTO booking_idempotency_keys_seq (next_val) VALUES (1);
@@ -0,0 +1,104 @@
+-- MySQL Migration: single round-trip booking procedure
+
+USE TicketSystem;
+
+-- BookingService's NATIVE_PROCEDURE claim strategy books exact serials with one CALL
+-- instead of a find, an UPDATE, a price query and batched INSERTs through Hibernate.
+-- Booking and booking_ticket ids are allocated by Hibernate from bookings_seq and
+-- booking_ticket_seq before the call, so JPA and procedure bookings never collide
+-- and the procedure does not serialize on the sequence rows.
+--
+-- p_tickets holds one object per ticket, e.g. [{"serial": "ROVI0001", "id": 51}],
+-- where id is the booking_ticket id to use for that serial.
+--
+-- On success the procedure also updates one random shard of ticket_category_counters
+-- (SQLScriptsCategoryCounters.sql, run that first) and returns one row per category
+-- with the number of tickets booked, so BookingService can mirror the counters.
+--
+-- p_result: 0 = booked, 1 = user not found, 2 = some tickets no longer available,
+--           3 = duplicate serials in the request.
+-- On a non-zero result the caller rolls back, undoing any tickets already flipped.
+
+DROP PROCEDURE IF EXISTS book_tickets;
+
+DELIMITER //
+
+CREATE PROCEDURE book_tickets(
+    IN p_user_id INT,               -- User making the booking
+    IN p_email VARCHAR(100),        -- Delivery address for the booking
+    IN p_booking_id INT,            -- Booking id allocated by Hibernate
+    IN p_tickets JSON,              -- Serials with their booking_ticket ids
+    OUT p_total_price DECIMAL(10,2),-- Sum of the category prices of the booked tickets
+    OUT p_result INT                -- Outcome code, see above
+)
+book: BEGIN
+    DECLARE v_requested INT;
+    DECLARE v_distinct INT;
+    DECLARE v_claimed INT;
+    DECLARE v_shard INT DEFAULT FLOOR(RAND() * 8); -- CategoryAvailabilityCounters.SHARD_COUNT
+
+    -- Step 1: Validate user existence
+    IF NOT EXISTS (SELECT 1 FROM users WHERE user_id = p_user_id) THEN
+        SET p_result = 1;
+        LEAVE book;
+    END IF;
+
+    SET v_requested = JSON_LENGTH(p_tickets);
+    SELECT COUNT(DISTINCT j.serial) INTO v_distinct
+    FROM JSON_TABLE(p_tickets, '$[*]' COLUMNS (serial VARCHAR(255) PATH '$.serial')) j;
+    IF v_distinct <> v_requested THEN
+        SET p_result = 3;
+        LEAVE book;
+    END IF;
+
+    -- Step 2: Claim tickets with one guarded UPDATE, as SET_BASED_UPDATE does
+    UPDATE tickets t
+    JOIN JSON_TABLE(p_tickets, '$[*]' COLUMNS (serial VARCHAR(255) PATH '$.serial')) j
+        ON t.serial_number = j.serial
+    SET t.status = 'sold', t.purchase_date = NOW(), t.version = t.version + 1
+    WHERE t.status = 'available';
+    SET v_claimed = ROW_COUNT();
+    IF v_claimed <> v_requested THEN
+        SET p_result = 2;
+        LEAVE book;
+    END IF;
+
+    -- Step 3: Price the booking from the ticket categories
+    SELECT SUM(tc.price) INTO p_total_price
+    FROM tickets t
+    JOIN JSON_TABLE(p_tickets, '$[*]' COLUMNS (serial VARCHAR(255) PATH '$.serial')) j
+        ON t.serial_number = j.serial
+    JOIN ticket_category tc ON tc.ticket_category_id = t.ticket_category_id;
+
+    -- Step 4: Create the booking and associate the claimed tickets
+    INSERT INTO bookings (booking_id, user_id, delivery_address_email, total_price, discount, final_price, booking_status)
+    VALUES (p_booking_id, p_user_id, p_email, p_total_price, 0, p_total_price, 'CONFIRMED');
+
+    INSERT INTO booking_ticket (booking_ticket_id, booking_id, ticket_id)
+    SELECT j.booking_ticket_id, p_booking_id, t.ticket_id
+    FROM JSON_TABLE(p_tickets, '$[*]' COLUMNS (
+            serial VARCHAR(255) PATH '$.serial',
+            booking_ticket_id INT PATH '$.id')) j
+    JOIN tickets t ON t.serial_number = j.serial;
+
+    -- Step 5: Count the booked tickets as sold in their categories
+    UPDATE ticket_category_counters c
+    JOIN (SELECT t.ticket_category_id, COUNT(*) AS booked
+          FROM tickets t
+          JOIN JSON_TABLE(p_tickets, '$[*]' COLUMNS (serial VARCHAR(255) PATH '$.serial')) j
+              ON t.serial_number = j.serial
+          GROUP BY t.ticket_category_id) b ON b.ticket_category_id = c.ticket_category_id
+    SET c.available = c.available - b.booked, c.sold = c.sold + b.booked
+    WHERE c.shard = v_shard;
+
+    SET p_result = 0;
+
+    -- Step 6: Return the booked tickets per category
+    SELECT t.ticket_category_id, COUNT(*) AS booked
+    FROM tickets t
+    JOIN JSON_TABLE(p_tickets, '$[*]' COLUMNS (serial VARCHAR(255) PATH '$.serial')) j
+        ON t.serial_number = j.serial
+    GROUP BY t.ticket_category_id;
+END //
+
+DELIMITER ;
@@ -0,0 +1,38 @@
+-- MySQL Migration: pooled id generation for tickets, bookings and booking_ticket
+
+USE TicketSystem;
+
+-- Ticket, Booking and BookingTicket no longer use IDENTITY ids, because IDENTITY
+-- forces Hibernate to insert row by row to learn each id. Their ids are now taken
+-- in blocks of 50 from one-row tables (MySQL has no sequences), so
+-- hibernate.jdbc.batch_size and order_inserts apply to these inserts.
+-- Run this script once before starting the application against an existing database.
+-- Otherwise hibernate.hbm2ddl.auto=update creates the tables starting at 1, which
+-- collides with the existing ids.
+
+-- Sequence-emulating tables, each holding the next unallocated id
+CREATE TABLE IF NOT EXISTS tickets_seq (
+    next_val BIGINT NOT NULL -- Lowest id of the next block handed out to Hibernate
+);
+
+CREATE TABLE IF NOT EXISTS bookings_seq (
+    next_val BIGINT NOT NULL -- Lowest id of the next block handed out to Hibernate
+);
+
+CREATE TABLE IF NOT EXISTS booking_ticket_seq (
+    next_val BIGINT NOT NULL -- Lowest id of the next block handed out to Hibernate
+);
+
+-- Seed every sequence just past the highest id already in use
+DELETE FROM tickets_seq;
+INSERT INTO tickets_seq (next_val) SELECT COALESCE(MAX(ticket_id), 0) + 1 FROM tickets;
+
+DELETE FROM bookings_seq;
+INSERT INTO bookings_seq (next_val) SELECT COALESCE(MAX(booking_id), 0) + 1 FROM bookings;
+
+DELETE FROM booking_ticket_seq;
+INSERT INTO booking_ticket_seq (next_val) SELECT COALESCE(MAX(booking_ticket_id), 0) + 1 FROM booking_ticket;
+
+-- The AUTO_INCREMENT attribute on the id columns is kept so rows inserted outside
+-- Hibernate still get ids. Such inserts must be avoided while the application runs,
+-- since AUTO_INCREMENT does not know which blocks Hibernate has reserved.
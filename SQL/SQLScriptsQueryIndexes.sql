@@ -0,0 +1,31 @@
+-- MySQL Migration: composite indexes for the booking and availability queries
+
+USE TicketSystem;
+
+-- SQLScriptsTicketSystem.sql only creates primary keys, unique keys and the indexes
+-- InnoDB adds for foreign keys, so every availability query reads all tickets of an
+-- event and filters them by status. The indexes below match the WHERE clauses of the
+-- DAO and BookingService queries. InnoDB appends the primary key to every secondary
+-- index, so ticket_id and booking_id are available from them without being listed.
+-- Check the plans afterwards with: IndexAdvisor [eventId]
+--
+-- tickets(serial_number, status) is not added: serial_number is already unique, so
+-- "serial_number IN (...) AND status = ?" reads at most one row per serial.
+
+-- Available serials and counts of an event; covering, serial_number is read from the index
+ALTER TABLE tickets
+    ADD INDEX idx_tickets_event_status_serial (event_id, status, serial_number);
+
+-- Best-available allocation picks free tickets of one category in ticket_id order
+-- (FOR UPDATE SKIP LOCKED) and the counters are reconciled per category and status;
+-- both are served by this index without sorting or reading the rows
+ALTER TABLE tickets
+    ADD INDEX idx_tickets_event_category_status (event_id, ticket_category_id, status);
+
+-- A user's latest confirmed booking; replaces the foreign key index on user_id
+ALTER TABLE bookings
+    ADD INDEX idx_bookings_user_status (user_id, booking_status);
+
+-- Categories of an event, and of an event within their sale window
+ALTER TABLE ticket_category
+    ADD INDEX idx_ticket_category_event_dates (event_id, start_date, end_date);
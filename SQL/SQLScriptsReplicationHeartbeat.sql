@@ -0,0 +1,21 @@
+-- MySQL Migration: replication heartbeat for read/write splitting
+
+USE TicketSystem;
+
+-- Reads that tolerate staleness (availability lists, reports) can go to a read replica.
+-- ReplicaRouter writes this row on the primary every half second and reads it back on
+-- the replica; the age of the beat the replica has applied is its replication lag.
+-- A replica that does not replicate this table never shows a beat, so every read
+-- falls back to the primary.
+
+-- Replication_Heartbeat Table holds a single row, heartbeat_id = 1
+CREATE TABLE replication_heartbeat (
+    heartbeat_id INT PRIMARY KEY,             -- Always 1
+    beat_millis BIGINT NOT NULL               -- Epoch milliseconds of the last beat, from the application clock
+);
+
+INSERT INTO replication_heartbeat (heartbeat_id, beat_millis) VALUES (1, 0);
+
+-- The replica account only needs to read; grant nothing else on the replica, e.g.
+-- CREATE USER 'ticket_reader'@'%' IDENTIFIED BY '...';
+-- GRANT SELECT ON TicketSystem.* TO 'ticket_reader'@'%';
@@ -0,0 +1,27 @@
+-- MySQL Migration: timed seat holds
+
+USE TicketSystem;
+
+-- During checkout, tickets can be held for a few minutes without keeping InnoDB row
+-- locks. Held tickets are 'reserved' and carry the token of their hold. Holds that
+-- are not confirmed in time are released by the HoldExpirySweeper.
+
+-- Allow the 'reserved' status used by held tickets
+ALTER TABLE tickets
+    MODIFY status ENUM('available', 'sold', 'reserved') DEFAULT 'available';
+
+-- Token of the hold that reserved the ticket, NULL unless the ticket is reserved
+ALTER TABLE tickets
+    ADD COLUMN hold_token VARCHAR(36) NULL,
+    ADD INDEX idx_tickets_hold_token (hold_token); -- Finds the tickets of a hold on confirm and release
+
+-- Seat_Holds Table records who holds which tickets and until when
+CREATE TABLE seat_holds (
+    hold_token VARCHAR(36) PRIMARY KEY,          -- Random token handed to the client
+    user_id INT NOT NULL,                         -- User who will own the booking
+    delivery_address_email VARCHAR(100),          -- Email address for ticket delivery
+    ticket_count INT NOT NULL,                    -- Number of tickets held, checked again on confirm
+    expires_at TIMESTAMP NOT NULL,                -- When the sweeper may release the hold
+    INDEX idx_seat_holds_expires_at (expires_at), -- Lets the sweeper find expired holds without a full scan
+    FOREIGN KEY (user_id) REFERENCES users(user_id) -- Ensures referential integrity with user
+);